@@ -0,0 +1,257 @@
+package me.zpath;
+
+import java.util.*;
+import java.math.*;
+
+/**
+ * <p>
+ * A List that aggregates the nodes added to it instead of storing them, used to implement
+ * <code>count()</code>, <code>sum()</code>, <code>min()</code>, <code>max()</code> and <code>avg()</code>.
+ * A {@link Path} evaluated into an Aggregate writes the nodes from its final step directly
+ * into it, so the nodes being aggregated are never collected into a list.
+ * </p><p>
+ * Numbers are accumulated in a primitive <code>long</code> or <code>double</code>,
+ * and only promoted to BigInteger on overflow, or to BigDecimal if one of the values
+ * is a BigDecimal, exactly as for arithmetic in {@link Expr}.
+ * </p><p>
+ * Because nodes are not retained, {@link #contains} always returns false, so a container node
+ * reachable from two parents in the same step is counted twice. That can't happen in a tree.
+ * </p><p>
+ * Subclasses in {@link Sketch} override {@link #add(Object)}, {@link #clear} and {@link #result}
+ * to compute approximate aggregates.
+ * </p>
+ */
+class Aggregate extends AbstractList<Object> {
+
+    static final int COUNT = 0, SUM = 1, MIN = 2, MAX = 3, AVG = 4;
+    private static final int NONE = 0, LONG = 1, DOUBLE = 2, BIGINTEGER = 3, BIGDECIMAL = 4;
+
+    private final int op;
+    final EvalContext context;
+    private int count, numbers;
+    private int type;
+    private long l;
+    private double d;
+    private Number big, best;
+
+    /**
+     * @param op one of COUNT, SUM, MIN, MAX or AVG
+     * @param context the context, used to get the numeric value of nodes
+     */
+    Aggregate(int op, EvalContext context) {
+        this.op = op;
+        this.context = context;
+    }
+
+    /**
+     * Constructor for subclasses which do their own aggregation
+     * @param context the context
+     */
+    Aggregate(EvalContext context) {
+        this(-1, context);
+    }
+
+    /**
+     * Evaluate the term and add its nodes. Paths stream their output here directly,
+     * anything else is evaluated into a list first.
+     * @param term the term to evaluate
+     * @param in the input nodes
+     */
+    void add(Term term, List<Object> in) {
+        if (term instanceof Path) {
+            term.eval(in, this, context);
+        } else if (TypedFunction.isConstant(term)) {
+            add(term.isString() ? term.stringValue() : term.numberValue());
+        } else {
+            for (Object o : term.eval(in, new ArrayList<Object>(), context)) {
+                add(o);
+            }
+        }
+    }
+
+    /**
+     * Reset to the initial state
+     */
+    @Override public void clear() {
+        count = numbers = type = 0;
+        big = best = null;
+    }
+
+    @Override public boolean add(Object node) {
+        count++;
+        if (op != COUNT) {
+            Number n = Expr.numberValue(context, node);
+            if (n != null) {
+                numbers++;
+                if (op == MIN || op == MAX) {
+                    if (best == null) {
+                        best = n;
+                    } else {
+                        int c;
+                        if (isIntegral(n) && isIntegral(best)) {
+                            c = Long.compare(n.longValue(), best.longValue());
+                        } else {
+                            c = Expr.compare(n, best, context);
+                        }
+                        if (op == MIN ? c < 0 : c > 0) {
+                            best = n;
+                        }
+                    }
+                } else {
+                    sum(n);
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override public void add(int index, Object node) {
+        add(node);
+    }
+
+    private static boolean isIntegral(Number n) {
+        return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+    }
+
+    private void sum(Number n) {
+        if (isIntegral(n)) {
+            long v = n.longValue();
+            switch (type) {
+                case NONE:
+                    type = LONG;
+                    l = v;
+                    break;
+                case LONG:
+                    long r = l + v;
+                    if (((l ^ r) & (v ^ r)) < 0) {                  // overflow, as Math.addExact
+                        type = BIGINTEGER;
+                        big = BigInteger.valueOf(l).add(BigInteger.valueOf(v));
+                    } else {
+                        l = r;
+                    }
+                    break;
+                case DOUBLE:
+                    d += v;
+                    break;
+                case BIGINTEGER:
+                    big = ((BigInteger)big).add(BigInteger.valueOf(v));
+                    break;
+                default:
+                    big = ((BigDecimal)big).add(BigDecimal.valueOf(v));
+            }
+        } else if (n instanceof BigInteger) {
+            switch (type) {
+                case NONE:
+                    type = BIGINTEGER;
+                    big = n;
+                    break;
+                case LONG:
+                    type = BIGINTEGER;
+                    big = BigInteger.valueOf(l).add((BigInteger)n);
+                    break;
+                case BIGINTEGER:
+                    big = ((BigInteger)big).add((BigInteger)n);
+                    break;
+                default:
+                    big = toBigDecimal().add(new BigDecimal((BigInteger)n));
+                    type = BIGDECIMAL;
+            }
+        } else if (n instanceof BigDecimal) {
+            big = type == NONE ? n : toBigDecimal().add((BigDecimal)n);
+            type = BIGDECIMAL;
+        } else {
+            double v = n.doubleValue();
+            switch (type) {
+                case NONE:
+                    type = DOUBLE;
+                    d = v;
+                    break;
+                case LONG:
+                    type = DOUBLE;
+                    d = l + v;
+                    break;
+                case DOUBLE:
+                    d += v;
+                    break;
+                default:
+                    big = toBigDecimal().add(new BigDecimal(Double.toString(v)));
+                    type = BIGDECIMAL;
+            }
+        }
+    }
+
+    private BigDecimal toBigDecimal() {
+        switch (type) {
+            case LONG:
+                return BigDecimal.valueOf(l);
+            case DOUBLE:
+                return new BigDecimal(Double.toString(d));
+            case BIGINTEGER:
+                return new BigDecimal((BigInteger)big);
+            default:
+                return (BigDecimal)big;
+        }
+    }
+
+    /**
+     * Return the result of the aggregation: the number of nodes for COUNT, otherwise the
+     * sum, minimum, maximum or average of the numeric nodes, or null if there were none.
+     * @return the result
+     */
+    Object result() {
+        if (op == COUNT) {
+            return Integer.valueOf(count);
+        } else if (op == MIN || op == MAX) {
+            return best;
+        } else if (numbers == 0) {
+            return null;
+        } else if (op == SUM) {
+            switch (type) {
+                case LONG:
+                    return l == (int)l ? Integer.valueOf((int)l) : Long.valueOf(l);
+                case DOUBLE:
+                    return Double.valueOf(d);
+                default:
+                    return big;
+            }
+        } else {
+            switch (type) {
+                case LONG:
+                    if (l % numbers == 0) {
+                        long v = l / numbers;
+                        return v == (int)v ? Integer.valueOf((int)v) : Long.valueOf(v);
+                    }
+                    return Double.valueOf((double)l / numbers);
+                case DOUBLE:
+                    return Double.valueOf(d / numbers);
+                case BIGINTEGER:
+                    BigInteger[] qr = ((BigInteger)big).divideAndRemainder(BigInteger.valueOf(numbers));
+                    if (qr[1].signum() == 0) {
+                        return qr[0];
+                    }
+                    // fall through
+                default:
+                    return toBigDecimal().divide(BigDecimal.valueOf(numbers), MathContext.DECIMAL128);
+            }
+        }
+    }
+
+    /**
+     * Return the number of nodes added
+     */
+    @Override public int size() {
+        return count;
+    }
+
+    /**
+     * Nodes are not retained, so always returns false
+     */
+    @Override public boolean contains(Object o) {
+        return false;
+    }
+
+    @Override public Object get(int index) {
+        throw new UnsupportedOperationException("nodes are not retained");
+    }
+
+}
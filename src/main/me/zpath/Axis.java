@@ -28,6 +28,15 @@ interface Axis {
         logger.log(toString());
     }
 
+    /**
+     * Return the children of a node, as {@link EvalContext#get}. A {@link Group} isn't part
+     * of the model, so is navigated here rather than by the context
+     * @hidden
+     */
+    static Iterable<? extends Object> children(Object node, Object key, EvalContext context) {
+        return node instanceof Group ? ((Group)node).get(key) : context.get(node, key);
+    }
+
     /**
      * The "travel to a matching child of the input node" axis.
      * Several possibilities
@@ -43,77 +52,237 @@ interface Axis {
      * @hidden
      */
     static Axis axisKey(final Object name, final int index) {
-        return new Axis() {
-            @Override public List<Object> eval(final List<Object> in, final List<Object> out, final EvalContext context) {
-                final Configuration.Logger logger = context.getLogger();
-                // Duplicate handling: assuming a tree where every primitive value
-                // is distinct, because the parents have no duplicate, children
-                // will have no duplicates. However if values are shared (primitive
-                // or complex) then the output could have duplicates. Primitives
-                // are OK, others are invalid. So allow dups.
-                //
-                for (Object node : in) {
-                    int c = name != null ? index : ANYINDEX;
-                    for (Object n : context.get(node, name != null ? name : Integer.valueOf(index))) {
-                        if (n == null) {
-                            n = EvalContext.NULL;
-                        }
-                        if (c == ANYINDEX || c-- == 0) {
-                            if (!context.isUnique(n) || !out.contains(n)) {
-                                out.add(n);
-                            }
-                            if (logger != null) {
-                                logger.log("match: " + n);
-                            }
-                            if (c != ANYINDEX) {
-                                break;
-                            }
-                        }
+        return Term.intern(new KeyAxis(name, index));
+    }
+
+    /**
+     * Tracks which unique nodes have been added to an output list, so they're not added twice.
+     * For a short list it just searches the list, but once that would be slow it switches to a
+     * HashSet, so collecting a million children of a node isn't quadratic.
+     * An {@link Aggregate} doesn't retain its nodes so is never searched.
+     * @hidden
+     */
+    static final class Unique {
+        private static final int THRESHOLD = 32;
+        private final List<Object> out;
+        private Set<Object> set;
+
+        Unique(List<Object> out) {
+            this.out = out;
+        }
+
+        /**
+         * Return true if the node is not already in the output list. The caller must then add it.
+         */
+        boolean add(Object node) {
+            if (set != null) {
+                return set.add(node);
+            } else if (out instanceof Aggregate) {
+                return true;
+            } else if (out.size() < THRESHOLD) {
+                return !out.contains(node);
+            }
+            set = new HashSet<Object>(out);
+            return set.add(node);
+        }
+    }
+
+    /**
+     * The implementation of {@link #axisKey}
+     * @hidden
+     */
+    static class KeyAxis implements Axis {
+        final Object name;
+        final int index;
+
+        KeyAxis(Object name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+
+        @Override public List<Object> eval(final List<Object> in, final List<Object> out, final EvalContext context) {
+            final Configuration.Logger logger = context.getLogger();
+            // Duplicate handling: assuming a tree where every primitive value
+            // is distinct, because the parents have no duplicate, children
+            // will have no duplicates. However if values are shared (primitive
+            // or complex) then the output could have duplicates. Primitives
+            // are OK, others are invalid. So allow dups.
+            //
+            final Unique unique = new Unique(out);
+            for (Object node : in) {
+                match(node, out, unique, context, logger);
+            }
+            return out;
+        }
+
+        /**
+         * Add the children of node that match this axis to out
+         */
+        void match(final Object node, final List<Object> out, final Unique unique, final EvalContext context, final Configuration.Logger logger) {
+            int c = name != null ? index : ANYINDEX;
+            for (Object n : children(node, name != null ? name : Integer.valueOf(index), context)) {
+                if (n == null) {
+                    n = EvalContext.NULL;
+                }
+                if (c == ANYINDEX || c-- == 0) {
+                    if (!context.isUnique(n) || unique.add(n)) {
+                        out.add(n);
+                    }
+                    if (logger != null) {
+                        logger.log("match: " + n);
+                    }
+                    if (c != ANYINDEX) {
+                        break;
                     }
                 }
-                return out;
             }
-            @Override public String toString() {
-                StringBuilder sb = new StringBuilder();
-                sb.append("axis-key(");
-                if (name != null) {
-                    if (name == EvalContext.WILDCARD) {
-                        sb.append("key=*");
-                    } else {
-                        sb.append("key=\"");
-                        String n = name.toString();
-                        for (int i=0;i<n.length();i++) {
-                            char c = n.charAt(i);
-                            if (c == '\\' || ZPath.PATH_DELIMITERS.indexOf(c) >= 0) {
-                                if (c == '\n') {
-                                    sb.append("\\n");
-                                } else if (c == '\r') {
-                                    sb.append("\\r");
-                                } else if (c == '\t') {
-                                    sb.append("\\t");
-                                } else {
-                                    sb.append("\\");
-                                    sb.append(c);
-                                }
+        }
+
+        @Override public int hashCode() {
+            return Objects.hashCode(name) * 31 + index;
+        }
+
+        @Override public boolean equals(Object o) {
+            return o == this || (o instanceof KeyAxis && ((KeyAxis)o).index == index && Objects.equals(((KeyAxis)o).name, name));
+        }
+
+        /**
+         * Return the key as it would be passed to {@link EvalContext#get}
+         */
+        Object key() {
+            return name != null ? name : Integer.valueOf(index);
+        }
+
+        String describe() {
+            StringBuilder sb = new StringBuilder();
+            if (name != null) {
+                if (name == EvalContext.WILDCARD) {
+                    sb.append("key=*");
+                } else {
+                    sb.append("key=\"");
+                    String n = name.toString();
+                    for (int i=0;i<n.length();i++) {
+                        char c = n.charAt(i);
+                        if (c == '\\' || ZPath.isPathDelimiter(c)) {
+                            if (c == '\n') {
+                                sb.append("\\n");
+                            } else if (c == '\r') {
+                                sb.append("\\r");
+                            } else if (c == '\t') {
+                                sb.append("\\t");
                             } else {
+                                sb.append("\\");
                                 sb.append(c);
                             }
+                        } else {
+                            sb.append(c);
                         }
-                        sb.append('"');
                     }
+                    sb.append('"');
+                }
+            }
+            if (index != ANYINDEX) {
+                if (name != null) {
+                    sb.append(" index=");
+                } else {
+                    sb.append("index=");
                 }
-                if (index != ANYINDEX) {
-                    if (name != null) {
-                        sb.append(" index=");
+                sb.append(index);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Append this axis to sb in the form it would be written in a path
+         */
+        void source(StringBuilder sb) {
+            if (name == EvalContext.WILDCARD) {
+                sb.append('*');
+            } else if (name instanceof Integer) {       // #1#2
+                sb.append('#');
+                sb.append(name);
+            } else if (name != null) {
+                String n = name.toString();
+                for (int i=0;i<n.length();i++) {
+                    char c = n.charAt(i);
+                    if (c == '\n') {
+                        sb.append("\\n");
+                    } else if (c == '\r') {
+                        sb.append("\\r");
+                    } else if (c == '\t') {
+                        sb.append("\\t");
+                    } else if (c == '\\' || ZPath.isPathDelimiter(c)) {
+                        sb.append('\\');
+                        sb.append(c);
                     } else {
-                        sb.append("index=");
+                        sb.append(c);
                     }
-                    sb.append(index);
                 }
-                sb.append(')');
-                return sb.toString();
             }
-        };
+            if (index >= 0) {
+                sb.append('#');
+                sb.append(index);
+            }
+        }
+
+        @Override public String toString() {
+            return "axis-key(" + describe() + ")";
+        }
+    }
+
+    /**
+     * The "travel to a matching child of the input node or any of its descendents" axis.
+     * This is the fusion of {@link #SELFORANYDESCENDENT} followed by {@link #axisKey},
+     * and gives the same result without materializing every descendent first.
+     * @hidden
+     */
+    static class DescendantKeyAxis implements Axis {
+        final KeyAxis key;
+
+        DescendantKeyAxis(KeyAxis key) {
+            this.key = key;
+        }
+
+        @Override public List<Object> eval(final List<Object> in, final List<Object> out, final EvalContext context) {
+            final Configuration.Logger logger = context.getLogger();
+            // Traversal and duplicate handling is as for SELFORANYDESCENDENT
+            Stack<Object> stack = new Stack<Object>();
+            Set<Object> seen = Collections.<Object>newSetFromMap(new IdentityHashMap<Object,Boolean>());
+            List<Object> temp = new ArrayList<Object>();
+            final Unique unique = new Unique(out);
+            for (Object node : in) {
+                stack.push(node);
+                while (!stack.isEmpty()) {
+                    Object n = stack.pop();
+                    if (!context.isUnique(n) || seen.add(n)) {
+                        key.match(n, out, unique, context, logger);
+                        temp.clear();
+                        for (Object o : children(n, EvalContext.WILDCARD, context)) {
+                            if (o == null) {
+                                o = EvalContext.NULL;
+                            }
+                            temp.add(o);
+                        }
+                        for (int j=temp.size()-1;j>=0;j--) {
+                            stack.push(temp.get(j));
+                        }
+                    }
+                }
+            }
+            return out;
+        }
+
+        @Override public int hashCode() {
+            return key.hashCode() + 1;
+        }
+
+        @Override public boolean equals(Object o) {
+            return o == this || (o instanceof DescendantKeyAxis && ((DescendantKeyAxis)o).key.equals(key));
+        }
+
+        @Override public String toString() {
+            return "axis-descendent-key(" + key.describe() + ")";
+        }
     }
 
     /**
@@ -149,7 +318,7 @@ interface Axis {
                     if (seen == null || !context.isUnique(n) || seen.add(n)) {
                         out.add(n);
                         temp.clear();
-                        for (Object o : context.get(n, EvalContext.WILDCARD)) {
+                        for (Object o : children(n, EvalContext.WILDCARD, context)) {
                             if (o == null) {
                                 o = EvalContext.NULL;
                             }
@@ -273,47 +442,69 @@ interface Axis {
      * @hidden
      */
     static Axis axisMatch(final Term term) {
-        return new Term() {
-            @Override public List<Object> eval(final List<Object> in, final List<Object> out, final EvalContext context) {
-                final Configuration.Logger logger = context.getLogger();
-                List<Object> tmp = new ArrayList<Object>();
-                int oldindex = context.getContextIndex();
-                List<Object> oldcontext = context.getContext();
-                List<Object> contextObjects = Collections.<Object>unmodifiableList(in);
-                for (int i=0;i<in.size();i++) {
-                    Object node = in.get(i);
-                    context.setContext(i, contextObjects);
-                    tmp.clear();
-                    term.eval(Collections.<Object>singletonList(node), tmp, context);
-                    boolean match = false;
-                    if (!tmp.isEmpty()) {
-                        Object n = tmp.get(0);
-                        match = n == EvalContext.NULL || context.value(n) == null || Expr.booleanValueRequired(context, n);
-                    }
+        return Term.intern(new MatchAxis(term));
+    }
+
+    /**
+     * The implementation of {@link #axisMatch}
+     * @hidden
+     */
+    static class MatchAxis extends Term {
+        final Term term;
+
+        MatchAxis(Term term) {
+            this.term = term;
+        }
+
+        @Override public List<Object> eval(final List<Object> in, final List<Object> out, final EvalContext context) {
+            final Configuration.Logger logger = context.getLogger();
+            List<Object> tmp = new ArrayList<Object>();
+            int oldindex = context.getContextIndex();
+            List<Object> oldcontext = context.getContext();
+            List<Object> contextObjects = Collections.<Object>unmodifiableList(in);
+            for (int i=0;i<in.size();i++) {
+                Object node = in.get(i);
+                context.setContext(i, contextObjects);
+                tmp.clear();
+                term.eval(Collections.<Object>singletonList(node), tmp, context);
+                boolean match = false;
+                if (!tmp.isEmpty()) {
+                    Object n = tmp.get(0);
+                    match = n == EvalContext.NULL || context.value(n) == null || Expr.booleanValueRequired(context, n);
+                }
+                if (match) {
+                    out.add(node);
+                }
+                if (logger != null) {
                     if (match) {
-                        out.add(node);
-                    }
-                    if (logger != null) {
-                        if (match) {
-                            logger.log("match: " + node);
-                        } else {
-                            logger.log("miss: " + node);
-                        }
+                        logger.log("match: " + node);
+                    } else {
+                        logger.log("miss: " + node);
                     }
                 }
-                context.setContext(oldindex, oldcontext);
-                return out;
-            }
-            @Override public String toString() {
-                return "axis-match(" + term + ")";
             }
-            @Override public void log(Configuration.Logger logger) {
-                super.log(logger);
-                logger.enter();
-                term.log(logger);
-                logger.exit();
-            }
-        };
+            context.setContext(oldindex, oldcontext);
+            return out;
+        }
+
+        @Override public int hashCode() {
+            return term.hashCode() + 2;
+        }
+
+        @Override public boolean equals(Object o) {
+            return o == this || (o instanceof MatchAxis && ((MatchAxis)o).term.equals(term));
+        }
+
+        @Override public String toString() {
+            return "axis-match(" + term + ")";
+        }
+
+        @Override public void log(Configuration.Logger logger) {
+            super.log(logger);
+            logger.enter();
+            term.log(logger);
+            logger.exit();
+        }
     }
 
 }
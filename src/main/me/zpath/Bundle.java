@@ -0,0 +1,582 @@
+package me.zpath;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * A Bundle is a file of precompiled {@link ZPath} expressions and {@link ZTemplate} templates,
+ * each stored under a name. Compiling many expressions and templates from text can be
+ * a noticeable part of the time an application takes to start; a Bundle is created once,
+ * at build time, and loading an item from it reconstructs the compiled form directly, without
+ * tokenizing or parsing the source or reading any included templates.
+ * </p><p>
+ * Functions are stored by name and looked up in the {@link Configuration} the Bundle
+ * is loaded with, so custom functions must be registered there just as if the expressions
+ * were being compiled. The Configuration used to create the Bundle is not stored, nor are
+ * any parameters bound with {@link ZPath#bind}.
+ * </p>
+ * <pre style="background: #eee; border: 1px solid #888; font-size: 0.8em">
+ * // At build time
+ * Map&lt;String,Object&gt; map = new LinkedHashMap&lt;&gt;();
+ * map.put("titles", ZPath.compile("books/*&#x2F;title"));
+ * map.put("index", ZTemplate.compile(new File("index.html"), null));
+ * try (OutputStream out = new FileOutputStream("app.zpb")) {
+ *   Bundle.write(map, out);
+ * }
+ *
+ * // At runtime
+ * Bundle bundle = Bundle.load(new File("app.zpb"), config);
+ * ZPath titles = bundle.getPath("titles");
+ * ZTemplate index = bundle.getTemplate("index");
+ * </pre>
+ * <p>
+ * A bundle can also be created from the command line, see {@link #main}.
+ * The file is memory-mapped when loaded, and each item is only decoded the first time it's requested.
+ * A Bundle is thread-safe.
+ * </p>
+ */
+public final class Bundle {
+
+    private static final int MAGIC = 0x5a504231;        // "ZPB1"
+    private static final byte KIND_PATH = 'P', KIND_TEMPLATE = 'T';
+
+    // Tags for each item in the tree. Those from STRING to MATCH are numbered, in the order they
+    // are completed, and may be referred to again with REF, so shared sub-trees are stored once.
+    private static final byte NULL = 0, OPERATOR = 1, ROOT = 2, SELF = 3, PARENT = 4, ANCESTORS = 5, DESCENDANTS = 6, REF = 7;
+    private static final byte STRING = 16, INTEGER = 17, REAL = 18, EXPR = 19, PATH = 20, FUNCTION = 21, PARAMETER = 22, KEY = 23, MATCH = 24;
+    // The name of a key axis
+    private static final byte KEY_NONE = 0, KEY_WILDCARD = 1, KEY_STRING = 2, KEY_INTEGER = 3;
+
+    private static final Term[] OPERATORS = {
+        Term.BANG, Term.TILDE, Term.STAR, Term.SLASH, Term.PERCENT, Term.PLUS, Term.MINUS,
+        Term.GT, Term.LT, Term.GE, Term.LE, Term.EQ, Term.NE, Term.EEQ, Term.NEE,
+        Term.BITAND, Term.CARET, Term.BITOR, Term.AND, Term.OR, Term.QUESTION
+    };
+
+    private final ByteBuffer buf;
+    private final Configuration config;
+    private final Map<String,int[]> index;              // name to { kind, offset, length }
+    private final Map<String,Object> cache;
+
+    private Bundle(ByteBuffer buf, Configuration config) throws IOException {
+        this.buf = buf;
+        this.config = config;
+        this.cache = new ConcurrentHashMap<String,Object>();
+        try {
+            if (buf.getInt() != MAGIC) {
+                throw new IOException("Not a ZPath bundle");
+            }
+            int count = buf.getInt();
+            Map<String,int[]> index = new LinkedHashMap<String,int[]>();
+            for (int i=0;i<count;i++) {
+                String name = readString(buf);
+                int kind = buf.get();
+                int offset = buf.getInt();
+                int length = buf.getInt();
+                index.put(name, new int[] { kind, offset, length });
+            }
+            int start = buf.position();
+            for (int[] e : index.values()) {
+                e[1] += start;
+                if (e[1] < start || e[1] + e[2] > buf.limit()) {
+                    throw new IOException("Invalid ZPath bundle");
+                }
+            }
+            this.index = Collections.unmodifiableMap(index);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated ZPath bundle");
+        }
+    }
+
+    /**
+     * Load a Bundle from a file, which is memory-mapped
+     * @param file the file created by {@link #write}
+     * @param config the Configuration to use for the expressions and templates in the bundle, or null for a default
+     * @throws IOException if the file cannot be read or is not a bundle
+     * @return the Bundle
+     */
+    public static Bundle load(File file, Configuration config) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("File is null");
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The mapping remains valid once the channel is closed
+            return load(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), config);
+        }
+    }
+
+    /**
+     * Load a Bundle from a ByteBuffer, for example one read from a resource.
+     * The buffer is read from its current position and must not be modified while the Bundle is in use.
+     * @param buf the buffer containing data created by {@link #write}
+     * @param config the Configuration to use for the expressions and templates in the bundle, or null for a default
+     * @throws IOException if the data is not a bundle
+     * @return the Bundle
+     */
+    public static Bundle load(ByteBuffer buf, Configuration config) throws IOException {
+        if (buf == null) {
+            throw new IllegalArgumentException("Buffer is null");
+        }
+        return new Bundle(buf.slice().order(ByteOrder.BIG_ENDIAN), config == null ? new Configuration() : config);
+    }
+
+    /**
+     * Return the names of the items in this Bundle, in the order they were written
+     * @return the read-only set of names
+     */
+    public Set<String> names() {
+        return index.keySet();
+    }
+
+    /**
+     * Return the ZPath stored under the specified name
+     * @param name the name
+     * @return the ZPath, or null if there is no item with that name
+     * @throws IllegalArgumentException if the item with that name is a ZTemplate
+     */
+    public ZPath getPath(String name) {
+        return (ZPath)get(name, KIND_PATH);
+    }
+
+    /**
+     * Return the ZTemplate stored under the specified name
+     * @param name the name
+     * @return the ZTemplate, or null if there is no item with that name
+     * @throws IllegalArgumentException if the item with that name is a ZPath
+     */
+    public ZTemplate getTemplate(String name) {
+        return (ZTemplate)get(name, KIND_TEMPLATE);
+    }
+
+    private Object get(String name, byte kind) {
+        int[] e = index.get(name);
+        if (e == null) {
+            return null;
+        } else if (e[0] != kind) {
+            throw new IllegalArgumentException("\"" + name + "\" is a " + (e[0] == KIND_PATH ? "ZPath" : "ZTemplate"));
+        }
+        Object o = cache.get(name);
+        if (o == null) {
+            // Each reader has its own view of the buffer, so they can run in parallel
+            ByteBuffer b = buf.duplicate();
+            b.limit(e[1] + e[2]).position(e[1]);
+            Reader reader = new Reader(b, config);
+            try {
+                o = kind == KIND_PATH ? reader.readPath() : new ZTemplate(reader.readTemplateNode(), config);
+            } catch (BufferUnderflowException | ClassCastException | IndexOutOfBoundsException ex) {
+                throw new IllegalStateException("Invalid ZPath bundle entry \"" + name + "\"", ex);
+            }
+            Object o2 = cache.putIfAbsent(name, o);
+            if (o2 != null) {
+                o = o2;
+            }
+        }
+        return o;
+    }
+
+    /**
+     * Write a Bundle
+     * @param entries a map of names to the {@link ZPath} or {@link ZTemplate} to store under that name
+     * @param out the OutputStream to write to, which is not closed
+     * @throws IOException if the OutputStream throws an IOException
+     * @throws IllegalArgumentException if any value in the map is not a ZPath or ZTemplate, or is a {@link CompiledTemplate}
+     */
+    public static void write(Map<String,?> entries, OutputStream out) throws IOException {
+        if (entries == null) {
+            throw new IllegalArgumentException("Entries is null");
+        } else if (out == null) {
+            throw new IllegalArgumentException("OutputStream is null");
+        }
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream hout = new DataOutputStream(header);
+        hout.writeInt(MAGIC);
+        hout.writeInt(entries.size());
+        for (Map.Entry<String,?> e : entries.entrySet()) {
+            Object value = e.getValue();
+            int offset = data.size();
+            Writer writer = new Writer(new DataOutputStream(data));
+            byte kind;
+            if (value instanceof ZPath) {
+                kind = KIND_PATH;
+                writer.writePath((ZPath)value);
+            } else if (value instanceof CompiledTemplate) {
+                // Its template is compiled to Java, so there is nothing to store
+                throw new IllegalArgumentException("Value for \"" + e.getKey() + "\" is a CompiledTemplate");
+            } else if (value instanceof ZTemplate) {
+                kind = KIND_TEMPLATE;
+                writer.writeTemplateNode(((ZTemplate)value).root());
+            } else {
+                throw new IllegalArgumentException("Value for \"" + e.getKey() + "\" is not a ZPath or ZTemplate");
+            }
+            writeString(hout, e.getKey());
+            hout.writeByte(kind);
+            hout.writeInt(offset);
+            hout.writeInt(data.size() - offset);
+        }
+        hout.flush();
+        header.writeTo(out);
+        data.writeTo(out);
+        out.flush();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (buf.hasArray()) {
+            String s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+            buf.position(buf.position() + len);
+            return s;
+        }
+        byte[] b = new byte[len];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes one entry. Compiled Terms are interned, so a repeated sub-tree is usually the
+     * same object and is written as a reference to the first
+     */
+    private static class Writer {
+        private final DataOutputStream out;
+        private final Map<Object,Integer> refs = new IdentityHashMap<Object,Integer>();
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void writePath(ZPath path) throws IOException {
+            List<Term> terms = path.terms();
+            out.writeInt(terms.size());
+            for (Term t : terms) {
+                write(t);
+            }
+        }
+
+        void writeTemplateNode(ZTemplate.TemplateNode node) throws IOException {
+            out.writeBoolean(node.text != null);
+            if (node.text != null) {
+                writeString(out, node.text);
+            }
+            out.writeBoolean(node.expr != null);
+            if (node.expr != null) {
+                writePath(node.expr);
+            }
+            out.writeInt(node.line);
+            out.writeInt(node.column);
+            int count = 0;
+            for (ZTemplate.TemplateNode n=node.first();n!=null;n=n.next()) {
+                count++;
+            }
+            out.writeInt(count);
+            for (ZTemplate.TemplateNode n=node.first();n!=null;n=n.next()) {
+                writeTemplateNode(n);
+            }
+        }
+
+        /**
+         * Write a Term or Axis
+         */
+        void write(Object o) throws IOException {
+            if (o == null) {
+                out.writeByte(NULL);
+                return;
+            } else if (o == Axis.ROOT) {
+                out.writeByte(ROOT);
+                return;
+            } else if (o == Axis.SELF) {
+                out.writeByte(SELF);
+                return;
+            } else if (o == Axis.PARENT) {
+                out.writeByte(PARENT);
+                return;
+            } else if (o == Axis.ANCESTORS) {
+                out.writeByte(ANCESTORS);
+                return;
+            } else if (o == Axis.SELFORANYDESCENDENT) {
+                out.writeByte(DESCENDANTS);
+                return;
+            }
+            for (int i=0;i<OPERATORS.length;i++) {
+                if (o == OPERATORS[i]) {
+                    out.writeByte(OPERATOR);
+                    out.writeByte(i);
+                    return;
+                }
+            }
+            Integer ref = refs.get(o);
+            if (ref != null) {
+                out.writeByte(REF);
+                out.writeInt(ref.intValue());
+                return;
+            }
+            if (o instanceof Expr) {
+                Expr e = (Expr)o;
+                out.writeByte(EXPR);
+                write(e.op());
+                write(e.lhs());
+                write(e.rhs());
+                write(e.rrhs());
+            } else if (o instanceof Path) {
+                // Written before planning, which is repeated when it's read
+                List<Axis> axes = new ArrayList<Axis>();
+                for (Axis axis : ((Path)o).axes()) {
+                    if (axis instanceof Axis.DescendantKeyAxis) {
+                        axes.add(Axis.SELFORANYDESCENDENT);
+                        axes.add(((Axis.DescendantKeyAxis)axis).key);
+                    } else {
+                        axes.add(axis);
+                    }
+                }
+                out.writeByte(PATH);
+                out.writeInt(axes.size());
+                for (Axis axis : axes) {
+                    write(axis);
+                }
+            } else if (o instanceof FunctionAxis) {
+                FunctionAxis f = (FunctionAxis)o;
+                out.writeByte(FUNCTION);
+                writeString(out, f.name());
+                out.writeBoolean(f.isStep());
+                out.writeInt(f.args().size());
+                for (Term t : f.args()) {
+                    write(t);
+                }
+            } else if (o instanceof Parameter) {
+                out.writeByte(PARAMETER);
+                writeString(out, ((Parameter)o).name());
+            } else if (o instanceof Axis.KeyAxis) {
+                Axis.KeyAxis k = (Axis.KeyAxis)o;
+                out.writeByte(KEY);
+                if (k.name == null) {
+                    out.writeByte(KEY_NONE);
+                } else if (k.name == EvalContext.WILDCARD) {
+                    out.writeByte(KEY_WILDCARD);
+                } else if (k.name instanceof Integer) {
+                    out.writeByte(KEY_INTEGER);
+                    out.writeInt(((Integer)k.name).intValue());
+                } else {
+                    out.writeByte(KEY_STRING);
+                    writeString(out, k.name.toString());
+                }
+                out.writeInt(k.index);
+            } else if (o instanceof Axis.MatchAxis) {
+                out.writeByte(MATCH);
+                write(((Axis.MatchAxis)o).term);
+            } else if (o.getClass() == Term.class && ((Term)o).isString()) {
+                out.writeByte(STRING);
+                writeString(out, ((Term)o).stringValue());
+            } else if (o.getClass() == Term.class && ((Term)o).isInteger()) {
+                out.writeByte(INTEGER);
+                out.writeInt(((Term)o).numberValue().intValue());
+            } else if (o.getClass() == Term.class && ((Term)o).isReal()) {
+                out.writeByte(REAL);
+                out.writeDouble(((Term)o).numberValue().doubleValue());
+            } else {
+                throw new IllegalStateException("Can't write " + o);
+            }
+            refs.put(o, Integer.valueOf(refs.size()));
+        }
+    }
+
+    /**
+     * Reads one entry, the reverse of {@link Writer}
+     */
+    private static class Reader {
+        private final ByteBuffer in;
+        private final Configuration config;
+        private final List<Object> refs = new ArrayList<Object>();
+
+        Reader(ByteBuffer in, Configuration config) {
+            this.in = in;
+            this.config = config;
+        }
+
+        ZPath readPath() {
+            int count = in.getInt();
+            List<Term> terms = new ArrayList<Term>(count);
+            for (int i=0;i<count;i++) {
+                terms.add((Term)read());
+            }
+            return new ZPath(terms, config, null);
+        }
+
+        ZTemplate.TemplateNode readTemplateNode() {
+            String text = in.get() != 0 ? readString(in) : null;
+            ZPath expr = in.get() != 0 ? readPath() : null;
+            int line = in.getInt();
+            int column = in.getInt();
+            ZTemplate.TemplateNode node = new ZTemplate.TemplateNode(text, expr, line, column);
+            int count = in.getInt();
+            for (int i=0;i<count;i++) {
+                node.add(readTemplateNode());
+            }
+            return node;
+        }
+
+        Object read() {
+            int tag = in.get();
+            Object o;
+            switch (tag) {
+                case NULL:
+                    return null;
+                case OPERATOR:
+                    return OPERATORS[in.get()];
+                case ROOT:
+                    return Axis.ROOT;
+                case SELF:
+                    return Axis.SELF;
+                case PARENT:
+                    return Axis.PARENT;
+                case ANCESTORS:
+                    return Axis.ANCESTORS;
+                case DESCENDANTS:
+                    return Axis.SELFORANYDESCENDENT;
+                case REF:
+                    return refs.get(in.getInt());
+                case STRING:
+                    o = Term.newString(readString(in));
+                    break;
+                case INTEGER:
+                    o = Term.newInteger(in.getInt());
+                    break;
+                case REAL:
+                    o = Term.newReal(in.getDouble());
+                    break;
+                case EXPR: {
+                    Term op = (Term)read();
+                    Term lhs = (Term)read();
+                    Term rhs = (Term)read();
+                    Term rrhs = (Term)read();
+                    o = Term.intern(new Expr(op, lhs, rhs, rrhs));
+                    break;
+                }
+                case PATH: {
+                    int count = in.getInt();
+                    List<Axis> axes = new ArrayList<Axis>(count);
+                    for (int i=0;i<count;i++) {
+                        axes.add((Axis)read());
+                    }
+                    o = Term.intern(new Path(axes));
+                    break;
+                }
+                case FUNCTION: {
+                    String name = readString(in);
+                    boolean step = in.get() != 0;
+                    int count = in.getInt();
+                    List<Term> args = new ArrayList<Term>(count);
+                    for (int i=0;i<count;i++) {
+                        args.add((Term)read());
+                    }
+                    // As ZPath.parseFunction, but there's no need to fold constants; that
+                    // was done when the bundle was written
+                    Function function = config.getFunction(name);
+                    if (function != null && !function.verify(name, args)) {
+                        throw new IllegalArgumentException("invalid function arguments for \"" + name + "\"");
+                    }
+                    Object prepared = function instanceof TypedFunction ? ((TypedFunction)function).prepare(name, args, config) : null;
+                    o = Term.intern(new FunctionAxis(function, name, args, step, prepared));
+                    break;
+                }
+                case PARAMETER:
+                    o = Term.intern(new Parameter(readString(in)));
+                    break;
+                case KEY: {
+                    int type = in.get();
+                    Object name = type == KEY_WILDCARD ? EvalContext.WILDCARD : type == KEY_INTEGER ? (Object)Integer.valueOf(in.getInt()) : type == KEY_STRING ? readString(in) : null;
+                    o = Axis.axisKey(name, in.getInt());
+                    break;
+                }
+                case MATCH:
+                    o = Axis.axisMatch((Term)read());
+                    break;
+                default:
+                    throw new IllegalStateException("Invalid tag " + tag);
+            }
+            refs.add(o);
+            return o;
+        }
+    }
+
+    /**
+     * Create a Bundle from the command line. Run with <code>--help</code> for the options
+     * @param args the arguments
+     * @throws Exception if the bundle can't be created
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String,Object> entries = new LinkedHashMap<String,Object>();
+        String outfile = null;
+        Configuration config = new Configuration();
+        for (int i=0;i<args.length;i++) {
+            String s = args[i];
+            if ((s.equals("--out") || s.equals("-o")) && ++i < args.length) {
+                outfile = args[i];
+            } else if ((s.equals("--eval") || s.equals("-e")) && ++i < args.length) {
+                s = args[i];
+                int ix = s.indexOf('=');
+                if (ix <= 0) {
+                    help("Expression \"" + s + "\" is not in the form name=zpath");
+                }
+                entries.put(s.substring(0, ix), ZPath.compile(s.substring(ix + 1)));
+            } else if ((s.equals("--paths") || s.equals("-p")) && ++i < args.length) {
+                Properties p = new Properties();
+                try (InputStream in = new FileInputStream(args[i])) {
+                    p.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+                }
+                for (String name : new TreeSet<String>(p.stringPropertyNames())) {
+                    entries.put(name, ZPath.compile(p.getProperty(name)));
+                }
+            } else if ((s.equals("--include") || s.equals("-i")) && ++i < args.length) {
+                config.setTemplateIncluder(Includer.getDefault(new File(args[i])));
+            } else if ((s.equals("--template") || s.equals("-t")) && ++i < args.length) {
+                entries.put(args[i], ZTemplate.compile(new File(args[i]), config));
+            } else if (s.equals("--help") || s.equals("-h")) {
+                help(null);
+            } else {
+                help("Invalid option \"" + s + "\"");
+            }
+        }
+        if (outfile == null || entries.isEmpty()) {
+            help(outfile == null ? "No output file" : "Nothing to write");
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outfile))) {
+            write(entries, out);
+        }
+        System.err.println("Wrote " + entries.size() + " items to \"" + outfile + "\"");
+    }
+
+    private static void help(String err) {
+        if (err != null) {
+            System.err.println("ERROR: " + err);
+            System.err.println();
+        }
+        System.err.println("Usage: java -cp zpath.jar me.zpath.Bundle <options>");
+        System.err.println();
+        System.err.println("  Options");
+        System.err.println();
+        System.err.println("    --help | -h                this message");
+        System.err.println("    --out | -o {file}          the bundle file to write");
+        System.err.println("    --eval | -e {name=zpath}   add a ZPath expression (may be used");
+        System.err.println("                               more than once)");
+        System.err.println("    --paths | -p {file}        add the ZPath expressions from a properties");
+        System.err.println("                               file of name=zpath lines");
+        System.err.println("    --template | -t {file}     add a ZTemplate, named by its filename as");
+        System.err.println("                               specified (may be used more than once)");
+        System.err.println("    --include | -i {dir}       allow templates listed after this option to");
+        System.err.println("                               include files from this directory");
+        System.err.println();
+        System.exit(err == null ? 0 : 1);
+    }
+
+}
@@ -0,0 +1,211 @@
+package me.zpath;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * An Appendable which encodes to UTF-8 and writes to an OutputStream, a WritableByteChannel or a ByteBuffer.
+ * Text which has already been encoded can be written with {@link #write}, so the static text in a
+ * template is encoded once when it's compiled rather than every time it's rendered. Output is
+ * collected in a buffer, except for large pre-encoded text which is written directly: for a
+ * channel that supports it, in a single gathering write with the buffer.
+ */
+final class ByteOutput implements Appendable, Flushable {
+
+    private static final int BUFSIZE = 8192;
+
+    private OutputStream stream;
+    private final WritableByteChannel channel;
+    private final ByteBuffer target;
+    private final byte[] buf;
+    private int len;
+    private char high;          // a high surrogate waiting for the rest of its pair
+
+    ByteOutput(OutputStream stream) {
+        this(stream, null, null);
+    }
+
+    ByteOutput(WritableByteChannel channel) {
+        this(null, channel, null);
+    }
+
+    ByteOutput(ByteBuffer target) {
+        this(null, null, target);
+    }
+
+    private ByteOutput(OutputStream stream, WritableByteChannel channel, ByteBuffer target) {
+        this.stream = stream;
+        this.channel = channel;
+        this.target = target;
+        this.buf = new byte[BUFSIZE];
+    }
+
+    /**
+     * Start writing to a different OutputStream, discarding anything that wasn't written to the last one
+     * @param stream the OutputStream
+     */
+    void reset(OutputStream stream) {
+        if (this.stream == null) {
+            throw new IllegalStateException("Not writing to an OutputStream");
+        }
+        this.stream = stream;
+        this.len = 0;
+        this.high = 0;
+    }
+
+    @Override public ByteOutput append(char c) throws IOException {
+        encode(c, (char)0);
+        return this;
+    }
+
+    @Override public ByteOutput append(CharSequence s) throws IOException {
+        return append(s, 0, s.length());
+    }
+
+    @Override public ByteOutput append(CharSequence s, int start, int end) throws IOException {
+        byte[] buf = this.buf;
+        for (int i=start;i<end;i++) {
+            char c = s.charAt(i);
+            if (c < 0x80 && high == 0) {
+                if (len == buf.length) {
+                    flushBuffer();
+                }
+                buf[len++] = (byte)c;
+            } else {
+                char next = i + 1 < end ? s.charAt(i + 1) : 0;
+                encode(c, next);
+                if (Character.isHighSurrogate(c) && Character.isLowSurrogate(next)) {
+                    i++;        // the pair was encoded together
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Encode one character, which may be the first of a surrogate pair with the next character,
+     * or the second of a pair whose first character was the last one appended
+     * @param c the character
+     * @param next the next character, if known, or 0
+     */
+    private void encode(char c, char next) throws IOException {
+        if (high != 0) {
+            char h = high;
+            high = 0;
+            if (Character.isLowSurrogate(c)) {
+                codepoint(Character.toCodePoint(h, c));
+                return;
+            }
+            codepoint('?');
+        }
+        if (Character.isHighSurrogate(c)) {
+            if (Character.isLowSurrogate(next)) {
+                codepoint(Character.toCodePoint(c, next));
+            } else if (next == 0) {
+                high = c;
+            } else {
+                codepoint('?');
+            }
+        } else if (Character.isLowSurrogate(c)) {
+            codepoint('?');     // unpaired, as String.getBytes does
+        } else {
+            codepoint(c);
+        }
+    }
+
+    private void codepoint(int c) throws IOException {
+        if (len + 4 > buf.length) {
+            flushBuffer();
+        }
+        byte[] buf = this.buf;
+        if (c < 0x80) {
+            buf[len++] = (byte)c;
+        } else if (c < 0x800) {
+            buf[len++] = (byte)(0xc0 | (c >> 6));
+            buf[len++] = (byte)(0x80 | (c & 0x3f));
+        } else if (c < 0x10000) {
+            buf[len++] = (byte)(0xe0 | (c >> 12));
+            buf[len++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+            buf[len++] = (byte)(0x80 | (c & 0x3f));
+        } else {
+            buf[len++] = (byte)(0xf0 | (c >> 18));
+            buf[len++] = (byte)(0x80 | ((c >> 12) & 0x3f));
+            buf[len++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+            buf[len++] = (byte)(0x80 | (c & 0x3f));
+        }
+    }
+
+    /**
+     * Write text that has already been encoded as UTF-8
+     * @param b the bytes
+     */
+    void write(byte[] b) throws IOException {
+        if (high != 0) {
+            high = 0;
+            codepoint('?');
+        }
+        if (b.length <= buf.length - len) {
+            System.arraycopy(b, 0, buf, len, b.length);
+            len += b.length;
+        } else if (channel instanceof GatheringByteChannel && len > 0) {
+            ByteBuffer[] bufs = new ByteBuffer[] { ByteBuffer.wrap(buf, 0, len), ByteBuffer.wrap(b) };
+            while (bufs[1].hasRemaining()) {
+                ((GatheringByteChannel)channel).write(bufs);
+            }
+            len = 0;
+        } else {
+            flushBuffer();
+            if (stream != null) {
+                stream.write(b);
+            } else if (channel != null) {
+                ByteBuffer bb = ByteBuffer.wrap(b);
+                while (bb.hasRemaining()) {
+                    channel.write(bb);
+                }
+            } else {
+                target.put(b);
+            }
+        }
+    }
+
+    /**
+     * Write any buffered output to the stream, channel or buffer. The stream or channel itself is not flushed
+     * @throws BufferOverflowException if writing to a ByteBuffer that is full
+     */
+    void finish() throws IOException {
+        if (high != 0) {
+            high = 0;
+            codepoint('?');
+        }
+        flushBuffer();
+    }
+
+    /**
+     * Write any buffered output, and flush the OutputStream if there is one.
+     * A pending high surrogate is kept, as the rest of the pair may still be appended
+     */
+    @Override public void flush() throws IOException {
+        flushBuffer();
+        if (stream != null) {
+            stream.flush();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (len > 0) {
+            if (stream != null) {
+                stream.write(buf, 0, len);
+            } else if (channel != null) {
+                ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+                while (bb.hasRemaining()) {
+                    channel.write(bb);
+                }
+            } else {
+                target.put(buf, 0, len);
+            }
+            len = 0;
+        }
+    }
+
+}
@@ -0,0 +1,391 @@
+package me.zpath;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.tools.*;
+
+/**
+ * <p>
+ * A {@link ZTemplate} which has been converted to Java source and compiled, so applying it
+ * runs the template directly rather than interpreting it. Static text becomes a constant
+ * write, each section becomes a loop and each expression a call to a {@link ZPath} which is
+ * compiled once, when the template is created. The result is exactly as for the ZTemplate
+ * it was generated from, and it can be used anywhere that ZTemplate was.
+ * </p><p>
+ * Templates can be converted at build time with the command line, eg
+ * </p>
+ * <pre>
+ * java -cp zpath.jar me.zpath.CompiledTemplate -d src/generated -c com.example.Invoice invoice.zt
+ * </pre>
+ * <p>
+ * which writes <code>src/generated/com/example/Invoice.java</code>, with a constructor that
+ * takes the {@link Configuration}. Or they can be converted while running with {@link #load},
+ * which requires a Java compiler to be available.
+ * </p><p>
+ * Only the template is compiled; the {@link ZPath} expressions in it are evaluated as usual.
+ * </p>
+ */
+public abstract class CompiledTemplate extends ZTemplate {
+
+    private static final int MAXSTATEMENTS = 500;       // per method, to stay well under the 64KB limit
+    private static final int MAXTEXT = 8192;            // per string constant, which is limited to 65535 bytes
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    /**
+     * Create a new CompiledTemplate
+     * @param config the configuration, or null for a default
+     */
+    protected CompiledTemplate(Configuration config) {
+        super(new TemplateNode((String)null, 0, 0), config == null ? new Configuration() : config);
+    }
+
+    /**
+     * Compile an expression used in the template, with the Configuration for this template
+     * @param expression the expression
+     * @return the compiled expression
+     */
+    protected final ZPath compile(String expression) {
+        return ZPath.compile(expression, config());
+    }
+
+    /**
+     * Render the template. This is called by all the <code>apply</code> methods
+     * @param context the context to render with, which writes to the output
+     * @throws IOException if the output throws an IOException
+     */
+    @Override protected abstract void render(TemplateContext context) throws IOException;
+
+    /**
+     * Apply the model to the template, returning a Reader to read the merged template from.
+     * The template is rendered completely before this method returns
+     * @param model the Model, which will be passed to any top-level embedded {@link ZPath} expressions
+     * @return the Reader to read the combined model from
+     */
+    @Override public Reader apply(Object model) {
+        StringBuilder sb = new StringBuilder();
+        apply(model, sb);
+        return new StringReader(sb.toString());
+    }
+
+    /**
+     * Apply the model to the template, returning a channel to read the merged template from,
+     * encoded as UTF-8. The template is rendered completely before this method returns
+     * @param model the Model, which will be passed to any top-level embedded {@link ZPath} expressions
+     * @return the channel to read the combined model from
+     */
+    @Override public ReadableByteChannel applyChannel(Object model) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            apply(model, out);
+        } catch (IOException e) {
+            throw new RuntimeException(e);      // can't happen
+        }
+        return Channels.newChannel(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    /**
+     * Return a copy of this template that will override the Locale from the Configuration
+     * with the supplied value, by creating a new instance with a copy of the configuration.
+     * @param locale the locale
+     * @return a copy of this template with the overriden locale, or this template if the locale is unchanged
+     */
+    @Override public ZTemplate withLocale(Locale locale) {
+        if (locale == null) {
+            throw new IllegalArgumentException("Locale is null");
+        }
+        if (locale.equals(config().getLocale())) {
+            return this;
+        }
+        Configuration conf = new Configuration(config()).setLocale(locale);
+        try {
+            return getClass().getConstructor(Configuration.class).newInstance(conf);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't create " + getClass().getName() + "(Configuration)", e);
+        }
+    }
+
+    /**
+     * Generate the Java source for a template. The class extends CompiledTemplate and has two
+     * public constructors, one which takes a {@link Configuration} and one which uses the default
+     * @param template the template
+     * @param className the fully-qualified name of the class to generate
+     * @return the Java source
+     */
+    public static String generate(ZTemplate template, String className) {
+        if (template == null) {
+            throw new IllegalArgumentException("Template is null");
+        } else if (template instanceof CompiledTemplate) {
+            throw new IllegalArgumentException("Template is already compiled");
+        } else if (className == null) {
+            throw new IllegalArgumentException("Class name is null");
+        }
+        int ix = className.lastIndexOf('.');
+        String pkg = ix < 0 ? null : className.substring(0, ix);
+        String name = className.substring(ix + 1);
+        Generator g = new Generator(template.program());
+        g.method(0, template.program().size());
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("// Generated by me.zpath.CompiledTemplate - do not edit\n");
+        if (pkg != null) {
+            sb.append("package " + pkg + ";\n\n");
+        }
+        sb.append("import me.zpath.*;\n\n");
+        sb.append("public class " + name + " extends CompiledTemplate {\n\n");
+        for (int i=0;i<g.expressions.size();i++) {
+            sb.append("    private final ZPath p" + i + ";\n");
+        }
+        sb.append("\n");
+        sb.append("    public " + name + "() {\n");
+        sb.append("        this(null);\n");
+        sb.append("    }\n\n");
+        sb.append("    public " + name + "(Configuration config) {\n");
+        sb.append("        super(config);\n");
+        for (int i=0;i<g.expressions.size();i++) {
+            sb.append("        p" + i + " = compile(");
+            literal(g.expressions.get(i), sb);
+            sb.append(");\n");
+        }
+        sb.append("    }\n\n");
+        sb.append("    @Override protected void render(TemplateContext c) throws java.io.IOException {\n");
+        sb.append("        render0(c);\n");
+        sb.append("    }\n");
+        sb.append(g.methods);
+        sb.append("\n}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Generates a method for each section in the Program, so the loop body is a method call
+     */
+    private static final class Generator {
+        final Program program;
+        final List<String> expressions = new ArrayList<String>();
+        final Map<String,Integer> fields = new HashMap<String,Integer>();
+        final StringBuilder methods = new StringBuilder();
+        int count;
+
+        Generator(Program program) {
+            this.program = program;
+        }
+
+        private String field(int pc) {
+            String s = program.source(pc);
+            Integer i = fields.get(s);
+            if (i == null) {
+                fields.put(s, i = expressions.size());
+                expressions.add(s);
+            }
+            return "p" + i;
+        }
+
+        /**
+         * Write the method for the instructions from start to end, and return its name
+         */
+        String method(int start, int end) {
+            String name = "render" + (count++);
+            List<String> statements = new ArrayList<String>();
+            for (int pc=start;pc<end;) {
+                switch (program.op(pc)) {
+                    case Program.TEXT: {
+                        String text = program.text(pc);
+                        for (int i=0;i<text.length();i+=MAXTEXT) {
+                            StringBuilder sb = new StringBuilder("c.text(");
+                            literal(text.substring(i, Math.min(text.length(), i + MAXTEXT)), sb);
+                            statements.add(sb.append(");").toString());
+                        }
+                        pc++;
+                        break;
+                    }
+                    case Program.EVAL:
+                        statements.add("c.value(" + field(pc) + ", " + program.isEscapable(pc) + ");");
+                        pc++;
+                        break;
+                    case Program.LOOP_BEGIN: {
+                        String f = field(pc);
+                        int next = program.jump(pc);
+                        String body = method(pc + 1, next - 1);
+                        statements.add("if (c.begin(" + f + ")) {\n            do {\n                " + body + "(c);\n            } while (c.next());\n        }");
+                        pc = next;
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException();
+                }
+            }
+            if (statements.size() > MAXSTATEMENTS) {
+                // Too long for one method: split into several, called in order
+                List<String> calls = new ArrayList<String>();
+                for (int i=0;i<statements.size();i+=MAXSTATEMENTS) {
+                    String part = name + "_" + (i / MAXSTATEMENTS);
+                    write(part, statements.subList(i, Math.min(statements.size(), i + MAXSTATEMENTS)));
+                    calls.add(part + "(c);");
+                }
+                statements = calls;
+            }
+            write(name, statements);
+            return name;
+        }
+
+        private void write(String name, List<String> statements) {
+            methods.append("\n    private void " + name + "(TemplateContext c) throws java.io.IOException {\n");
+            for (String s : statements) {
+                methods.append("        " + s + "\n");
+            }
+            methods.append("    }\n");
+        }
+    }
+
+    /**
+     * Append the string as a Java string literal
+     */
+    private static void literal(String s, StringBuilder sb) {
+        sb.append('"');
+        for (int i=0;i<s.length();i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c == '\r') {
+                sb.append("\\r");
+            } else if (c == '\t') {
+                sb.append("\\t");
+            } else if (c < 0x20 || c >= 0x7f) {
+                sb.append(String.format("\\u%04x", (int)c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Generate, compile and load a CompiledTemplate for the template, using the
+     * Java compiler from the running JVM. The new template has the same Configuration
+     * @param template the template
+     * @return the compiled template
+     * @throws IllegalStateException if no Java compiler is available, or it fails
+     */
+    public static CompiledTemplate load(ZTemplate template) {
+        if (template instanceof CompiledTemplate) {
+            return (CompiledTemplate)template;
+        }
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("No Java compiler available");
+        }
+        final String className = "me.zpath.generated.Template" + COUNTER.incrementAndGet();
+        final String source = generate(template, className);
+        final Map<String,ByteArrayOutputStream> classes = new HashMap<String,ByteArrayOutputStream>();
+        JavaFileObject input = new SimpleJavaFileObject(URI.create("string:///" + className.replace('.', '/') + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        JavaFileManager manager = new ForwardingJavaFileManager<JavaFileManager>(compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+            @Override public JavaFileObject getJavaFileForOutput(Location location, final String name, JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("mem:///" + name.replace('.', '/') + kind.extension), kind) {
+                    @Override public OutputStream openOutputStream() {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        classes.put(name, out);
+                        return out;
+                    }
+                };
+            }
+        };
+        // This class may not be on the system classpath, eg in a servlet container
+        String classpath = System.getProperty("java.class.path");
+        try {
+            File f = new File(CompiledTemplate.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            classpath = f + File.pathSeparator + classpath;
+        } catch (Exception e) { }
+        StringWriter errors = new StringWriter();
+        List<String> options = Arrays.asList("-classpath", classpath, "-nowarn");
+        if (!compiler.getTask(errors, manager, null, options, null, Collections.singletonList(input)).call()) {
+            throw new IllegalStateException("Compiling template failed: " + errors);
+        }
+        ClassLoader loader = new ClassLoader(CompiledTemplate.class.getClassLoader()) {
+            @Override protected Class<?> findClass(String name) throws ClassNotFoundException {
+                ByteArrayOutputStream out = classes.get(name);
+                if (out == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                byte[] b = out.toByteArray();
+                return defineClass(name, b, 0, b.length);
+            }
+        };
+        try {
+            return (CompiledTemplate)loader.loadClass(className).getConstructor(Configuration.class).newInstance(template.config());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Loading template failed", e);
+        }
+    }
+
+    /**
+     * Generate the Java source for a template from the command line. Run with <code>--help</code> for the options
+     * @param args the arguments
+     * @throws Exception if the template can't be read or the source can't be written
+     */
+    public static void main(String[] args) throws Exception {
+        File dir = new File(".");
+        String className = null;
+        Configuration config = new Configuration();
+        int count = 0;
+        for (int i=0;i<args.length;i++) {
+            String s = args[i];
+            if ((s.equals("--dir") || s.equals("-d")) && ++i < args.length) {
+                dir = new File(args[i]);
+            } else if ((s.equals("--class") || s.equals("-c")) && ++i < args.length) {
+                className = args[i];
+            } else if ((s.equals("--include") || s.equals("-i")) && ++i < args.length) {
+                config.setTemplateIncluder(Includer.getDefault(new File(args[i])));
+            } else if (s.equals("--help") || s.equals("-h")) {
+                help(null);
+            } else if (s.startsWith("-")) {
+                help("Invalid option \"" + s + "\"");
+            } else if (className == null) {
+                help("No class name for \"" + s + "\"");
+            } else {
+                String source = generate(ZTemplate.compile(new File(s), config), className);
+                File file = new File(dir, className.replace('.', File.separatorChar) + ".java");
+                if (file.getParentFile() != null) {
+                    file.getParentFile().mkdirs();
+                }
+                Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+                System.err.println("Wrote \"" + s + "\" to \"" + file + "\"");
+                className = null;
+                count++;
+            }
+        }
+        if (count == 0) {
+            help("No templates");
+        }
+    }
+
+    private static void help(String err) {
+        if (err != null) {
+            System.err.println("ERROR: " + err);
+            System.err.println();
+        }
+        System.err.println("Usage: java -cp zpath.jar me.zpath.CompiledTemplate <options> [-c <class> <file>]...");
+        System.err.println();
+        System.err.println("  Options");
+        System.err.println();
+        System.err.println("    --help | -h                this message");
+        System.err.println("    --dir | -d {dir}           the source directory to write to (default is");
+        System.err.println("                               the current directory)");
+        System.err.println("    --class | -c {name}        the fully-qualified class name to generate for");
+        System.err.println("                               the next template");
+        System.err.println("    --include | -i {dir}       allow templates listed after this option to");
+        System.err.println("                               include files from this directory");
+        System.err.println();
+        System.exit(err == null ? 0 : 1);
+    }
+
+}
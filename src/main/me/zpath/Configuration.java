@@ -1,10 +1,11 @@
 package me.zpath;
 
 import java.util.*;
-import java.util.regex.*;
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.Executor;
 import java.math.*;
+import java.nio.charset.Charset;
 import java.time.*;
 import java.time.format.*;
 import java.time.temporal.*;
@@ -15,30 +16,31 @@ import java.time.temporal.*;
  */
 public class Configuration {
 
-    private static final Set<Function> FUNCTIONS = new LinkedHashSet<Function>();
+    private static final FunctionRegistry FUNCTIONS = new FunctionRegistry();
     private static final Set<EvalFactory> FACTORIES = new LinkedHashSet<EvalFactory>();
-    private static final Map<String,Pattern> PATTERNCACHE = new LinkedHashMap<String,Pattern>(32, 0.75f, true) {
-        protected boolean removeEldestEntry(Map.Entry<String,Pattern> eldest) {
-            return size() > 64;
-        }
-    };
 
     private Set<EvalFactory> factories;
-    private Set<Function> functions;
+    private FunctionRegistry functions;
     private Logger logger;
     private Locale locale = Locale.getDefault();
     private Includer includer = null;
     private int maxiterations = 1000000;
     private int maxdepth = 3;
     private boolean htmlEscape = true;
+    private Charset escapeCharset;
+    private BitSet escapeEncodable;
+    private boolean linearRegex;
     private long maxbytes = 1024*1024*10;               // 10MB
+    private int flushsize;
+    private boolean flushAtSections;
+    private Executor executor;
     private double mindouble = 0.00000001;
 
     /**
      * Create a new Configuration
      */
     public Configuration() {
-        functions = new LinkedHashSet<Function>(FUNCTIONS);
+        functions = new FunctionRegistry(FUNCTIONS);
         factories = new LinkedHashSet<EvalFactory>(FACTORIES);
     }
 
@@ -47,7 +49,7 @@ public class Configuration {
      * @param config the configuration to copy
      */
     public Configuration(Configuration config) {
-        functions = new LinkedHashSet<Function>(config.functions);
+        functions = new FunctionRegistry(config.functions);
         factories = new LinkedHashSet<EvalFactory>(config.factories);
         logger = config.logger;
         locale = config.locale;
@@ -55,7 +57,13 @@ public class Configuration {
         maxiterations = config.maxiterations;
         maxdepth = config.maxdepth;
         htmlEscape = config.htmlEscape;
+        escapeCharset = config.escapeCharset;
+        escapeEncodable = config.escapeEncodable;
+        linearRegex = config.linearRegex;
         maxbytes = config.maxbytes;
+        flushsize = config.flushsize;
+        flushAtSections = config.flushAtSections;
+        executor = config.executor;
         mindouble = config.mindouble;
     }
 
@@ -103,6 +111,16 @@ public class Configuration {
         return functions;
     }
 
+    /**
+     * Return the first function registered with this Configuration that matches
+     * the specified name, or null if there is none.
+     * @param name the function name
+     * @return the Function or null
+     */
+    public Function getFunction(String name) {
+        return functions.get(name);
+    }
+
     /**
      * Return all the factories registered with this Configuration
      * @return the factories
@@ -133,7 +151,7 @@ public class Configuration {
 
     /**
      * Return the maximum number of iterations that a ZTemplate can cycle
-     * for before failing.
+     * for before failing. Each item a section is repeated for is one iteration.
      * @return the described value
      */
     public int getTemplateMaxIterations() {
@@ -142,7 +160,8 @@ public class Configuration {
 
     /**
      * Set the maximum nuber of iterations that a ZTemplate can cycle
-     * for before failing.
+     * for before failing. Each item a section is repeated for is one iteration,
+     * so this limits the total number of section repeats in one application of the template.
      * @param maxiterations the maximum iterations, which defaults to 1000000.
      * @return this
      */
@@ -174,6 +193,75 @@ public class Configuration {
         return maxbytes;
     }
 
+    /**
+     * Set how often a {@link ZTemplate} flushes its output while it's being applied, so the start
+     * of a large document can be sent before the rest of it has been rendered. When this many
+     * characters have been written since the output was last flushed, it's flushed again.
+     * This applies to {@link ZTemplate#apply(Object,java.io.OutputStream)}, and to
+     * {@link ZTemplate#apply(Object,Appendable)} if the Appendable is {@link java.io.Flushable},
+     * such as a Writer. Output to a channel is written at the same points, but channels aren't flushed.
+     * @param flushsize the number of characters to write between flushes, or 0 to not flush (the default)
+     * @return this
+     * @see #setTemplateFlushAtSections
+     */
+    public Configuration setTemplateFlushSize(int flushsize) {
+        this.flushsize = Math.max(0, flushsize);
+        return this;
+    }
+
+    /**
+     * Return the value set by {@link #setTemplateFlushSize}
+     * @return the number of characters to write between flushes, or 0 to not flush
+     */
+    public int getTemplateFlushSize() {
+        return flushsize;
+    }
+
+    /**
+     * Set whether a {@link ZTemplate} flushes its output at the end of each top-level section,
+     * as for {@link #setTemplateFlushSize}. The default is <code>false</code>
+     * @param flush whether to flush the output at the end of each top-level section
+     * @return this
+     */
+    public Configuration setTemplateFlushAtSections(boolean flush) {
+        this.flushAtSections = flush;
+        return this;
+    }
+
+    /**
+     * Return the value set by {@link #setTemplateFlushAtSections}
+     * @return whether to flush the output at the end of each top-level section
+     */
+    public boolean isTemplateFlushAtSections() {
+        return flushAtSections;
+    }
+
+    /**
+     * Set an Executor to render the top-level sections of a {@link ZTemplate} in parallel.
+     * If set, each top-level <code>{{#section}}</code> is evaluated and rendered by the Executor
+     * into its own buffer, with its own EvalContext, while the main thread writes the buffers
+     * and the text between them in order, so the output is the same as rendering sequentially.
+     * This only helps if the template has several sections which are expensive to evaluate,
+     * and the model must be safe to read from more than one thread at once. The limits set by
+     * {@link #setTemplateMaxIterations} and {@link #setTemplateMaxOutputSize} apply to each
+     * section as it's rendered, and to the total as the sections are written.
+     * A {@link CompiledTemplate} always renders sequentially. The default is <code>null</code>
+     * @param executor the Executor, for example {@link java.util.concurrent.ForkJoinPool#commonPool}, or null to render sequentially
+     * @return this
+     */
+    public Configuration setTemplateExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Return the Executor set by {@link #setTemplateExecutor}
+     * @return the Executor, or null if templates are rendered sequentially
+     */
+    public Executor getTemplateExecutor() {
+        return executor;
+    }
+
     /**
      * Return the maximum depth a chain of includes into a ZTemplate can be before failing
      * @return the maximum depth
@@ -211,6 +299,61 @@ public class Configuration {
         return htmlEscape;
     }
 
+    /**
+     * Set the Charset that escaped text will be written in. By default, when a ZTemplate escapes
+     * a value for HTML or the <code>escape()</code> function is called, every non-ASCII character
+     * is written as a numeric character reference. If a Charset is set, only characters which are
+     * significant in markup, characters that are illegal in XML, and characters that can't be
+     * encoded in the Charset are escaped; the rest are left as they are. This should be the
+     * Charset the output will be encoded in - for example UTF-8 when applying a template to an
+     * OutputStream. The default is <code>null</code>
+     * @param charset the Charset escaped text will be written in, or null to escape all non-ASCII characters
+     * @return this
+     */
+    public Configuration setEscapeCharset(Charset charset) {
+        this.escapeCharset = charset;
+        this.escapeEncodable = charset == null ? null : Expr.encodable(charset);
+        return this;
+    }
+
+    /**
+     * Return the Charset set by {@link #setEscapeCharset}
+     * @return the Charset escaped text will be written in, or null if all non-ASCII characters are escaped
+     */
+    public Charset getEscapeCharset() {
+        return escapeCharset;
+    }
+
+    /**
+     * Return the characters that are not escaped because of the escape charset, or null if all non-ASCII characters are escaped
+     */
+    BitSet getEscapeEncodable() {
+        return escapeEncodable;
+    }
+
+    /**
+     * Set whether the regular expressions passed to <code>matches()</code> and <code>replace()</code>
+     * must be matched in linear time. If true, a pattern that could require backtracking (such as
+     * one with backreferences or lookaround) will fail to compile, but no pattern can take
+     * exponential time to match against a large value. This is recommended if expressions
+     * come from an untrusted source. The default is <code>false</code>.
+     * Expressions are compiled with the setting in effect at the time.
+     * @param linear whether to require linear-time regular expressions
+     * @return this
+     */
+    public Configuration setLinearTimeRegex(boolean linear) {
+        this.linearRegex = linear;
+        return this;
+    }
+
+    /**
+     * Return the flag set by {@link #setLinearTimeRegex}
+     * @return whether regular expressions must be matched in linear time
+     */
+    public boolean isLinearTimeRegex() {
+        return linearRegex;
+    }
+
     /**
      * Set the Includer to use when including content into ZTemplates created by this Configuration.
      * The default is <code>null</code>.
@@ -318,69 +461,54 @@ public class Configuration {
         FACTORIES.addAll(getServiceList(me.zpath.EvalFactory.class));
 
         // Core: union, intersection, key, index, count
-        FUNCTIONS.add(new Function() {
+        FUNCTIONS.add(new TypedFunction(0, -1, TypedFunction.PURE, "union") {
             //
             // union(...)               a union of all its arguments, removing duplicates
             //
-            @Override public boolean matches(String name) {
-                return "union".equals(name);
-            }
-            @Override public boolean verify(String name, List<Term> args) {
-                return true;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, EvalContext context) {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
                 Set<Object> seen = new HashSet<Object>();
-                List<Object> tmp = new ArrayList<Object>();
-                for (Term t : args) {
-                    for (Object node : t.eval(in, tmp, context)) {
+                for (int i=0;i<args.size();i++) {
+                    for (Object node : args.nodes(i)) {
                         if (seen.add(node)) {
                             out.add(node);
                         }
                     }
-                    tmp.clear();
                 }
             }
         });
-        FUNCTIONS.add(new Function() {
+        FUNCTIONS.add(new TypedFunction(0, -1, TypedFunction.PURE, "intersection") {
             //
             // intersection(...)        an intersection of all its arguments, removing duplicates
             //
-            @Override public boolean matches(String name) {
-                return "intersection".equals(name);
-            }
-            @Override public boolean verify(final String name, final List<Term> args) {
-                return true;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
                 Set<Object> work = null;
-                List<Object> tmp = new ArrayList<Object>();
-                for (Term t : args) {
+                for (int i=0;i<args.size();i++) {
                     if (work == null) {
-                        work = new LinkedHashSet<Object>(t.eval(in, tmp, context));
+                        work = new LinkedHashSet<Object>(args.nodes(i));
                     } else {
-                        work.retainAll(t.eval(in, tmp, context));
+                        work.retainAll(args.nodes(i));
                     }
-                    tmp.clear();
                 }
-                out.addAll(work);
+                if (work != null) {
+                    out.addAll(work);
+                }
             }
         });
-        FUNCTIONS.add(new Function() {
+        FUNCTIONS.add(new TypedFunction(0, 1, 0, "key") {
             //
             // key()           return the name by which this node is typically accessed from its parent (ie string for maps/XML elements, int for arrays).
             // key(path)       for every node matching path, return name()
             //
-            @Override public boolean matches(String name) {
-                return "key".equals(name);
-            }
-            @Override public boolean verify(final String name, final List<Term> args) {
-                return args.size() <= 1;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
-                for (Object n : in) {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
+                List<Object> tmp = args.size() == 0 ? null : new ArrayList<Object>();
+                for (Object n : args.in()) {
                     List<Object> in1 = Collections.<Object>singletonList(n);
-                    for (Object node : args.isEmpty() ? in1 : args.get(0).eval(in1, new ArrayList<Object>(), context)) {
-                        Object s = context.key(node);
+                    if (tmp != null) {
+                        tmp.clear();
+                    }
+                    for (Object node : tmp == null ? in1 : args.term(0).eval(in1, tmp, context)) {
+                        Object s = node instanceof Group ? ((Group)node).getKey() : context.key(node);
                         if (s != null) {
                             out.add(s);
                         }
@@ -388,20 +516,14 @@ public class Configuration {
                 }
             }
         });
-        FUNCTIONS.add(new Function() {
+        FUNCTIONS.add(new TypedFunction(0, 1, TypedFunction.PURE, "value") {
             //
             // value()          return the primitive values of the current nodeset
             // value(path)      for every node matching path, return its primitive value
             //
-            public boolean matches(String name) {
-                return "value".equals(name);
-            }
-            public boolean verify(final String name, final List<Term> args) {
-                return args.size() <= 1;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
-                boolean set = false;
-                for (Object node : allnodes(args, in, context, CONTEXT_OR_FIRST)) {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
+                for (Object node : args.nodesOrContext(0)) {
                     Object o = context.value(node);
                     if (o == null) {
                         o = EvalContext.NULL;
@@ -410,29 +532,24 @@ public class Configuration {
                 }
             }
         });
-        FUNCTIONS.add(new Function() {
+        FUNCTIONS.add(new TypedFunction(0, 1, 0, "index") {
             //
             // index()          return the index into the current nodeset of this node
             // index(path)      for every node matching path, if it can be accessed by an index from its parent, return that index.
             //
-            @Override public boolean matches(String name) {
-                return "index".equals(name);
-            }
-            @Override public boolean verify(final String name, final List<Term> args) {
-                return args.size() <= 1;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
-                if (args.isEmpty()) {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
+                if (args.size() == 0) {
                     if (context.getContextIndex() >= 0) {
                         out.add(context.getContextIndex());
                     } else {
-                        int count = 0;
-                        for (Object n : in) {
-                            out.add(count++);
+                        int count = args.in().size();
+                        for (int i=0;i<count;i++) {
+                            out.add(i);
                         }
                     }
                 } else {
-                    for (Object node : args.get(0).eval(in, new ArrayList<Object>(), context)) {
+                    for (Object node : args.nodes(0)) {
                         Object parent = context.parent(node);
                         if (parent != null) {
                             int index = context.index(node);
@@ -444,53 +561,39 @@ public class Configuration {
                 }
             }
         });
-        FUNCTIONS.add(new Function() {
+        FUNCTIONS.add(new TypedFunction(0, 1, 0, "count") {
             //
             // count()          return the number of nodes in the current nodeset
             // count(path)      return the number of nodes matching path
             //
-            public boolean matches(String name) {
-                return "count".equals(name);
-            }
-            public boolean verify(final String name, final List<Term> args) {
-                return args.size() <= 1;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
-                if (args.isEmpty()) {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
+                if (args.size() == 0) {
                     if (context.getContext() != null) {
                         out.add(context.getContext().size());   //a/b[count()]
                     } else {
-                        for (Object node : in) {
+                        for (int i=args.in().size();i>0;i--) {
                             out.add(1);                         // a/b/count()
                         }
                     }
                 } else {                                        // count(*)
-                    ArrayList<Object> tmp = new ArrayList<Object>();
-                    Term term = args.get(0);
-                    for (Object node : in) {
-                        List<Object> in1 = Collections.<Object>singletonList(node);
-                        int count = 0;
-                        for (Object n : term.eval(in1, tmp, context)) {
-                            count++;
-                        }
-                        out.add(count);
-                        tmp.clear();
+                    Aggregate agg = new Aggregate(Aggregate.COUNT, context);
+                    Term term = args.term(0);
+                    for (Object node : args.in()) {
+                        agg.add(term, Collections.<Object>singletonList(node));
+                        out.add(agg.result());
+                        agg.clear();
                     }
                 }
             }
         });
-        FUNCTIONS.add(new Function() {
+        FUNCTIONS.add(new TypedFunction(0, 0, 0, "is-first", "is-last") {
             //
             // is-first()       return true if index into the current nodeset of this node == 0
             // is-last()        return the index into the current nodeset of this node == count()-1
             //
-            @Override public boolean matches(String name) {
-                return "is-first".equals(name) || "is-last".equals(name);
-            }
-            @Override public boolean verify(final String name, final List<Term> args) {
-                return args.size() == 0;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
                 if (context.getContextIndex() >= 0 && context.getContext() != null) {   // a[is-first()]
                     out.add(context.getContextIndex() == ("is-first".equals(name) ? 0 : context.getContext().size() - 1));
                 } else {
@@ -499,21 +602,14 @@ public class Configuration {
             }
         });
 
-        FUNCTIONS.add(new Function() {
+        FUNCTIONS.add(new TypedFunction(0, 0, 0, "prev", "next") {
             //
             // prev()           if this node can be accessed from its parent with an index, evaluates as the the node accessed from the previous index.
-            // prev(x)          if the specified nodes can be accessed from their parents with an index, evaluates as the the node accessed from the previous index.
             // next()           if this node can be accessed from its parent with an index, evaluates as the the node accessed from the next index.
-            // next(x)          if the specified nodes can be accessed from their parent with an index, evaluates as the the node accessed from the next index.
             //
-            public boolean matches(String name) {
-                return "prev".equals(name) || "next".equals(name);
-            }
-            public boolean verify(final String name, final List<Term> args) {
-                return args.isEmpty();
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
-                for (Object node : allnodes(args, in, context, CONTEXT_OR_FIRST)) {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
+                for (Object node : args.in()) {
                     int index = context.index(node);
                     if (index >= 0) {
                         for (Object o : context.get(context.parent(node), index + ("prev".equals(name) ? -1 : 1))) {
@@ -525,76 +621,112 @@ public class Configuration {
         });
 
         // Math functions
-        FUNCTIONS.add(new Function() {
-            public boolean matches(String name) {
-                return "min".equals(name) || "max".equals(name);
-            }
-            public boolean verify(final String name, final List<Term> args) {
-                return true;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
-                Number v = null;
-                for (Object node : allnodes(args, in, context, CONTEXT_OR_ALL)) {
-                    Number n = Expr.numberValue(context, node);
-                    if (n != null) {
-                        if (v == null) {
-                            v = n;
-                        } else {
-                            int c = Expr.compare(n, v, context);
-                            if ((c < 0 && "min".equals(name)) || (c > 0 && "max".equals(name))) {
-                                v = n;
-                            }
-                        }
-                    }
-                }
+        FUNCTIONS.add(new TypedFunction(0, -1, TypedFunction.PURE, "min", "max", "sum", "avg") {
+            //
+            // min(), max(), sum() and avg() of the numeric values of the arguments, or the
+            // current nodeset if there are none. The nodes are aggregated as they're found;
+            // integers are summed as a long until that overflows.
+            //
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final int op = "min".equals(name) ? Aggregate.MIN : "max".equals(name) ? Aggregate.MAX : "sum".equals(name) ? Aggregate.SUM : Aggregate.AVG;
+                Object v = args.aggregateOrContext(new Aggregate(op, args.context()), 0).result();
                 if (v != null) {
                     out.add(v);
                 }
             }
         });
-        FUNCTIONS.add(new Function() {
-            public boolean matches(String name) {
-                return "sum".equals(name);
+        FUNCTIONS.add(new TypedFunction(0, -1, TypedFunction.PURE, "approx-distinct") {
+            //
+            // approx-distinct()    the approximate number of distinct values in the arguments, or
+            //                      the current nodeset, in fixed memory with an error of about 0.8%
+            //
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                out.add(args.aggregateOrContext(new Sketch.Distinct(args.context()), 0).result());
             }
-            public boolean verify(final String name, final List<Term> args) {
-                return true;
+        });
+        FUNCTIONS.add(new TypedFunction(0, -1, TypedFunction.PURE, "percentile", "median") {
+            //
+            // percentile(p, ...)   the value at the p'th percentile (0-100) of the remaining arguments
+            //                      or the current nodeset, by nearest rank. Exact for up to 200
+            //                      values, otherwise estimated in fixed memory
+            // median(...)          percentile(50, ...)
+            //
+            @Override public boolean verify(String name, List<Term> args) {
+                return super.verify(name, args) && (!"percentile".equals(name) || args.size() > 0);
             }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
-                // This is a pain - if we're given 1000 integers and one BigDecimal, output has to be BigDecimal.
-                Number v = null;
-                for (Object node : allnodes(args, in, context, CONTEXT_OR_ALL)) {
-                    Number n = Expr.numberValue(context, node);
-                    if (n != null) {
-                        if (v == null) {
-                            v = n;
-                        } else if (v instanceof BigDecimal || n instanceof BigDecimal || (v instanceof BigInteger && (n instanceof Double || n instanceof Float)) || (n instanceof BigInteger && (v instanceof Double || n instanceof Float))) {
-                            v = ((BigDecimal)(v instanceof BigDecimal ? v : new BigDecimal(v.toString()))).add((BigDecimal)(v instanceof BigDecimal ? v : new BigDecimal(v.toString())));
-                        } else if (v instanceof BigInteger || n instanceof BigInteger) {
-
-                            v = ((BigInteger)(v instanceof BigInteger ? v : new BigInteger(v.toString()))).add((BigInteger)(v instanceof BigInteger ? v : new BigInteger(v.toString())));
-                        } else if (v instanceof Double || v instanceof Float || n instanceof Double || n instanceof Float) {
-                            v = Double.valueOf(v.doubleValue() + n.doubleValue());
-                        } else if (v instanceof Long || n instanceof Long) {
-                            v = Long.valueOf(v.longValue() + n.longValue());
-                        } else {
-                            v = Integer.valueOf(v.intValue() + n.intValue());
-                        }
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final boolean median = "median".equals(name);
+                Number p = median ? Integer.valueOf(50) : args.number(0);
+                if (p != null && p.doubleValue() >= 0 && p.doubleValue() <= 100) {
+                    Number v = args.aggregateOrContext(new Sketch.Quantiles(args.context()), median ? 0 : 1).quantile(p.doubleValue());
+                    if (v != null) {
+                        out.add(v);
                     }
                 }
-                if (v != null) {
-                    out.add(v);
+            }
+        });
+        FUNCTIONS.add(new TypedFunction(1, -1, TypedFunction.PURE, "approx-top-k") {
+            //
+            // approx-top-k(k, ...) the nodes with the k most frequent values in the remaining arguments
+            //                      or the current nodeset, most frequent first. Exact for up to
+            //                      max(100k, 1024) distinct values, otherwise estimated in fixed memory
+            //
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                Number k = args.number(0);
+                if (k != null && k.intValue() > 0) {
+                    out.addAll((List<?>)args.aggregateOrContext(new Sketch.HeavyHitters(k.intValue(), args.context()), 1).result());
                 }
             }
         });
-        FUNCTIONS.add(new Function() {
-            public boolean matches(String name) {
-                return "ceil".equals(name) || "floor".equals(name) || "round".equals(name);
+        FUNCTIONS.add(new TypedFunction(1, 2, TypedFunction.PURE, "sort", "sort-desc") {
+            //
+            // sort(path)           the nodes matching path, sorted by value: numbers, then strings, then booleans
+            // sort(path, key)      the nodes matching path, sorted by the value of key evaluated against each one
+            // sort-desc(...)       as sort, in descending order. Nodes without a value are last either way
+            //
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                Sort.sort(args.nodes(0), args.size() > 1 ? args.term(1) : null, "sort-desc".equals(name), out, args.context());
+            }
+        });
+        FUNCTIONS.add(new TypedFunction(2, 3, TypedFunction.PURE, "top") {
+            //
+            // top(path, n)         the n nodes matching path with the largest values, largest first
+            // top(path, key, n)    the n nodes matching path with the largest value of key, largest first
+            //
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                Number n = args.number(args.size() - 1);
+                if (n != null && n.intValue() > 0) {
+                    Sort.Top top = new Sort.Top(n.intValue(), args.size() > 2 ? args.term(1) : null, args.context());
+                    top.add(args.term(0), args.in());
+                    out.addAll((List<?>)top.result());
+                }
             }
-            public boolean verify(final String name, final List<Term> args) {
-                return args.size() <= 1;
+        });
+        FUNCTIONS.add(new TypedFunction(0, -1, TypedFunction.PURE, "distinct") {
+            //
+            // distinct(...)        the first node with each distinct value in the arguments or the current
+            //                      nodeset, in order. Values are distinct if they're not equal with ==
+            //
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                out.addAll((List<?>)args.aggregateOrContext(new Group.Collector(null, true, args.context()), 0).result());
+            }
+        });
+        FUNCTIONS.add(new TypedFunction(1, 2, 0, "group") {
+            //
+            // group(path)          the nodes matching path, grouped by value
+            // group(path, key)     the nodes matching path, grouped by the value of key evaluated against each one.
+            //                      Returns one group node per key, in order; key() is the key and * the nodes
+            //
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                Group.Collector c = new Group.Collector(args.size() > 1 ? args.term(1) : null, false, args.context());
+                c.add(args.term(0), args.in());
+                out.addAll((List<?>)c.result());
             }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
-                for (Object node : allnodes(args, in, context, CONTEXT_OR_FIRST)) {
+        });
+        FUNCTIONS.add(new TypedFunction(0, 1, TypedFunction.PURE, "ceil", "floor", "round") {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
+                for (Object node : args.nodesOrContext(0)) {
                     Number n = Expr.numberValue(context, node);
                     if (n != null) {
                         if (n instanceof BigDecimal) {
@@ -624,16 +756,11 @@ public class Configuration {
         });
 
         // Type functions: type, value, string, number
-        FUNCTIONS.add(new Function() {
-            public boolean matches(String name) {
-                return "type".equals(name);
-            }
-            public boolean verify(final String name, final List<Term> args) {
-                return args.size() <= 1;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
+        FUNCTIONS.add(new TypedFunction(0, 1, TypedFunction.PURE, "type") {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
                 boolean set = false;
-                for (Object node : allnodes(args, in, context, CONTEXT_OR_FIRST)) {
+                for (Object node : args.nodesOrContext(0)) {
                     set = true;
                     String s = null;
                     if (node == EvalContext.NULL) {
@@ -644,6 +771,8 @@ public class Configuration {
                         s = "number";
                     } else if (node instanceof Boolean) {
                         s = "boolean";
+                    } else if (node instanceof Group) {
+                        s = "group";
                     } else if (node != null) {
                         s = context.type(node);
                         if (s == null) {
@@ -659,32 +788,21 @@ public class Configuration {
                 }
             }
         });
-        FUNCTIONS.add(new Function() {
-            public boolean matches(String name) {
-                return "string".equals(name);
-            }
-            public boolean verify(final String name, final List<Term> args) {
-                return args.size() <= 1;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
-                for (Object node : allnodes(args, in, context, CONTEXT_OR_FIRST)) {
+        FUNCTIONS.add(new TypedFunction(0, 1, TypedFunction.PURE, "string") {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
+                for (Object node : args.nodesOrContext(0)) {
                     String s = toStringValue(context, node);
                     if (s != null) {
                         out.add(node);
-                    } else {
                     }
                 }
             }
         });
-        FUNCTIONS.add(new Function() {
-            public boolean matches(String name) {
-                return "number".equals(name);
-            }
-            public boolean verify(final String name, final List<Term> args) {
-                return args.size() <= 1;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
-                for (Object node : allnodes(args, in, context, CONTEXT_OR_FIRST)) {
+        FUNCTIONS.add(new TypedFunction(0, 1, TypedFunction.PURE, "number") {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
+                for (Object node : args.nodesOrContext(0)) {
                     Number n = Expr.numberValue(context, node);
                     if (n == null) {
                         String s = Expr.stringValue(context, node);
@@ -719,37 +837,43 @@ public class Configuration {
         });
 
         // Format functions: format, encode
-        FUNCTIONS.add(new Function() {
-            public boolean matches(String name) {
-                return "format".equals(name);
-            }
+        // These depend on the Locale from the Configuration, so are not pure
+        FUNCTIONS.add(new TypedFunction(1, 2, TypedFunction.CONSTANT_FIRST, "format") {
             //a/b/format("%02d") input of one
             //a/b[format("%02d") == "00"] input of one
             //format("%02d", a/b) - input of two
-            public boolean verify(final String name, final List<Term> args) {
-                return (args.size() == 1 || args.size() == 2) && args.get(0).isString();    // format must be a constant
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
-                String format = args.get(0).stringValue();
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
+                String format = args.term(0).stringValue();
                 Locale locale = context.getConfiguration().getLocale();
-                for (Object node : allnodes(args, in, context, CONTEXT_OR_SECOND)) {
+                // One Formatter for every node, rather than one each from String.format
+                StringBuilder sb = new StringBuilder();
+                Formatter formatter = new Formatter(sb, locale);
+                for (Object node : args.nodesOrContext(1)) {
                     String v = null;
                     try {
                         Number n = Expr.numberValue(context, node);
                         if (n != null) {
                             try {
-                                v = String.format(locale, format, n);
+                                sb.setLength(0);
+                                formatter.format(format, n);
                             } catch (Exception e) {
-                                v = String.format(locale, format, n.doubleValue());
+                                sb.setLength(0);
+                                formatter.format(format, n.doubleValue());
                             }
+                            v = sb.toString();
                         } else {
                             String s = Expr.stringValue(context, node);
                             if (s != null) {
-                                v = String.format(locale, format, v);
+                                sb.setLength(0);
+                                formatter.format(format, s);
+                                v = sb.toString();
                             }
                         }
-                    } catch (Exception e) {
-                        e.printStackTrace(System.out);
+                    } catch (IllegalFormatException e) {
+                        if (context.getLogger() != null) {
+                            context.getLogger().log("format: " + e.getMessage());
+                        }
                     }
                     if (v != null) {
                         out.add(v);
@@ -757,21 +881,15 @@ public class Configuration {
                 }
             }
         });
-        FUNCTIONS.add(new Function() {
-            public boolean matches(String name) {
-                return "join".equals(name);
-            }
+        FUNCTIONS.add(new TypedFunction(1, 2, TypedFunction.CONSTANT_FIRST | TypedFunction.PURE, "join") {
             //a/b/join(",") input of one
             //a/b[format(",") == "00"] input of one
             //join(",", a/b) - input of two
-            public boolean verify(final String name, final List<Term> args) {
-                boolean b = (args.size() == 1 || args.size() == 2) && args.get(0).isString();    // joiner must be a constant
-                return b;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
                 StringBuilder sb = null;
                 String joiner = null;
-                for (Object node : allnodes(args, in, context, CONTEXT_OR_ALL)) {
+                for (Object node : args.allOrContext()) {
                     String s = toStringValue(context, node);
                     if (joiner == null) {
                         joiner = s;
@@ -793,35 +911,28 @@ public class Configuration {
                 }
             }
         });
-        FUNCTIONS.add(new Function() {
-            public boolean matches(String name) {
-                return "escape".equals(name);
-            }
-            @Override public boolean verify(final String name, final List<Term> args) {
-                return true;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
+        // ZTemplate recognises escape() and unescape() by name to avoid escaping twice,
+        // so these are never folded
+        FUNCTIONS.add(new TypedFunction(0, -1, 0, "escape") {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
+                final BitSet encodable = context.getConfiguration().getEscapeEncodable();
                 StringBuilder sb = new StringBuilder();
-                for (Object node : allnodes(args, in, context, CONTEXT_OR_ALL)) {
+                for (Object node : args.allOrContext()) {
                     String s = Expr.stringValue(context, node);
                     if (s != null) {
-                        Expr.escapeXML(s, true, sb);
+                        Expr.escapeXML(s, true, encodable, sb);
                         out.add(sb.toString());
                         sb.setLength(0);
                     }
                 }
             }
         });
-        FUNCTIONS.add(new Function() {
-            public boolean matches(String name) {
-                return "unescape".equals(name);
-            }
-            @Override public boolean verify(final String name, final List<Term> args) {
-                return true;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
+        FUNCTIONS.add(new TypedFunction(0, -1, 0, "unescape") {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
                 StringBuilder sb = new StringBuilder();
-                for (Object node : allnodes(args, in, context, CONTEXT_OR_ALL)) {
+                for (Object node : args.allOrContext()) {
                     String s = Expr.stringValue(context, node);
                     if (s != null) {
                         Expr.unescapeXML(s, sb);
@@ -831,17 +942,12 @@ public class Configuration {
                 }
             }
         });
-        FUNCTIONS.add(new Function() {
-            public boolean matches(String name) {
-                return "index-of".equals(name) || "last-index-of".equals(name);
-            }
-            @Override public boolean verify(final String name, final List<Term> args) {
-                return args.size() == 1 || args.size() == 2;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
-                String search = Expr.stringValue0(context, args.get(args.size() - 1).eval(in, new ArrayList<Object>(), context));
+        FUNCTIONS.add(new TypedFunction(1, 2, TypedFunction.PURE, "index-of", "last-index-of") {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
+                String search = args.string(args.size() - 1);
                 if (search != null) {
-                    for (Object node : allnodes(args, in, context, CONTEXT_OR_FIRST)) {
+                    for (Object node : args.size() == 2 ? args.nodes(0) : args.in()) {
                         String value = Expr.stringValue(context, node);
                         if (value != null) {
                             out.add("index-of".equals(name) ? value.indexOf(search) : value.lastIndexOf(search));
@@ -850,15 +956,10 @@ public class Configuration {
                 }
             }
         });
-        FUNCTIONS.add(new Function() {
-            public boolean matches(String name) {
-                return "string-length".equals(name);
-            }
-            @Override public boolean verify(final String name, final List<Term> args) {
-                return args.size() <= 1;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
-                for (Object node : allnodes(args, in, context, CONTEXT_OR_FIRST)) {
+        FUNCTIONS.add(new TypedFunction(0, 1, TypedFunction.PURE, "string-length") {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
+                for (Object node : args.nodesOrContext(0)) {
                     String value = Expr.stringValue(context, node);
                     if (value != null) {
                         out.add(value.length());
@@ -866,35 +967,25 @@ public class Configuration {
                 }
             }
         });
-        FUNCTIONS.add(new Function() {
-            public boolean matches(String name) {
-                return "lower-case".equals(name) || "upper-case".equals(name);
-            }
-            @Override public boolean verify(final String name, final List<Term> args) {
-                return args.size() <= 1;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
-                for (Object node : allnodes(args, in, context, CONTEXT_OR_FIRST)) {
+        FUNCTIONS.add(new TypedFunction(0, 1, 0, "lower-case", "upper-case") {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
+                Locale locale = context.getConfiguration().getLocale();
+                for (Object node : args.nodesOrContext(0)) {
                     String value = Expr.stringValue(context, node);
                     if (value != null) {
-                        Locale locale = context.getConfiguration().getLocale();
                         out.add("lower-case".equals(name) ? value.toLowerCase(locale) : value.toUpperCase(locale));
                     }
                 }
             }
         });
-        FUNCTIONS.add(new Function() {
-            public boolean matches(String name) {
-                return "substring".equals(name);
-            }
-            @Override public boolean verify(final String name, final List<Term> args) {
-                return args.size() == 2 || args.size() == 3;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
-                Number off = Expr.numberValue0(context, args.get(args.size() - 2).eval(in, new ArrayList<Object>(), context));
-                Number len = Expr.numberValue0(context, args.get(args.size() - 1).eval(in, new ArrayList<Object>(), context));
+        FUNCTIONS.add(new TypedFunction(2, 3, TypedFunction.PURE, "substring") {
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
+                Number off = args.number(args.size() - 2);
+                Number len = args.number(args.size() - 1);
                 if (off != null && len != null) {
-                    for (Object node : allnodes(args, in, context, CONTEXT_OR_FIRST)) {
+                    for (Object node : args.size() == 3 ? args.nodes(0) : args.in()) {
                         String value = Expr.stringValue(context, node);
                         if (value != null) {
                             out.add(value.substring(off.intValue(), len.intValue()));
@@ -903,119 +994,87 @@ public class Configuration {
                 }
             }
         });
-        FUNCTIONS.add(new Function() {
-            public boolean matches(String name) {
-                return "matches".equals(name);
-            }
-            @Override public boolean verify(final String name, final List<Term> args) {
-                if (!((args.size() == 1 || args.size() == 2) && args.get(0).isString())) {
-                    return false;
-                }
-                Pattern pattern = compilePattern(args.get(0).stringValue());
-                return true;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
-                Pattern pattern = compilePattern(args.get(0).stringValue());
-                for (Object node : allnodes(args, in, context, CONTEXT_OR_SECOND)) {
+        FUNCTIONS.add(new TypedFunction(1, 2, TypedFunction.CONSTANT_FIRST | TypedFunction.PURE, "matches") {
+            @Override public Object prepare(final String name, final List<Term> args, Configuration config) {
+                return Regex.compile(args.get(0).stringValue(), config.isLinearTimeRegex());
+            }
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
+                Regex regex = (Regex)args.prepared();
+                for (Object node : args.nodesOrContext(1)) {
                     String value = Expr.stringValue(context, node);
                     if (value != null) {
-                        out.add(pattern.matcher(value).find());
+                        out.add(regex.find(value));
                     }
                 }
             }
         });
-        FUNCTIONS.add(new Function() {
-            Pattern pattern;
-            public boolean matches(String name) {
-                return "replace".equals(name);
-            }
-            @Override public boolean verify(final String name, final List<Term> args) {
-                if (!((args.size() == 2 || args.size() == 3) && args.get(0).isString())) {
-                    return false;
-                }
-                Pattern pattern = compilePattern(args.get(0).stringValue());
-                return true;
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
-                Pattern pattern = compilePattern(args.get(0).stringValue());
-                for (Object node : allnodes(args, in, context, CONTEXT_OR_THIRD)) {
+        FUNCTIONS.add(new TypedFunction(2, 3, TypedFunction.CONSTANT_FIRST | TypedFunction.PURE, "replace") {
+            @Override public Object prepare(final String name, final List<Term> args, Configuration config) {
+                return Regex.compile(args.get(0).stringValue(), config.isLinearTimeRegex());
+            }
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
+                Regex regex = (Regex)args.prepared();
+                for (Object node : args.nodesOrContext(2)) {
                     String value = Expr.stringValue(context, node);
                     if (value != null) {
-                        String replace = Expr.stringValue0(context, args.get(1).eval(in, new ArrayList<Object>(), context));
+                        String replace = args.string(1);
                         if (replace == null) {
                             replace = "";
                         }
-                        out.add(pattern.matcher(value).replaceAll(replace));
+                        out.add(regex.replaceAll(value, replace));
                     }
                 }
             }
         });
 
-        FUNCTIONS.add(new Function() {
-            public boolean matches(String name) {
-                return "date-format".equals(name);
-            }
+        FUNCTIONS.add(new TypedFunction(1, 2, TypedFunction.CONSTANT_FIRST, "date-format") {
             //a/b/format("%02d") input of one
             //a/b[format("%02d") == "00"] input of one
             //format("%02d", a/b) - input of two
-            public boolean verify(final String name, final List<Term> args) {
-                return (args.size() == 1 || args.size() == 2) && args.get(0).isString();    // format must be a constant
-            }
-            @Override public void eval(final String name, List<Term> args, List<Object> in, List<Object> out, final EvalContext context) {
-                String format = args.get(0).stringValue();
-                Locale locale = context.getConfiguration().getLocale();
-                for (Object node : allnodes(args, in, context, CONTEXT_OR_SECOND)) {
+            @Override public Object prepare(final String name, final List<Term> args, Configuration config) {
+                DateFormat df = new DateFormat(args.get(0).stringValue());
+                df.get(config.getLocale());     // Fail at compile time if invalid
+                return df;
+            }
+            @Override public void eval(final String name, Arguments args, List<Object> out) {
+                final EvalContext context = args.context();
+                DateTimeFormatter formatter = ((DateFormat)args.prepared()).get(context.getConfiguration().getLocale());
+                for (Object node : args.nodesOrContext(1)) {
                     String v = null;
-                    try {
-                        Number n = Expr.numberValue(context, node);
-                        TemporalAccessor date = null;
-                        if (n != null) {
-                            if (n.longValue() > 32504283350l) {  // Early year 3000 in ms, 12 Jan 1971 in seconds
-                                date = Instant.ofEpochMilli(n.longValue());
-                            } else {
-                                date = Instant.ofEpochSecond(n.longValue());
-                            }
+                    Number n = Expr.numberValue(context, node);
+                    TemporalAccessor date = null;
+                    if (n != null) {
+                        long l = n.longValue();
+                        if (l > 32504283350l) {  // Early year 3000 in ms, 12 Jan 1971 in seconds
+                            date = OffsetDateTime.ofInstant(Instant.ofEpochMilli(l), ZoneOffset.UTC);
                         } else {
-                            String s = Expr.stringValue(context, node);
-                            if (s != null) {
-                                // FFS, in 2023 I still can't parse ISO8601 without hyphens/colons
-                                if (s.length() > 4 && Character.isDigit(s.charAt(4))) {
-                                    s = s.substring(0, 4) + "-" + s.substring(4);
-                                }
-                                if (s.length() > 7 && Character.isDigit(s.charAt(7))) {
-                                    s = s.substring(0, 7) + "-" + s.substring(7);
-                                }
-                                if (s.length() > 10 && s.charAt(10) != ' ') {
-                                    s = s.substring(0, 10) + " " + s.substring(10);
-                                }
-                                if (s.length() > 13 && Character.isDigit(s.charAt(13))) {
-                                    s = s.substring(0, 13) + ":" + s.substring(13);
-                                }
-                                if (s.length() > 16 && Character.isDigit(s.charAt(16))) {
-                                    s = s.substring(0, 16) + ":" + s.substring(16);
-                                }
-                                try {
-                                    if (s.length() > 16) {
-                                        date = OffsetDateTime.parse(s);
-                                    } else {
-                                        date = LocalDate.parse(s);
-                                    }
-                                } catch (Exception e) { }
-                            }
+                            date = OffsetDateTime.ofInstant(Instant.ofEpochSecond(l), ZoneOffset.UTC);
+                        }
+                    } else {
+                        String s = Expr.stringValue(context, node);
+                        if (s != null) {
+                            date = parseDate(s);
                         }
-                        // We'll use:
-                        // y - year
-                        // M - month
-                        // d - date
-                        // H - 24hr
-                        // h - 12hr
-                        // m - minute
-                        // s - second
-                        if (date != null) {
-                            v = DateTimeFormatter.ofPattern(format, locale).format(date);
+                    }
+                    // We'll use:
+                    // y - year
+                    // M - month
+                    // d - date
+                    // H - 24hr
+                    // h - 12hr
+                    // m - minute
+                    // s - second
+                    if (date != null) {
+                        try {
+                            v = formatter.format(date);
+                        } catch (DateTimeException e) {
+                            // eg a time pattern applied to a date
+                            if (context.getLogger() != null) {
+                                context.getLogger().log("date-format: " + e.getMessage());
+                            }
                         }
-                    } catch (Exception e) {
-                        e.printStackTrace(System.out);
                     }
                     if (v != null) {
                         out.add(v);
@@ -1025,77 +1084,140 @@ public class Configuration {
         });
     }
 
-    private static Pattern compilePattern(String string) {
-        Pattern pattern;
-        synchronized(PATTERNCACHE) {
-            pattern = PATTERNCACHE.get(string);
+    /**
+     * The DateTimeFormatter for a date-format() pattern, created once per Locale. Bound to
+     * the function when it's compiled; almost always there's only ever one Locale.
+     */
+    private static final class DateFormat {
+        private final String pattern;
+        private volatile Object[] last;     // { Locale, DateTimeFormatter }
+
+        DateFormat(String pattern) {
+            this.pattern = pattern;
         }
-        if (pattern == null) {
-            pattern = Pattern.compile(string);
-            synchronized(PATTERNCACHE) {
-                PATTERNCACHE.put(string, pattern);
+
+        DateTimeFormatter get(Locale locale) {
+            Object[] last = this.last;
+            if (last == null || !last[0].equals(locale)) {
+                this.last = last = new Object[] { locale, DateTimeFormatter.ofPattern(pattern, locale) };
             }
+            return (DateTimeFormatter)last[1];
         }
-        return pattern;
-    }
 
-    private static final int ALLARGS = 0;               // Iterate over args only, or nothing of no args
-    private static final int CONTEXT_OR_ALL = 1;        // Iterate over all args, or context if no args supplied
-    private static final int ONEARGS = 2;               // Iterate over first arguent only, or nothing if no args
-    private static final int CONTEXT_OR_FIRST  = 3;     // Iterate over first argument only, or context if no args supplied
-    private static final int CONTEXT_OR_SECOND  = 4;    // Iterate over second argument only, or context if only one arg supplied
-    private static final int CONTEXT_OR_THIRD  = 5;     // Iterate over third argument only, or context if only one arg supplied
+        @Override public int hashCode() {
+            return pattern.hashCode();
+        }
+
+        @Override public boolean equals(Object o) {
+            return o instanceof DateFormat && ((DateFormat)o).pattern.equals(pattern);
+        }
+    }
 
     /**
-     * Return an iterator that will cover all nodes
-     * @param contextfallback if true and no arguments are supplied, iterator over our context ("in")
-     * @param allargs if true, iterate over more than one argument if supplied
+     * Parse an ISO8601 date or date-time, with or without the "-" and ":" separators,
+     * without creating intermediate strings. Accepts
+     * <code>yyyy[-]MM[-]dd</code>, optionally followed by "T" or a space,
+     * <code>HH[:]mm[[:]ss[.SSS]]</code> and an optional "Z" or <code>+HH[[:]mm]</code> offset.
+     * @return a LocalDate, LocalDateTime or OffsetDateTime, or null if the string isn't in that form
      */
-    private static Iterable<Object> allnodes(final List<Term> args, final List<Object> in, final EvalContext context, final int flags) {
-        // This is pretty awful
-        return new Iterable<Object>() {
-            public Iterator<Object> iterator() {
-                return new Iterator<Object>() {
-                    private int c = 0;
-                    private Iterator<Object> i;
-                    {skip();}
-                    public boolean hasNext() {
-                        if (!i.hasNext()) {
-                            skip();
-                            if (!i.hasNext()) {
-                                return false;
-                            }
-                        }
-                        return true;
-                    }
-                    private void skip() {
-                        if (i == null) {
-                            if (args.isEmpty() || (args.size() < 2 && flags == CONTEXT_OR_SECOND) || (args.size() < 3 && flags == CONTEXT_OR_THIRD)) {
-                                if (flags == CONTEXT_OR_ALL || flags == CONTEXT_OR_FIRST || flags == CONTEXT_OR_SECOND || flags == CONTEXT_OR_THIRD) {
-                                    i = in.iterator();
-                                } else {
-                                    i = Collections.<Object>emptyList().iterator();
-                                }
-                            } else if (flags == CONTEXT_OR_SECOND) {
-                                i = args.get(1).eval(in, new ArrayList<Object>(), context).iterator();
-                            } else if (flags == CONTEXT_OR_THIRD) {
-                                i = args.get(2).eval(in, new ArrayList<Object>(), context).iterator();
-                            } else {
-                                i = args.get(0).eval(in, new ArrayList<Object>(), context).iterator();
-                            }
-                        } else if ((flags == ALLARGS || flags == CONTEXT_OR_ALL) && c + 1 < args.size()) {
-                            i = args.get(++c).eval(in, new ArrayList<Object>(), context).iterator();
-                        }
-                    }
-                    public Object next() {
-                        return i.next();
-                    }
-                    public void remove() {
-                        throw new UnsupportedOperationException();
+    static TemporalAccessor parseDate(String s) {
+        final int len = s.length();
+        int i = 0;
+        int year = digits(s, i, 4);
+        i += 4;
+        if (i < len && s.charAt(i) == '-') {
+            i++;
+        }
+        int month = digits(s, i, 2);
+        i += 2;
+        if (i < len && s.charAt(i) == '-') {
+            i++;
+        }
+        int day = digits(s, i, 2);
+        i += 2;
+        if (year < 0 || month < 0 || day < 0) {
+            return null;
+        }
+        try {
+            if (i == len) {
+                return LocalDate.of(year, month, day);
+            }
+            char c = s.charAt(i++);
+            if (c != 'T' && c != 't' && c != ' ') {
+                return null;
+            }
+            int hour = digits(s, i, 2), minute, second = 0, nano = 0;
+            i += 2;
+            if (i < len && s.charAt(i) == ':') {
+                i++;
+            }
+            minute = digits(s, i, 2);
+            i += 2;
+            if (hour < 0 || minute < 0) {
+                return null;
+            }
+            if (i < len && (s.charAt(i) == ':' || (s.charAt(i) >= '0' && s.charAt(i) <= '9'))) {
+                if (s.charAt(i) == ':') {
+                    i++;
+                }
+                if ((second = digits(s, i, 2)) < 0) {
+                    return null;
+                }
+                i += 2;
+                if (i < len && (s.charAt(i) == '.' || s.charAt(i) == ',')) {
+                    int scale = 100000000;
+                    while (++i < len && (c=s.charAt(i)) >= '0' && c <= '9') {
+                        nano += (c - '0') * scale;
+                        scale /= 10;
                     }
-                };
+                }
+            }
+            if (i == len) {
+                return LocalDateTime.of(year, month, day, hour, minute, second, nano);
+            }
+            c = s.charAt(i++);
+            int offset;
+            if ((c == 'Z' || c == 'z') && i == len) {
+                offset = 0;
+            } else if (c == '+' || c == '-') {
+                int oh = digits(s, i, 2), om = 0;
+                i += 2;
+                if (i < len && s.charAt(i) == ':') {
+                    i++;
+                }
+                if (i < len) {
+                    om = digits(s, i, 2);
+                    i += 2;
+                }
+                if (oh < 0 || om < 0 || i != len) {
+                    return null;
+                }
+                offset = (oh * 3600 + om * 60) * (c == '-' ? -1 : 1);
+            } else {
+                return null;
+            }
+            return OffsetDateTime.of(year, month, day, hour, minute, second, nano, ZoneOffset.ofTotalSeconds(offset));
+        } catch (DateTimeException e) {
+            return null;        // eg month 13
+        }
+    }
+
+    /**
+     * Return the value of the "len" decimal digits at off, or -1 if there aren't that many digits
+     */
+    private static int digits(String s, int off, int len) {
+        if (off + len > s.length()) {
+            return -1;
+        }
+        int v = 0;
+        for (int i=0;i<len;i++) {
+            char c = s.charAt(off + i);
+            if (c < '0' || c > '9') {
+                return -1;
             }
-        };
+            v = v * 10 + c - '0';
+        }
+        return v;
     }
 
     private static String toStringValue(EvalContext context, Object node) {
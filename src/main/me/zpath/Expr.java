@@ -1,12 +1,21 @@
 package me.zpath;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.math.*;
+import java.nio.charset.*;
 
 class Expr extends Term {
 
+    // Numeric lanes: the type of an intermediate value held in a Lane
+    private static final int LANE_LONG = 1, LANE_DOUBLE = 2, LANE_BIGINTEGER = 3, LANE_BIGDECIMAL = 4;
+
     private final Term lhs, rhs, rrhs;
     private final Term op;
+    private final boolean arithmetic;           // true if op is + - * / or %
+    private final boolean numericCompare;       // true if op is a comparison and both sides are always numeric
+    private final int hash;
 
     Expr(Term op, Term lhs, Term rhs) {
         this(op, lhs, rhs, null);
@@ -17,6 +26,24 @@ class Expr extends Term {
         this.op = op;
         this.rhs = rhs;
         this.rrhs = rrhs;
+        this.arithmetic = rhs != null && (op == Term.PLUS || op == Term.MINUS || op == Term.STAR || op == Term.SLASH || op == Term.PERCENT);
+        this.hash = ((op.hashCode() * 31 + lhs.hashCode()) * 31 + Objects.hashCode(rhs)) * 31 + Objects.hashCode(rrhs);
+        this.numericCompare = (op == Term.GE || op == Term.GT || op == Term.LT || op == Term.LE || op == Term.EQ || op == Term.NE) && isLaneTerm(lhs) && isLaneTerm(rhs);
+    }
+
+    @Override public int hashCode() {
+        return hash;
+    }
+
+    @Override public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        } else if (o instanceof Expr) {
+            // Children are interned, so these are almost always identity tests
+            Expr e = (Expr)o;
+            return e.hash == hash && e.op == op && e.lhs.equals(lhs) && Objects.equals(e.rhs, rhs) && Objects.equals(e.rrhs, rrhs);
+        }
+        return false;
     }
 
     @Override public String toString() {
@@ -55,6 +82,19 @@ class Expr extends Term {
         return isNumber() && lhs.isInteger() && rhs.isInteger();
     }
 
+    Term op() {
+        return op;
+    }
+    Term lhs() {
+        return lhs;
+    }
+    Term rhs() {
+        return rhs;
+    }
+    Term rrhs() {
+        return rrhs;
+    }
+
     private Object evalTermAsObject(final String name, final Term term, Object node, final List<Object> out, final EvalContext context) {
         final Configuration.Logger logger = context.getLogger();
         try {
@@ -80,8 +120,249 @@ class Expr extends Term {
         return node;
     }
 
+    /**
+     * A mutable holder for the value of a numeric sub-expression. Arithmetic
+     * Exprs pass their intermediate values to each other in one of these, so
+     * only the final result is boxed. Values that overflow a long are promoted
+     * to BigInteger, and BigDecimal is used whenever BigInteger meets a real.
+     */
+    static final class Lane {
+        int type;
+        long l;
+        double d;
+        Number big;
+
+        void set(Number n) {
+            if (n instanceof Double || n instanceof Float) {
+                type = LANE_DOUBLE;
+                d = n.doubleValue();
+            } else if (n instanceof BigDecimal) {
+                type = LANE_BIGDECIMAL;
+                big = n;
+            } else if (n instanceof BigInteger) {
+                type = LANE_BIGINTEGER;
+                big = n;
+            } else {
+                type = LANE_LONG;
+                l = n.longValue();
+            }
+        }
+
+        double doubleValue() {
+            return type == LANE_LONG ? (double)l : type == LANE_DOUBLE ? d : big.doubleValue();
+        }
+
+        long longValue() {
+            return type == LANE_LONG ? l : type == LANE_DOUBLE ? (long)d : big.longValue();
+        }
+
+        Number box() {
+            if (type == LANE_LONG) {
+                return l == (int)l ? Integer.valueOf((int)l) : Long.valueOf(l);
+            } else if (type == LANE_DOUBLE) {
+                return Double.valueOf(d);
+            } else {
+                return big;
+            }
+        }
+    }
+
+    /**
+     * Return true if the term is a numeric constant or an arithmetic Expr, which can
+     * be evaluated into a Lane without boxing
+     */
+    private static boolean isLaneTerm(Term term) {
+        if (term instanceof Expr) {
+            return ((Expr)term).arithmetic;
+        }
+        return term.getClass() == Term.class && term.isNumber();
+    }
+
+    private static BigDecimal toBigDecimal(int type, long l, double d, Number big) {
+        if (type == LANE_LONG) {
+            return BigDecimal.valueOf(l);
+        } else if (type == LANE_DOUBLE) {
+            return new BigDecimal(Double.toString(d));
+        } else if (type == LANE_BIGINTEGER) {
+            return new BigDecimal((BigInteger)big);
+        } else {
+            return (BigDecimal)big;
+        }
+    }
+
+    private static BigInteger toBigInteger(int type, long l, Number big) {
+        return type == LANE_BIGINTEGER ? (BigInteger)big : BigInteger.valueOf(l);
+    }
+
+    /**
+     * Evaluate the term against the node, storing its numeric value in the lane.
+     * @return false if the term does not evaluate to a number
+     */
+    private boolean evalLane(final String name, final Term term, final Object node, final List<Object> tmp, final EvalContext context, final Lane lane) {
+        if (term instanceof Expr && ((Expr)term).arithmetic) {
+            return ((Expr)term).evalArithmetic(node, tmp, context, lane);
+        } else if (term.getClass() == Term.class && term.isNumber()) {
+            lane.set(term.numberValue());
+            return true;
+        }
+        Number n = numberValue(context, evalTermAsObject(name, term, node, tmp, context));
+        if (n == null) {
+            return false;
+        }
+        lane.set(n);
+        return true;
+    }
+
+    /**
+     * Evaluate this arithmetic Expr against the node and return its value in a Lane,
+     * without boxing. Used by the typed accessors on {@link ZPath}.
+     * @return the lane, or null if it doesn't evaluate to a number
+     */
+    Lane evalLane(final Object node, final EvalContext context) {
+        Lane lane = new Lane();
+        return evalArithmetic(node, new ArrayList<Object>(), context, lane) ? lane : null;
+    }
+
+    /**
+     * Return true if this Expr is + - * / or %
+     */
+    boolean isArithmetic() {
+        return arithmetic;
+    }
+
+    /**
+     * Evaluate this arithmetic Expr against the node, storing the result in the lane.
+     * @return false if either side does not evaluate to a number
+     */
+    private boolean evalArithmetic(final Object node, final List<Object> tmp, final EvalContext context, final Lane lane) {
+        if (!evalLane("lhs", lhs, node, tmp, context, lane)) {
+            return false;
+        }
+        final int lt = lane.type;
+        final long ll = lane.l;
+        final double ld = lane.d;
+        final Number lb = lane.big;
+        if (!evalLane("rhs", rhs, node, tmp, context, lane)) {
+            return false;
+        }
+        final int rt = lane.type;
+        if (lt == LANE_DOUBLE || rt == LANE_DOUBLE || lt == LANE_BIGDECIMAL || rt == LANE_BIGDECIMAL || (op == Term.SLASH && (!lhs.isNumber() || !rhs.isNumber()))) {
+            // Floating point required if either side is floating point, OR if either
+            // side is a non-constant expression and we're dividing.
+            if (lt >= LANE_BIGINTEGER || rt >= LANE_BIGINTEGER) {
+                // This is going to be super rare, forget optimising
+                BigDecimal bln = toBigDecimal(lt, ll, ld, lb);
+                BigDecimal brn = toBigDecimal(rt, lane.l, lane.d, lane.big);
+                if (op == Term.PLUS) {
+                    lane.big = bln.add(brn);
+                } else if (op == Term.MINUS) {
+                    lane.big = bln.subtract(brn);
+                } else if (op == Term.STAR) {
+                    lane.big = bln.multiply(brn);
+                } else if (op == Term.SLASH) {
+                    lane.big = bln.divide(brn);
+                } else {
+                    lane.big = bln.remainder(brn);
+                }
+                lane.type = LANE_BIGDECIMAL;
+            } else {
+                final double a = lt == LANE_DOUBLE ? ld : (double)ll;
+                final double b = rt == LANE_DOUBLE ? lane.d : (double)lane.l;
+                if (op == Term.PLUS) {
+                    lane.d = a + b;
+                } else if (op == Term.MINUS) {
+                    lane.d = a - b;
+                } else if (op == Term.STAR) {
+                    lane.d = a * b;
+                } else if (op == Term.SLASH) {
+                    lane.d = a / b;
+                } else {
+                    lane.d = a % b;
+                }
+                lane.type = LANE_DOUBLE;
+            }
+        } else if (lt == LANE_LONG && rt == LANE_LONG) {
+            final long a = ll;
+            final long b = lane.l;
+            try {
+                if (op == Term.PLUS) {
+                    lane.l = Math.addExact(a, b);
+                } else if (op == Term.MINUS) {
+                    lane.l = Math.subtractExact(a, b);
+                } else if (op == Term.STAR) {
+                    lane.l = Math.multiplyExact(a, b);
+                } else if (op == Term.SLASH) {
+                    if (a == Long.MIN_VALUE && b == -1) {
+                        throw new ArithmeticException();
+                    }
+                    lane.l = a / b;
+                } else {
+                    lane.l = a % b;
+                }
+            } catch (ArithmeticException e) {
+                if (b == 0 && (op == Term.SLASH || op == Term.PERCENT)) {
+                    throw e;
+                }
+                // Overflow: promote to BigInteger
+                bigIntegerOp(BigInteger.valueOf(a), BigInteger.valueOf(b), lane);
+            }
+        } else {
+            // Other value is at worse a long
+            bigIntegerOp(toBigInteger(lt, ll, lb), toBigInteger(rt, lane.l, lane.big), lane);
+        }
+        return true;
+    }
+
+    private void bigIntegerOp(final BigInteger bln, final BigInteger brn, final Lane lane) {
+        BigInteger r;
+        if (op == Term.PLUS) {
+            r = bln.add(brn);
+        } else if (op == Term.MINUS) {
+            r = bln.subtract(brn);
+        } else if (op == Term.STAR) {
+            r = bln.multiply(brn);
+        } else if (op == Term.SLASH) {
+            r = bln.divide(brn);
+        } else {
+            r = bln.remainder(brn);
+        }
+        lane.type = LANE_BIGINTEGER;
+        lane.big = r;
+    }
+
+    /**
+     * Compare the numeric values of lhs and rhs without boxing them.
+     * Return value is as for {@link #compare(Object,Object,Term,EvalContext)}
+     */
+    private double compareLanes(final Object node, final List<Object> tmp, final EvalContext context, final Lane lane) {
+        if (!evalLane("lhs", lhs, node, tmp, context, lane)) {
+            return Double.NaN;
+        }
+        final int lt = lane.type;
+        final long ll = lane.l;
+        final double ld = lane.d;
+        final Number lb = lane.big;
+        if (!evalLane("rhs", rhs, node, tmp, context, lane)) {
+            return Double.NaN;
+        }
+        final int rt = lane.type;
+        if (lt >= LANE_BIGINTEGER || rt >= LANE_BIGINTEGER) {
+            Number a = lt == LANE_LONG ? Long.valueOf(ll) : lt == LANE_DOUBLE ? Double.valueOf(ld) : lb;
+            return compare(a, lane.box(), context);
+        } else if (lt == LANE_DOUBLE || rt == LANE_DOUBLE) {
+            double d = (lt == LANE_DOUBLE ? ld : (double)ll) - (rt == LANE_DOUBLE ? lane.d : (double)lane.l);
+            if (Math.abs(d) < context.getConfiguration().getMinDouble()) {
+                d = 0;
+            }
+            return d < 0 ? -1 : d > 0 ? 1 : 0;
+        } else {
+            return Long.compare(ll, lane.l);
+        }
+    }
+
     @Override public List<Object> eval(final List<Object> in, final List<Object> out, final EvalContext context) {
         final Configuration.Logger logger = context.getLogger();
+        Lane lane = null;
         for (Object node : in) {
             List<Object> tmp = out.subList(out.size(), out.size());     // But, just in case, do this.
             try {
@@ -108,75 +389,12 @@ class Expr extends Term {
                     if (ln != null) {
                         result = Integer.valueOf(~ln.intValue());
                     }
-                } else if (op == Term.PLUS || op == Term.MINUS || op == Term.STAR || op == Term.SLASH || op == Term.PERCENT) {
-                    Number ln = numberValue(context, evalTermAsObject("lhs", lhs, node, tmp, context));
-                    Number rn = numberValue(context, evalTermAsObject("rhs", rhs, node, tmp, context));
-                    if (ln != null && rn != null) {
-                        if (ln instanceof BigDecimal || rn instanceof BigDecimal || ln instanceof Double || rn instanceof Double || ln instanceof Float || rn instanceof Float || (op == Term.SLASH && (!lhs.isNumber() || !rhs.isNumber()))) {
-                            // Floating point required if either side is floating point, OR if either
-                            // side is a non-constant expression and we're dividing.
-
-                            if (ln instanceof BigDecimal || rn instanceof BigDecimal || ln instanceof BigInteger || rn instanceof BigInteger) {
-                                // Ugh, no BigDecimal.valueOf(Number). This is going to be super rare, forget optimising
-                                BigDecimal bln = ln instanceof BigDecimal ? (BigDecimal)ln : new BigDecimal(ln.toString());
-                                BigDecimal brn = rn instanceof BigDecimal ? (BigDecimal)rn : new BigDecimal(rn.toString());
-                                if (op == Term.PLUS) {
-                                    result = bln.add(brn);
-                                } else if (op == Term.MINUS) {
-                                    result = bln.subtract(brn);
-                                } else if (op == Term.STAR) {
-                                    result = bln.multiply(brn);
-                                } else if (op == Term.SLASH) {
-                                    result = bln.divide(brn);
-                                } else {
-                                    result = bln.remainder(brn);
-                                }
-                                result = bln;
-                            } else if (op == Term.PLUS) {
-                                result = ln.doubleValue() + rn.doubleValue();
-                            } else if (op == Term.MINUS) {
-                                result = ln.doubleValue() - rn.doubleValue();
-                            } else if (op == Term.STAR) {
-                                result = ln.doubleValue() * rn.doubleValue();
-                            } else if (op == Term.SLASH) {
-                                result = ln.doubleValue() / rn.doubleValue();
-                            } else {
-                                result = ln.doubleValue() % rn.doubleValue();
-                            }
-                        } else if (ln instanceof BigInteger || rn instanceof BigInteger) {
-                            // Other value is at worse a long
-                            BigInteger bln = ln instanceof BigInteger ? (BigInteger)ln : BigInteger.valueOf(ln.longValue());
-                            BigInteger brn = rn instanceof BigInteger ? (BigInteger)rn : BigInteger.valueOf(rn.longValue());
-                            if (op == Term.PLUS) {
-                                result = bln.add(brn);
-                            } else if (op == Term.MINUS) {
-                                result = bln.subtract(brn);
-                            } else if (op == Term.STAR) {
-                                result = bln.multiply(brn); 
-                            } else if (op == Term.SLASH) {
-                                result = bln.divide(brn);
-                            } else {
-                                result = bln.remainder(brn);
-                            }
-                        } else {
-                            long l;
-                            if (op == Term.PLUS) {
-                                l = ln.longValue() + rn.longValue();
-                            } else if (op == Term.MINUS) {
-                                l = ln.longValue() - rn.longValue();
-                            } else if (op == Term.STAR) {
-                                l = ln.longValue() * rn.longValue();
-                            } else if (op == Term.SLASH) {
-                                l = ln.longValue() / rn.longValue();
-                            } else {
-                                l = ln.longValue() % rn.longValue();
-                            }
-                            if (l == (int)l) {
-                                result = Integer.valueOf((int)l);
-                            } else {
-                                result = Long.valueOf(l);
-                            }
-                        }
+                } else if (arithmetic) {
+                    if (lane == null) {
+                        lane = new Lane();
+                    }
+                    if (evalArithmetic(node, tmp, context, lane)) {
+                        result = lane.box();
                     }
                 } else if (op == Term.BITAND || op == Term.BITOR || op == Term.CARET) {
                     Number ln = numberValue(context, evalTermAsObject("lhs", lhs, node, tmp, context));
@@ -193,9 +411,17 @@ class Expr extends Term {
                         }
                     }
                 } else if (op == Term.GE || op == Term.GT || op == Term.LT || op == Term.LE || op == Term.EQ || op == Term.NE) {
-                    Object ln = evalTermAsObject("lhs", lhs, node, tmp, context);
-                    Object rn = evalTermAsObject("rhs", rhs, node, tmp, context);
-                    double v = compare(ln, rn, op, context);
+                    double v;
+                    if (numericCompare) {
+                        if (lane == null) {
+                            lane = new Lane();
+                        }
+                        v = compareLanes(node, tmp, context, lane);
+                    } else {
+                        Object ln = evalTermAsObject("lhs", lhs, node, tmp, context);
+                        Object rn = evalTermAsObject("rhs", rhs, node, tmp, context);
+                        v = compare(ln, rn, op, context);
+                    }
                     if (v > 0) {
                         result = Boolean.valueOf(op == Term.GE || op == Term.GT || op == Term.NE); 
                     } else if (v < 0) {
@@ -275,6 +501,41 @@ class Expr extends Term {
         return context.booleanValue(node);
     }
 
+    /**
+     * Return a value for the node that can be hashed, so that nodes which are equal with
+     * <code>==</code> have equal values: integral numbers become a Long, other numbers a Double,
+     * strings and booleans are themselves, and any other node (a map or list) is the node itself.
+     * @param context the context
+     * @param node the node
+     * @return the normalized value
+     */
+    static Object hashKey(EvalContext context, Object node) {
+        Number n = Expr.numberValue(context, node);
+        if (n != null) {
+            if (n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte) {
+                return Long.valueOf(n.longValue());
+            } else if (n instanceof BigInteger) {
+                return ((BigInteger)n).bitLength() < 64 ? (Object)Long.valueOf(n.longValue()) : n;
+            } else if (n instanceof BigDecimal) {
+                BigDecimal b = ((BigDecimal)n).stripTrailingZeros();
+                if (b.scale() <= 0 && b.precision() - b.scale() < 19) {
+                    return Long.valueOf(b.longValue());
+                }
+            }
+            double d = n.doubleValue();
+            return d == (long)d && !Double.isInfinite(d) ? (Object)Long.valueOf((long)d) : Double.valueOf(d == 0 ? 0d : d);
+        }
+        String s = Expr.stringValue(context, node);
+        if (s != null) {
+            return s;
+        }
+        Boolean b = Expr.booleanValue(context, node);
+        if (b != null) {
+            return b;
+        }
+        return node == null ? EvalContext.NULL : node;
+    }
+
     static boolean booleanValueRequired(EvalContext context, Object node) {
         Boolean b = booleanValue(context, node);
         if (b != null) {
@@ -284,38 +545,134 @@ class Expr extends Term {
         }
     }
 
-    static StringBuilder escapeXML(String s, boolean attribute, StringBuilder sb) {
+    // The escaped form of each ASCII character for escapeXML, or null if it's unchanged
+    private static final String[] XMLESCAPE = new String[0x80], XMLESCAPE_ATTRIBUTE;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    static final int MAXXMLESCAPE = 8;  // the most chars escapeXML writes for one char, for "&#xfffd;"
+    private static final Map<Charset,BitSet> ENCODABLE = new ConcurrentHashMap<Charset,BitSet>();
+    static {
+        for (int c=0;c<0x20;c++) {
+            if (c != '\t' && c != '\r' && c != '\n') {
+                // Illegal XML character, even encoded. Substitute
+                XMLESCAPE[c] = "&#xfffd;";      // Unicode replacement character
+            }
+        }
+        XMLESCAPE['&'] = "&amp;";
+        XMLESCAPE['>'] = "&gt;";
+        XMLESCAPE['<'] = "&lt;";
+        XMLESCAPE_ATTRIBUTE = XMLESCAPE.clone();
+        XMLESCAPE_ATTRIBUTE['\''] = "&apos;";
+        XMLESCAPE_ATTRIBUTE['\"'] = "&quot;";
+    }
+
+    /**
+     * Return the set of characters that can be written unescaped in the Charset: bit n is set
+     * for each legal character n up to 0xffff, and bit 0x10000 is set if the charset can
+     * encode characters outside the BMP. The result is cached
+     */
+    static BitSet encodable(Charset charset) {
+        BitSet set = ENCODABLE.get(charset);
+        if (set == null) {
+            set = new BitSet(0x10001);
+            CharsetEncoder encoder = charset.newEncoder();
+            for (int c=0;c<0x80;c++) {
+                set.set(c);
+            }
+            if (encoder.canEncode("\ud83d\ude00")) {
+                set.set(0x10000);
+            }
+            for (char c=0x80;c<0xfffe;c++) {
+                if ((c < 0xd800 || c > 0xdfff) && encoder.canEncode(c)) {
+                    set.set(c);
+                }
+            }
+            ENCODABLE.put(charset, set);
+        }
+        return set;
+    }
+
+    static StringBuilder escapeXML(String s, boolean attribute, BitSet encodable, StringBuilder sb) {
         if (sb == null) {
-            sb = new StringBuilder();
+            sb = new StringBuilder(s.length() + 16);
         }
-        int len = s.length();
-        for (int i=0;i<len;) {
-            final int c = s.codePointAt(i);
-            if (c < 0x80) {      // ASCII range: test most common case first
-                if (c < 0x20 && (c != '\t' && c != '\r' && c != '\n')) {
-                    // Illegal XML character, even encoded. Skip or substitute
-                    sb.append("&#xfffd;");   // Unicode replacement character
+        try {
+            escapeXML(s, attribute, encodable, (Appendable)sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // can't happen
+        }
+        return sb;
+    }
+
+    /**
+     * Return the index of the first character at or after start that {@link #escapeXML} would change,
+     * or -1 if there are none
+     * @param encodable the non-ASCII characters to leave unescaped, as returned from {@link #encodable}, or null to escape them all
+     */
+    static int indexOfXMLEscape(CharSequence s, int start, boolean attribute, BitSet encodable) {
+        final String[] table = attribute ? XMLESCAPE_ATTRIBUTE : XMLESCAPE;
+        final int len = s.length();
+        for (int i=start;i<len;i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (table[c] != null) {
+                    return i;
+                }
+            } else if (encodable == null) {
+                return i;
+            } else if (!encodable.get(c)) {
+                // A surrogate pair is left as it is if the charset can encode it
+                if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1)) && encodable.get(0x10000)) {
+                    i++;
                 } else {
-                    switch(c) {
-                      case '&':  sb.append("&amp;"); break;
-                      case '>':  sb.append("&gt;"); break;
-                      case '<':  sb.append("&lt;"); break;
-                      case '\'':  if (attribute) { sb.append("&apos;"); break; }
-                      case '\"':  if (attribute) { sb.append("&quot;"); break; }
-                      default:   sb.append((char)c);
-                    }
+                    return i;
                 }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Escape the text for XML, writing it directly to the output. Runs of characters that
+     * don't need escaping are written in one call, and if there are none to escape the
+     * CharSequence is written as it is
+     * @param encodable the non-ASCII characters to leave unescaped, as returned from {@link #encodable}, or null to escape them all
+     * @return the number of chars written
+     */
+    static int escapeXML(CharSequence s, boolean attribute, BitSet encodable, Appendable out) throws IOException {
+        final String[] table = attribute ? XMLESCAPE_ATTRIBUTE : XMLESCAPE;
+        final int len = s.length();
+        int start = 0, count = 0, i;
+        while ((i = indexOfXMLEscape(s, start, attribute, encodable)) >= 0) {
+            if (i > start) {
+                out.append(s, start, i);
+                count += i - start;
+            }
+            final int c = Character.codePointAt(s, i);
+            if (c < 0x80) {
+                String e = table[c];
+                out.append(e);
+                count += e.length();
             } else if ((c >= 0xd800 && c <= 0xdfff) || c == 0xfffe || c == 0xffff) {
-                // Illegal XML character, even encoded. Skip or substitute
-                sb.append("&#xfffd;");   // Unicode replacement character
+                // Illegal XML character, even encoded. Substitute
+                out.append("&#xfffd;");   // Unicode replacement character
+                count += 8;
             } else {
-                sb.append("&#x");
-                sb.append(Integer.toHexString(c));
-                sb.append(';');
+                out.append("&#x");
+                int shift = (31 - Integer.numberOfLeadingZeros(c)) & ~3;
+                count += 4 + (shift >> 2) + 1;
+                for (;shift>=0;shift-=4) {
+                    out.append(HEX[(c >> shift) & 0xf]);
+                }
+                out.append(';');
             }
-            i += c < 0x10000 ? 1 : 2;
+            start = i + (c < 0x10000 ? 1 : 2);
         }
-        return sb;
+        if (start == 0) {
+            out.append(s);
+        } else if (start < len) {
+            out.append(s, start, len);
+        }
+        return count + len - start;
     }
 
     static StringBuilder unescapeXML(String s, StringBuilder sb) {
@@ -438,7 +795,7 @@ class Expr extends Term {
                 d = 0;
             }
             v = d < 0 ? -1 : d > 0 ? 1 : 0;
-        } else if (b instanceof BigInteger || b instanceof BigInteger) {
+        } else if (a instanceof BigInteger || b instanceof BigInteger) {
             a = a instanceof BigInteger ? a : new BigInteger(a.toString());
             b = b instanceof BigInteger ? b : new BigInteger(b.toString());
             v = ((BigInteger)a).compareTo((BigInteger)b);
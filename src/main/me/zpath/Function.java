@@ -15,6 +15,17 @@ public interface Function {
      */
     public boolean matches(String name);
 
+    /**
+     * Return the names implemented by this Function, if they are known in advance.
+     * If not null, {@link #matches} must return true for each of these names and
+     * no others, which allows the Function to be found without calling {@link #matches}.
+     * @return the list of names, or null if only {@link #matches} can say (the default)
+     * @see FunctionRegistry
+     */
+    public default Collection<String> names() {
+        return null;
+    }
+
     /**
      * Verify the list of arguments for this function, returning false if they're invalid.
      * As most arguments are resolved at runtime this method will often simply verify the size of the list
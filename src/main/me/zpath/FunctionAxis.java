@@ -8,12 +8,43 @@ class FunctionAxis extends Term implements Axis {
     private final String name;
     private final List<Term> args;
     private final boolean path;
+    private final Object prepared;
+    private final int hash;
+    private volatile Binding binding;
 
-    FunctionAxis(Function function, String name, List<Term> args, boolean path) {
+    /**
+     * A function resolved from an EvalContext, valid for all contexts of the same class
+     */
+    private static final class Binding {
+        final Class<?> type;
+        final Function function;
+        Binding(Class<?> type, Function function) {
+            this.type = type;
+            this.function = function;
+        }
+    }
+
+    FunctionAxis(Function function, String name, List<Term> args, boolean path, Object prepared) {
         this.function = function;
         this.name = name;
         this.args = args;
         this.path = path;
+        this.prepared = prepared;
+        this.hash = (name.hashCode() * 31 + args.hashCode()) * 31 + (path ? 1 : 0);
+    }
+
+    @Override public int hashCode() {
+        return hash;
+    }
+
+    @Override public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        } else if (o instanceof FunctionAxis) {
+            FunctionAxis f = (FunctionAxis)o;
+            return f.hash == hash && f.function == function && f.path == path && f.name.equals(name) && f.args.equals(args) && Objects.equals(f.prepared, prepared);
+        }
+        return false;
     }
 
     @Override public String toString() {
@@ -28,12 +59,36 @@ class FunctionAxis extends Term implements Axis {
         return true;
     }
 
+    String name() {
+        return name;
+    }
+
+    List<Term> args() {
+        return args;
+    }
+
+    /**
+     * Return true if this function was called as a step in a path, rather than as an expression
+     */
+    boolean isStep() {
+        return path;
+    }
+
     private Function getFunction(EvalContext context) {
         Function function = this.function;
         if (function == null) {
-            function = context.getFunction(name);
-            if (function == null) {
-                throw new IllegalStateException("No such function " + name + "()");
+            // Not found at compile time, so specific to the EvalContext. Resolve
+            // once per type of context rather than on every evaluation
+            Binding binding = this.binding;
+            Class<?> type = Parameter.unwrap(context).getClass();
+            if (binding != null && binding.type == type) {
+                function = binding.function;
+            } else {
+                function = context.getFunction(name);
+                if (function == null) {
+                    throw new IllegalStateException("No such function " + name + "()");
+                }
+                this.binding = new Binding(type, function);
             }
         }
         return function;
@@ -41,8 +96,8 @@ class FunctionAxis extends Term implements Axis {
 
     @Override public List<Object> eval(final List<Object> in, final List<Object> out, EvalContext context) {
         Function function = getFunction(context);
-        if (path) {
-            function.eval(name, args, in, out, context);
+        if (function instanceof TypedFunction) {
+            ((TypedFunction)function).eval(name, args, prepared, in, out, context);
         } else {
             function.eval(name, args, in, out, context);
         }
@@ -0,0 +1,133 @@
+package me.zpath;
+
+import java.util.*;
+
+/**
+ * An ordered Set of {@link Function} objects which can find the function for a name
+ * without testing every member in turn. Functions which list their names via
+ * {@link Function#names} are found with a single hash lookup; any that don't
+ * are tested with {@link Function#matches} as before. Where two functions match
+ * the same name, the one added first wins, exactly as if the set were scanned in order.
+ * @see Configuration#getFunctions
+ */
+public class FunctionRegistry extends AbstractSet<Function> {
+
+    private final Set<Function> functions = new LinkedHashSet<Function>();
+    private volatile Index index;
+
+    private static final class Index {
+        final Map<String,Integer> named = new HashMap<String,Integer>();        // name -> position
+        final List<Function> all = new ArrayList<Function>();
+        final List<Integer> unnamed = new ArrayList<Integer>();                  // positions of functions without names()
+    }
+
+    /**
+     * Create a new, empty FunctionRegistry
+     */
+    public FunctionRegistry() {
+    }
+
+    /**
+     * Create a new FunctionRegistry containing the specified functions
+     * @param functions the functions to add
+     */
+    public FunctionRegistry(Collection<? extends Function> functions) {
+        this.functions.addAll(functions);
+    }
+
+    /**
+     * Return the first Function in this set matching the specified name, or null if there is none
+     * @param name the function name
+     * @return the Function or null
+     */
+    public Function get(String name) {
+        Index index = this.index;
+        if (index == null) {
+            index = reindex();
+        }
+        Integer p = index.named.get(name);
+        int max = p == null ? Integer.MAX_VALUE : p.intValue();
+        for (int i=0;i<index.unnamed.size();i++) {
+            int q = index.unnamed.get(i);
+            if (q > max) {
+                break;
+            }
+            Function f = index.all.get(q);
+            if (f.matches(name)) {
+                return f;
+            }
+        }
+        return p == null ? null : index.all.get(max);
+    }
+
+    private synchronized Index reindex() {
+        Index index = this.index;
+        if (index != null) {
+            return index;
+        }
+        index = new Index();
+        for (Function f : functions) {
+            int p = index.all.size();
+            index.all.add(f);
+            Collection<String> names = f.names();
+            if (names == null) {
+                index.unnamed.add(p);
+            } else {
+                for (String name : names) {
+                    if (!index.named.containsKey(name)) {
+                        index.named.put(name, p);
+                    }
+                }
+            }
+        }
+        return this.index = index;
+    }
+
+    @Override public synchronized boolean add(Function f) {
+        if (functions.add(f)) {
+            index = null;
+            return true;
+        }
+        return false;
+    }
+
+    @Override public synchronized boolean remove(Object o) {
+        if (functions.remove(o)) {
+            index = null;
+            return true;
+        }
+        return false;
+    }
+
+    @Override public synchronized void clear() {
+        functions.clear();
+        index = null;
+    }
+
+    @Override public boolean contains(Object o) {
+        return functions.contains(o);
+    }
+
+    @Override public int size() {
+        return functions.size();
+    }
+
+    @Override public Iterator<Function> iterator() {
+        final Iterator<Function> i = functions.iterator();
+        return new Iterator<Function>() {
+            public boolean hasNext() {
+                return i.hasNext();
+            }
+            public Function next() {
+                return i.next();
+            }
+            public void remove() {
+                synchronized(FunctionRegistry.this) {
+                    i.remove();
+                    index = null;
+                }
+            }
+        };
+    }
+
+}
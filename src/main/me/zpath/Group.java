@@ -0,0 +1,155 @@
+package me.zpath;
+
+import java.util.*;
+
+/**
+ * <p>
+ * A group of nodes sharing the same key, as returned by the <code>group()</code> function.
+ * A Group can be navigated like any other node whatever the model: its children, <code>*</code>,
+ * are the nodes in the group, in the order they were found, and <code>key()</code> is the
+ * value they were grouped by. For example
+ * </p>
+ * <pre>
+ * {{#group(items/*, category)}}{{key()}}: {{count(*)}} items, {{sum(*&#x2F;price)}}{{/}}
+ * </pre>
+ * <p>
+ * When retrieved from a {@link Result}, a Group is a <code>Map.Entry</code> of the key to the list of nodes.
+ * </p>
+ */
+public final class Group implements Map.Entry<Object,List<Object>> {
+
+    private final Object key;
+    private final List<Object> nodes;
+
+    Group(Object key) {
+        this.key = key;
+        this.nodes = new ArrayList<Object>();
+    }
+
+    /**
+     * Return the key the nodes were grouped by: a String, Number or Boolean,
+     * or the node itself if the key wasn't a primitive value
+     * @return the key
+     */
+    @Override public Object getKey() {
+        return key;
+    }
+
+    /**
+     * Return the nodes in this group
+     * @return the read-only list of nodes, of which there will be at least one
+     */
+    @Override public List<Object> getValue() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    /**
+     * Throws UnsupportedOperationException
+     */
+    @Override public List<Object> setValue(List<Object> value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override public int hashCode() {
+        return Objects.hashCode(key) ^ nodes.hashCode();
+    }
+
+    @Override public boolean equals(Object o) {
+        if (o instanceof Map.Entry) {
+            Map.Entry<?,?> e = (Map.Entry<?,?>)o;
+            return Objects.equals(key, e.getKey()) && nodes.equals(e.getValue());
+        }
+        return false;
+    }
+
+    @Override public String toString() {
+        return key + "=" + nodes;
+    }
+
+    /**
+     * Return the children of the group that match the key used by {@link EvalContext#get}:
+     * all of them for the wildcard, or one by index
+     */
+    Iterable<? extends Object> get(Object name) {
+        if (name == EvalContext.WILDCARD) {
+            return nodes;
+        } else if (name instanceof Integer) {
+            int i = ((Integer)name).intValue();
+            if (i >= 0 && i < nodes.size()) {
+                return Collections.singletonList(nodes.get(i));
+            }
+        }
+        return Collections.<Object>emptyList();
+    }
+
+    /**
+     * An Aggregate which collects nodes into groups with a single pass, hashing the normalized
+     * value of their key (see {@link Expr#hashKey}) so that keys equal by <code>==</code>
+     * are in the same group. Nodes without a key are skipped.
+     */
+    static final class Collector extends Aggregate {
+        private final Term key;
+        private final boolean distinct;
+        private final Map<Object,Group> groups = new LinkedHashMap<Object,Group>();
+        private final List<Object> tmp = new ArrayList<Object>();
+
+        /**
+         * @param key the key expression, or null to group nodes by their own value
+         * @param distinct if true, only the first node in each group is retained
+         * @param context the context
+         */
+        Collector(Term key, boolean distinct, EvalContext context) {
+            super(context);
+            this.key = key;
+            this.distinct = distinct;
+        }
+
+        @Override public boolean add(Object node) {
+            Object k = node;
+            if (key != null) {
+                tmp.clear();
+                key.eval(Collections.<Object>singletonList(node), tmp, context);
+                if (tmp.isEmpty()) {
+                    return true;
+                }
+                k = tmp.get(0);
+                tmp.clear();
+            }
+            Object hash = Expr.hashKey(context, k);
+            Group g = groups.get(hash);
+            if (g == null) {
+                Object v = Expr.numberValue(context, k);
+                if (v == null) {
+                    v = Expr.stringValue(context, k);
+                    if (v == null) {
+                        v = Expr.booleanValue(context, k);
+                        if (v == null) {
+                            v = k;
+                        }
+                    }
+                }
+                groups.put(hash, g = new Group(v));
+                g.nodes.add(node);
+            } else if (!distinct) {
+                g.nodes.add(node);
+            }
+            return true;
+        }
+
+        @Override public void clear() {
+            groups.clear();
+        }
+
+        /**
+         * Return the list of Groups, or for distinct the first node in each, in the order they were found
+         */
+        @Override Object result() {
+            List<Object> out = new ArrayList<Object>(groups.size());
+            for (Group g : groups.values()) {
+                out.add(distinct ? g.nodes.get(0) : g);
+            }
+            return out;
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+package me.zpath;
+
+import java.util.*;
+
+/**
+ * A named parameter in an expression, eg <code>$id</code> in <code>users/*[id == $id]</code>.
+ * The value is supplied by binding the ZPath with {@link ZPath#bind},
+ * so one compiled expression can be reused for any value.
+ */
+class Parameter extends Term {
+
+    private final String name;
+
+    Parameter(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Return the name of the parameter, without the leading "$"
+     */
+    String name() {
+        return name;
+    }
+
+    @Override public int hashCode() {
+        return name.hashCode() * 31 + 36;
+    }
+
+    @Override public boolean equals(Object o) {
+        return o == this || (o instanceof Parameter && ((Parameter)o).name.equals(name));
+    }
+
+    @Override public String toString() {
+        return "$" + name;
+    }
+
+    /**
+     * Add the value of this parameter to out. A parameter whose value is a Collection
+     * adds each of its items, a null value adds {@link EvalContext#NULL}
+     * @throws IllegalStateException if the parameter is not bound
+     */
+    @Override public List<Object> eval(final List<Object> in, final List<Object> out, final EvalContext context) {
+        Map<String,?> params = context instanceof Bound ? ((Bound)context).params : null;
+        if (params == null || !params.containsKey(name)) {
+            throw new IllegalStateException("No value for parameter " + this);
+        }
+        Object value = params.get(name);
+        if (context.getLogger() != null) {
+            context.getLogger().log(this + " = " + value);
+        }
+        if (value instanceof Collection) {
+            for (Object o : (Collection<?>)value) {
+                out.add(o == null ? EvalContext.NULL : o);
+            }
+        } else {
+            out.add(value == null ? EvalContext.NULL : value);
+        }
+        return out;
+    }
+
+    /**
+     * Return the EvalContext that was wrapped to supply parameters, or the context itself if it wasn't
+     */
+    static EvalContext unwrap(EvalContext context) {
+        return context instanceof Bound ? ((Bound)context).context : context;
+    }
+
+    /**
+     * An EvalContext which supplies the values of parameters, and delegates everything else
+     */
+    static final class Bound implements EvalContext {
+        private final EvalContext context;
+        private final Map<String,?> params;
+
+        Bound(EvalContext context, Map<String,?> params) {
+            this.context = context;
+            this.params = params;
+        }
+
+        @Override public Object parent(Object o) {
+            return context.parent(o);
+        }
+        @Override public String stringValue(Object o) {
+            return context.stringValue(o);
+        }
+        @Override public Number numberValue(Object o) {
+            return context.numberValue(o);
+        }
+        @Override public Boolean booleanValue(Object o) {
+            return context.booleanValue(o);
+        }
+        @Override public Iterable<? extends Object> get(Object o, Object key) {
+            return context.get(o, key);
+        }
+        @Override public String type(Object o) {
+            return context.type(o);
+        }
+        @Override public Object key(Object o) {
+            return context.key(o);
+        }
+        @Override public int index(Object o) {
+            return context.index(o);
+        }
+        @Override public Object value(Object o) {
+            return context.value(o);
+        }
+        @Override public Integer compare(Object a, Object b, String test) {
+            return context.compare(a, b, test);
+        }
+        @Override public boolean isUnique(Object o) {
+            return context.isUnique(o);
+        }
+        @Override public Function getFunction(String name) {
+            return context.getFunction(name);
+        }
+        @Override public Configuration getConfiguration() {
+            return context.getConfiguration();
+        }
+        @Override public Configuration.Logger getLogger() {
+            return context.getLogger();
+        }
+        @Override public void setContext(int index, List<Object> nodeset) {
+            context.setContext(index, nodeset);
+        }
+        @Override public int getContextIndex() {
+            return context.getContextIndex();
+        }
+        @Override public List<Object> getContext() {
+            return context.getContext();
+        }
+    }
+
+}
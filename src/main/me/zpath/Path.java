@@ -5,15 +5,77 @@ import java.util.*;
 class Path extends Term {
 
     private final List<Axis> path;
-    private final String tostring;
+    private final int hash;
+    private String tostring;
 
-    Path(List<Axis> path, String tostring) {
-        this.path = path;
-        this.tostring = tostring;
+    Path(List<Axis> path) {
+        this.path = plan(path);
+        this.hash = this.path.hashCode();
+    }
+
+    @Override public int hashCode() {
+        return hash;
+    }
+
+    @Override public boolean equals(Object o) {
+        return o == this || (o instanceof Path && ((Path)o).hash == hash && ((Path)o).path.equals(path));
+    }
+
+    /**
+     * Rewrite the list of axes into an equivalent list that is cheaper to evaluate.
+     * Currently this fuses "<code>**</code>" followed by a key into a single scan,
+     * so the descendents are never collected into an intermediate list.
+     */
+    private static List<Axis> plan(List<Axis> path) {
+        List<Axis> out = new ArrayList<Axis>(path.size());
+        for (int i=0;i<path.size();i++) {
+            Axis axis = path.get(i);
+            if (axis == Axis.SELFORANYDESCENDENT && i + 1 < path.size() && path.get(i + 1) instanceof Axis.KeyAxis) {
+                axis = new Axis.DescendantKeyAxis((Axis.KeyAxis)path.get(++i));
+            }
+            out.add(axis);
+        }
+        return out;
     }
 
     @Override public String toString() {
-        return "path(" + tostring + ")";
+        String s = tostring;
+        if (s == null) {
+            // Built on demand from the axes: most compiled paths are never printed
+            StringBuilder sb = new StringBuilder("path(");
+            for (int i=0;i<path.size();i++) {
+                Axis axis = path.get(i);
+                if (axis == Axis.ROOT) {
+                    sb.append('/');
+                    continue;
+                } else if (i > 0 && path.get(i - 1) != Axis.ROOT && !(axis instanceof Axis.MatchAxis)) {
+                    sb.append('/');
+                }
+                if (axis instanceof Axis.KeyAxis) {
+                    ((Axis.KeyAxis)axis).source(sb);
+                } else if (axis instanceof Axis.DescendantKeyAxis) {
+                    sb.append("**/");
+                    ((Axis.DescendantKeyAxis)axis).key.source(sb);
+                } else if (axis instanceof Axis.MatchAxis) {
+                    sb.append('[');
+                    sb.append(((Axis.MatchAxis)axis).term);
+                    sb.append(']');
+                } else if (axis == Axis.SELFORANYDESCENDENT) {
+                    sb.append("**");
+                } else if (axis == Axis.PARENT) {
+                    sb.append("..");
+                } else if (axis == Axis.ANCESTORS) {
+                    sb.append("..*");
+                } else if (axis == Axis.SELF) {
+                    sb.append('.');
+                } else {
+                    sb.append(axis);
+                }
+            }
+            sb.append(')');
+            tostring = s = sb.toString();
+        }
+        return s;
     }
 
     @Override public void log(Configuration.Logger logger) {
@@ -29,7 +91,21 @@ class Path extends Term {
         return true;
     }
 
+    /**
+     * Return the axes of this path, after planning
+     */
+    List<Axis> axes() {
+        return path;
+    }
+
     @Override public List<Object> eval(final List<Object> in, final List<Object> out, final EvalContext context) {
+        return eval(in, out, context, null);
+    }
+
+    /**
+     * Evaluate the path, recording each step in the plan if it's not null
+     */
+    List<Object> eval(final List<Object> in, final List<Object> out, final EvalContext context, final Plan plan) {
         final Configuration.Logger logger = context.getLogger();
         List<Object> tmpin = new ArrayList<Object>();
         List<Object> tmpout = new ArrayList<Object>();
@@ -49,6 +125,13 @@ class Path extends Term {
                         logger.log(axis + " eval on " + tmpin.size() + " nodes");
                         logger.enter();
                     }
+                    if (i == path.size() - 1 && out instanceof Aggregate && logger == null && plan == null && !(axis instanceof Term)) {
+                        // Final step of a path being aggregated: the built-in axes only add
+                        // to their output, so send the nodes straight to the Aggregate
+                        // rather than collecting them first.
+                        axis.eval(tmpin, out, context);
+                        return out;
+                    }
                     tmpout.clear();
                     axis.eval(tmpin, tmpout, context);
                 } finally {
@@ -57,8 +140,16 @@ class Path extends Term {
                     }
                 }
 
+                if (plan != null) {
+                    plan.add(axis, tmpin.size(), tmpout.size());
+                }
                 if (tmpout.isEmpty()) {
                     tmpin.clear();
+                    if (plan != null) {
+                        while (++i < path.size()) {
+                            plan.add(path.get(i), 0, 0);
+                        }
+                    }
                     break;
                 }
                 // Make the output from this segment the input
@@ -0,0 +1,204 @@
+package me.zpath;
+
+import java.util.*;
+
+/**
+ * A Plan is returned from {@link ZPath#explain}. It describes each step taken to evaluate
+ * a ZPath against a node, the strategy used for that step, and the number of nodes
+ * the step was estimated to produce (from statistics gathered on the document)
+ * alongside the number it actually produced.
+ */
+public class Plan {
+
+    private final ZPath zpath;
+    private final Statistics stats;
+    private final List<Step> steps;
+    private int term;
+    private double estimate;
+
+    Plan(ZPath zpath, Statistics stats) {
+        this.zpath = zpath;
+        this.stats = stats;
+        this.steps = new ArrayList<Step>();
+        this.term = -1;
+    }
+
+    /**
+     * Begin recording the next top-level term of the ZPath
+     */
+    void begin() {
+        term++;
+        estimate = 1;
+    }
+
+    /**
+     * Record a step of a Path
+     * @param axis the axis
+     * @param input the number of nodes given to the axis
+     * @param actual the number of nodes it produced
+     */
+    void add(Axis axis, int input, int actual) {
+        estimate = stats.estimate(axis, estimate);
+        steps.add(new Step(term, axis.toString(), strategy(axis), input, estimate, actual));
+    }
+
+    /**
+     * Record a term that is not a Path, such as an expression or a function
+     * @param t the term
+     * @param actual the number of nodes it produced
+     */
+    void add(Term t, int actual) {
+        String strategy = t instanceof FunctionAxis ? "function" : t.isExpr() ? "expression" : "constant";
+        steps.add(new Step(term, t.toString(), strategy, 1, 1, actual));
+    }
+
+    private static String strategy(Axis axis) {
+        if (axis == Axis.ROOT) {
+            return "root";
+        } else if (axis == Axis.SELF) {
+            return "self";
+        } else if (axis == Axis.PARENT) {
+            return "parent";
+        } else if (axis == Axis.ANCESTORS) {
+            return "ancestors";
+        } else if (axis == Axis.SELFORANYDESCENDENT) {
+            return "descendant-scan";
+        } else if (axis instanceof Axis.KeyAxis) {
+            return "key-lookup";
+        } else if (axis instanceof Axis.DescendantKeyAxis) {
+            return "fused-descendant-scan";
+        } else if (axis instanceof FunctionAxis) {
+            return "function";
+        } else {
+            return "filter";
+        }
+    }
+
+    /**
+     * Return the {@link ZPath} this Plan was created from
+     * @return the zpath
+     */
+    public ZPath zpath() {
+        return zpath;
+    }
+
+    /**
+     * Return the list of Steps in this Plan, in the order they were evaluated
+     * @return the steps
+     */
+    public List<Step> steps() {
+        return Collections.<Step>unmodifiableList(steps);
+    }
+
+    /**
+     * Return the number of nodes in the document the Plan was evaluated against.
+     * Very large documents are only sampled, in which case this is the size of the sample
+     * @return the number of nodes
+     */
+    public int documentSize() {
+        return stats.nodes();
+    }
+
+    /**
+     * Return the depth of the document the Plan was evaluated against, where the root has a depth of zero
+     * @return the depth
+     */
+    public int documentDepth() {
+        return stats.maxDepth();
+    }
+
+    /**
+     * Return a String representation of this Plan
+     * @return the string representation
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("plan \"");
+        sb.append(zpath);
+        sb.append("\": ");
+        sb.append(stats.nodes());
+        sb.append(stats.isComplete() ? " nodes" : "+ nodes");
+        sb.append(", depth ");
+        sb.append(stats.maxDepth());
+        sb.append('\n');
+        for (Step step : steps) {
+            sb.append("  ");
+            sb.append(step);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A single step in a {@link Plan}
+     */
+    public static class Step {
+        private final int term, input, actual;
+        private final String description, strategy;
+        private final double estimated;
+
+        Step(int term, String description, String strategy, int input, double estimated, int actual) {
+            this.term = term;
+            this.description = description;
+            this.strategy = strategy;
+            this.input = input;
+            this.estimated = estimated;
+            this.actual = actual;
+        }
+
+        /**
+         * Return the index of the top-level term this step belongs to - a ZPath such as
+         * "<code>a, b</code>" has two terms
+         * @return the term index
+         */
+        public int term() {
+            return term;
+        }
+
+        /**
+         * Return a description of the step
+         * @return the description
+         */
+        public String description() {
+            return description;
+        }
+
+        /**
+         * Return the name of the strategy used to evaluate the step, for example
+         * "<code>key-lookup</code>", "<code>descendant-scan</code>" or "<code>fused-descendant-scan</code>"
+         * @return the strategy
+         */
+        public String strategy() {
+            return strategy;
+        }
+
+        /**
+         * Return the number of nodes that were input to this step
+         * @return the input count
+         */
+        public int input() {
+            return input;
+        }
+
+        /**
+         * Return the estimated number of nodes output from this step
+         * @return the estimated count
+         */
+        public double estimated() {
+            return estimated;
+        }
+
+        /**
+         * Return the actual number of nodes output from this step
+         * @return the actual count
+         */
+        public int actual() {
+            return actual;
+        }
+
+        public String toString() {
+            return "#" + term + " " + strategy + " " + description + ": in=" + input + " estimated=" + Math.round(estimated) + " actual=" + actual;
+        }
+    }
+
+}
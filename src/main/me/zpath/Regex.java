@@ -0,0 +1,738 @@
+package me.zpath;
+
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * A compiled regular expression, as used by the <code>matches()</code> and <code>replace()</code>
+ * functions. Patterns are compiled once, when the expression is compiled, into one of three forms:
+ * <ul>
+ * <li>a literal string, if the pattern contains no metacharacters, matched with <code>indexOf</code></li>
+ * <li>a {@link Pattern}, which supports the full syntax but may backtrack</li>
+ * <li>a linear-time matcher, if {@link Configuration#setLinearTimeRegex} is set. This simulates
+ *  the NFA one character at a time (a "Pike VM") so its running time is proportional to the length
+ *  of the input multiplied by the size of the pattern, regardless of the pattern. It supports the same
+ *  syntax as {@link Pattern} except backreferences, lookaround, possessive quantifiers, named groups,
+ *  inline flags, <code>\b</code> and Unicode properties; patterns using those are rejected</li>
+ * </ul>
+ * Results are the same as {@link Pattern} for every pattern that is accepted, with one exception: if a
+ * capturing group is repeated and its final repetition is empty, as in <code>(a*)*</code>, the group
+ * holds the last non-empty repetition rather than the empty string.
+ */
+abstract class Regex {
+
+    private final String pattern;
+
+    private Regex(String pattern) {
+        this.pattern = pattern;
+    }
+
+    /**
+     * Compile the pattern
+     * @param pattern the pattern
+     * @param linear if true, the pattern must be matched in linear time
+     * @throws IllegalArgumentException if the pattern is invalid, or linear is true and it cannot be matched in linear time
+     */
+    static Regex compile(String pattern, boolean linear) {
+        String literal = literal(pattern);
+        if (literal != null) {
+            return new Literal(pattern, literal);
+        }
+        Pattern p = Pattern.compile(pattern);      // Throws PatternSyntaxException if invalid
+        if (linear) {
+            try {
+                return new Linear(pattern, new Compiler(pattern).compile());
+            } catch (UnsupportedOperationException e) {
+                throw new IllegalArgumentException("Pattern \"" + pattern + "\" is not supported by the linear-time matcher: " + e.getMessage());
+            }
+        }
+        return new Backtracking(pattern, p);
+    }
+
+    /**
+     * If the pattern matches only a literal string, return it, otherwise return null
+     */
+    private static String literal(String pattern) {
+        StringBuilder sb = null;
+        for (int i=0;i<pattern.length();i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                // An escaped non-alphanumeric ASCII char is always that char
+                if (i + 1 < pattern.length() && (c=pattern.charAt(i + 1)) < 0x80 && !Character.isLetterOrDigit(c)) {
+                    if (sb == null) {
+                        sb = new StringBuilder(pattern.length());
+                        sb.append(pattern, 0, i);
+                    }
+                    sb.append(c);
+                    i++;
+                } else {
+                    return null;
+                }
+            } else if ("^$.|?*+()[]{}".indexOf(c) >= 0) {
+                return null;
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb == null ? pattern : sb.toString();
+    }
+
+    /**
+     * Return true if the pattern is found in the specified value
+     * @param value the value
+     * @return whether the pattern was found
+     */
+    abstract boolean find(String value);
+
+    /**
+     * Replace every match of the pattern in the value, as {@link Matcher#replaceAll}
+     * @param value the value
+     * @param replacement the replacement, which may include group references as for {@link Matcher#replaceAll}
+     * @return the new value
+     */
+    abstract String replaceAll(String value, String replacement);
+
+    @Override public int hashCode() {
+        return pattern.hashCode() * 31 + getClass().hashCode();
+    }
+
+    @Override public boolean equals(Object o) {
+        return o == this || (o != null && o.getClass() == getClass() && ((Regex)o).pattern.equals(pattern));
+    }
+
+    @Override public String toString() {
+        return pattern;
+    }
+
+    private static class Literal extends Regex {
+        private final String literal;
+        private volatile Pattern p;
+
+        Literal(String pattern, String literal) {
+            super(pattern);
+            this.literal = literal;
+        }
+
+        @Override boolean find(String value) {
+            return value.contains(literal);
+        }
+
+        @Override String replaceAll(String value, String replacement) {
+            if (replacement.indexOf('$') < 0 && replacement.indexOf('\\') < 0) {
+                return value.replace(literal, replacement);
+            }
+            Pattern p = this.p;
+            if (p == null) {
+                this.p = p = Pattern.compile(literal, Pattern.LITERAL);
+            }
+            return p.matcher(value).replaceAll(replacement);
+        }
+    }
+
+    private static class Backtracking extends Regex {
+        private final Pattern p;
+
+        Backtracking(String pattern, Pattern p) {
+            super(pattern);
+            this.p = p;
+        }
+
+        @Override boolean find(String value) {
+            return p.matcher(value).find();
+        }
+
+        @Override String replaceAll(String value, String replacement) {
+            return p.matcher(value).replaceAll(replacement);
+        }
+    }
+
+    //------------------------------------------------------------------------------------
+    // The linear-time matcher
+
+    private static final int CHAR = 0, ANY = 1, ANYNL = 2, CLASS = 3, SPLIT = 4, JMP = 5, SAVE = 6, BOL = 7, EOL = 8, MATCH = 9;
+    private static final int MAXPROGRAM = 5000;
+
+    /**
+     * A compiled program: each instruction is an opcode and two operands
+     */
+    private static final class Program {
+        int[] op = new int[16], x = new int[16], y = new int[16];
+        int size, groups;
+        final List<int[]> classes = new ArrayList<int[]>();     // sorted ranges; a leading -1 means negated
+
+        int emit(int op, int x, int y) {
+            if (size == this.op.length) {
+                if (size >= MAXPROGRAM) {
+                    throw new UnsupportedOperationException("pattern too large");
+                }
+                this.op = Arrays.copyOf(this.op, size * 2);
+                this.x = Arrays.copyOf(this.x, size * 2);
+                this.y = Arrays.copyOf(this.y, size * 2);
+            }
+            this.op[size] = op;
+            this.x[size] = x;
+            this.y[size] = y;
+            return size++;
+        }
+    }
+
+    /**
+     * A list of threads, each a program counter and the capture positions, with
+     * membership testing in constant time so each instruction is visited once per step.
+     */
+    private static final class ThreadList {
+        final int[] pc;
+        final int[][] caps;
+        final int[] seen;
+        int size, generation;
+
+        ThreadList(int n) {
+            pc = new int[n];
+            caps = new int[n][];
+            seen = new int[n];
+        }
+
+        void clear() {
+            size = 0;
+            generation++;
+        }
+    }
+
+    private static final class Linear extends Regex {
+        private final Program program;
+
+        Linear(String pattern, Program program) {
+            super(pattern);
+            this.program = program;
+        }
+
+        @Override boolean find(String value) {
+            return run(value, 0, false) != null;
+        }
+
+        @Override String replaceAll(String value, String replacement) {
+            int[] caps = run(value, 0, true);
+            if (caps == null) {
+                return value;
+            }
+            StringBuilder sb = new StringBuilder(value.length() + 16);
+            int last = 0;
+            while (caps != null) {
+                sb.append(value, last, caps[0]);
+                appendReplacement(value, replacement, caps, sb);
+                last = caps[1];
+                int from = caps[1] == caps[0] ? caps[1] + 1 : caps[1];
+                caps = from <= value.length() ? run(value, from, true) : null;
+            }
+            sb.append(value, last, value.length());
+            return sb.toString();
+        }
+
+        private void appendReplacement(String value, String replacement, int[] caps, StringBuilder sb) {
+            for (int i=0;i<replacement.length();i++) {
+                char c = replacement.charAt(i);
+                if (c == '\\') {
+                    if (++i == replacement.length()) {
+                        throw new IllegalArgumentException("character to be escaped is missing");
+                    }
+                    sb.append(replacement.charAt(i));
+                } else if (c == '$') {
+                    if (++i == replacement.length()) {
+                        throw new IllegalArgumentException("Illegal group reference: group index is missing");
+                    }
+                    int g = replacement.charAt(i) - '0';
+                    if (g < 0 || g > 9) {
+                        throw new IllegalArgumentException("Illegal group reference");
+                    }
+                    if (g > program.groups) {
+                        throw new IndexOutOfBoundsException("No group " + g);
+                    }
+                    // As Matcher, take further digits only while they form a valid group
+                    while (i + 1 < replacement.length()) {
+                        int d = replacement.charAt(i + 1) - '0';
+                        if (d < 0 || d > 9 || g * 10 + d > program.groups) {
+                            break;
+                        }
+                        g = g * 10 + d;
+                        i++;
+                    }
+                    int start = caps[g * 2], end = caps[g * 2 + 1];
+                    if (start >= 0 && end >= 0) {
+                        sb.append(value, start, end);
+                    }
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+
+        /**
+         * Find the leftmost match at or after from, with the same preference between
+         * alternatives as a backtracking matcher.
+         * @param captures if false, return as soon as any match is found
+         * @return the capture positions of the match, or null if there is no match
+         */
+        private int[] run(String s, int from, boolean captures) {
+            final Program p = program;
+            final int len = s.length();
+            ThreadList clist = new ThreadList(p.size), nlist = new ThreadList(p.size);
+            int[] initial = new int[(p.groups + 1) * 2];
+            Arrays.fill(initial, -1);
+            int[] matched = null;
+            clist.clear();
+            add(clist, 0, initial, from, s);
+            for (int pos=from;;) {
+                if (clist.size == 0) {
+                    break;
+                }
+                final int cp = pos < len ? s.codePointAt(pos) : -1;
+                final int next = cp < 0 ? pos : pos + Character.charCount(cp);
+                nlist.clear();
+                for (int i=0;i<clist.size;i++) {
+                    final int pc = clist.pc[i];
+                    final int[] caps = clist.caps[i];
+                    boolean step;
+                    switch (p.op[pc]) {
+                        case CHAR:
+                            step = cp == p.x[pc];
+                            break;
+                        case ANY:
+                            step = cp >= 0 && !isLineTerminator(cp);
+                            break;
+                        case ANYNL:
+                            step = cp >= 0;
+                            break;
+                        case CLASS:
+                            step = cp >= 0 && inClass(p.classes.get(p.x[pc]), cp);
+                            break;
+                        case MATCH:
+                            if (!captures) {
+                                return caps;
+                            }
+                            matched = caps;
+                            // Lower priority threads can't be preferred to this match
+                            i = clist.size;
+                            step = false;
+                            break;
+                        default:
+                            step = false;
+                    }
+                    if (step) {
+                        add(nlist, pc + 1, caps, next, s);
+                    }
+                }
+                if (cp < 0) {
+                    break;
+                }
+                ThreadList t = clist;
+                clist = nlist;
+                nlist = t;
+                pos = next;
+            }
+            return matched;
+        }
+
+        /**
+         * Add a thread at pc to the list, following jumps and zero-width instructions
+         */
+        private void add(ThreadList list, int pc, int[] caps, int pos, String s) {
+            final Program p = program;
+            if (list.seen[pc] == list.generation) {
+                return;
+            }
+            list.seen[pc] = list.generation;
+            switch (p.op[pc]) {
+                case JMP:
+                    add(list, p.x[pc], caps, pos, s);
+                    break;
+                case SPLIT:
+                    add(list, p.x[pc], caps, pos, s);
+                    add(list, p.y[pc], caps, pos, s);
+                    break;
+                case SAVE:
+                    caps = caps.clone();
+                    caps[p.x[pc]] = pos;
+                    add(list, pc + 1, caps, pos, s);
+                    break;
+                case BOL:
+                    if (pos == 0) {
+                        add(list, pc + 1, caps, pos, s);
+                    }
+                    break;
+                case EOL:
+                    if (isEnd(s, pos)) {
+                        add(list, pc + 1, caps, pos, s);
+                    }
+                    break;
+                default:
+                    list.pc[list.size] = pc;
+                    list.caps[list.size++] = caps;
+            }
+        }
+    }
+
+    private static boolean isLineTerminator(int c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == 0x2028 || c == 0x2029;
+    }
+
+    /**
+     * The meaning of "$" without MULTILINE: the end of input, or before a final line terminator
+     */
+    private static boolean isEnd(String s, int pos) {
+        int rem = s.length() - pos;
+        return rem == 0 || (rem == 1 && isLineTerminator(s.charAt(pos))) || (rem == 2 && s.charAt(pos) == '\r' && s.charAt(pos + 1) == '\n');
+    }
+
+    private static boolean inClass(int[] ranges, int c) {
+        boolean negate = ranges.length > 0 && ranges[0] == -1;
+        for (int i=negate ? 1 : 0;i<ranges.length;i+=2) {
+            if (c >= ranges[i] && c <= ranges[i + 1]) {
+                return !negate;
+            }
+        }
+        return negate;
+    }
+
+    private static final int[] DIGIT = { '0', '9' };
+    private static final int[] WORD = { '0', '9', 'A', 'Z', '_', '_', 'a', 'z' };
+    private static final int[] SPACE = { '\t', '\r', ' ', ' ' };        // \t \n \u000B \f \r and space
+
+    /**
+     * A recursive-descent compiler from the pattern to a Program.
+     * Throws UnsupportedOperationException for syntax the linear matcher doesn't support;
+     * invalid syntax has already been rejected by Pattern.compile
+     */
+    private static final class Compiler {
+        private final String s;
+        private final Program p = new Program();
+        private int i;
+
+        Compiler(String s) {
+            this.s = s;
+        }
+
+        Program compile() {
+            // Unanchored search: a lazy ".*" prefix, then the pattern in group 0
+            p.emit(SPLIT, 3, 1);
+            p.emit(ANYNL, 0, 0);
+            p.emit(JMP, 0, 0);
+            p.emit(SAVE, 0, 0);
+            alternation();
+            if (i < s.length()) {
+                throw new UnsupportedOperationException("unexpected '" + s.charAt(i) + "'");
+            }
+            p.emit(SAVE, 1, 0);
+            p.emit(MATCH, 0, 0);
+            return p;
+        }
+
+        private void alternation() {
+            int start = p.size;
+            concatenation();
+            if (i < s.length() && s.charAt(i) == '|') {
+                i++;
+                // Insert SPLIT before the first alternative, JMP after it
+                List<Integer> jumps = new ArrayList<Integer>();
+                insert(start, SPLIT, start + 1, 0);
+                int split = start;
+                jumps.add(p.emit(JMP, 0, 0));
+                p.y[split] = p.size;
+                while (true) {
+                    int alt = p.size;
+                    concatenation();
+                    if (i < s.length() && s.charAt(i) == '|') {
+                        i++;
+                        insert(alt, SPLIT, alt + 1, 0);
+                        for (int k=0;k<jumps.size();k++) {
+                            if (jumps.get(k) >= alt) {
+                                jumps.set(k, jumps.get(k) + 1);
+                            }
+                        }
+                        jumps.add(p.emit(JMP, 0, 0));
+                        p.y[alt] = p.size;
+                    } else {
+                        break;
+                    }
+                }
+                for (int j : jumps) {
+                    p.x[j] = p.size;
+                }
+            }
+        }
+
+        private void concatenation() {
+            while (i < s.length() && s.charAt(i) != '|' && s.charAt(i) != ')') {
+                repetition();
+            }
+        }
+
+        private void repetition() {
+            int start = p.size;
+            atom();
+            int end = p.size;
+            if (i == s.length()) {
+                return;
+            }
+            char c = s.charAt(i);
+            int min, max;
+            if (c == '*') {
+                min = 0;
+                max = -1;
+                i++;
+            } else if (c == '+') {
+                min = 1;
+                max = -1;
+                i++;
+            } else if (c == '?') {
+                min = 0;
+                max = 1;
+                i++;
+            } else if (c == '{') {
+                int close = s.indexOf('}', i);
+                String[] range = s.substring(i + 1, close).split(",", -1);
+                min = Integer.parseInt(range[0].trim());
+                max = range.length == 1 ? min : range[1].trim().isEmpty() ? -1 : Integer.parseInt(range[1].trim());
+                i = close + 1;
+            } else {
+                return;
+            }
+            boolean lazy = false;
+            if (i < s.length() && s.charAt(i) == '?') {
+                lazy = true;
+                i++;
+            } else if (i < s.length() && s.charAt(i) == '+') {
+                throw new UnsupportedOperationException("possessive quantifier");
+            }
+            int[] op = Arrays.copyOfRange(p.op, start, end), x = Arrays.copyOfRange(p.x, start, end), y = Arrays.copyOfRange(p.y, start, end);
+            p.size = start;
+            // Expand x{min,max} to min copies of x, then (max-min) optional copies or a loop
+            for (int k=0;k<min;k++) {
+                copy(op, x, y, start);
+            }
+            if (max < 0) {
+                int split = p.emit(SPLIT, 0, 0);
+                copy(op, x, y, start);
+                p.emit(JMP, split, 0);
+                setSplit(split, split + 1, p.size, lazy);
+            } else {
+                List<Integer> splits = new ArrayList<Integer>();
+                for (int k=min;k<max;k++) {
+                    splits.add(p.emit(SPLIT, 0, 0));
+                    copy(op, x, y, start);
+                }
+                for (int split : splits) {
+                    setSplit(split, split + 1, p.size, lazy);
+                }
+            }
+        }
+
+        private void setSplit(int split, int body, int exit, boolean lazy) {
+            p.x[split] = lazy ? exit : body;
+            p.y[split] = lazy ? body : exit;
+        }
+
+        /**
+         * Append a copy of the instructions originally compiled at "from", relocating jumps
+         */
+        private void copy(int[] op, int[] x, int[] y, int from) {
+            int delta = p.size - from;
+            for (int k=0;k<op.length;k++) {
+                boolean jump = op[k] == SPLIT || op[k] == JMP;
+                p.emit(op[k], jump ? x[k] + delta : x[k], op[k] == SPLIT ? y[k] + delta : y[k]);
+            }
+        }
+
+        private void insert(int at, int op, int x, int y) {
+            p.emit(0, 0, 0);
+            System.arraycopy(p.op, at, p.op, at + 1, p.size - at - 1);
+            System.arraycopy(p.x, at, p.x, at + 1, p.size - at - 1);
+            System.arraycopy(p.y, at, p.y, at + 1, p.size - at - 1);
+            for (int k=at+1;k<p.size;k++) {
+                if (p.op[k] == SPLIT || p.op[k] == JMP) {
+                    if (p.x[k] >= at) {
+                        p.x[k]++;
+                    }
+                    if (p.op[k] == SPLIT && p.y[k] >= at) {
+                        p.y[k]++;
+                    }
+                }
+            }
+            p.op[at] = op;
+            p.x[at] = x;
+            p.y[at] = y;
+        }
+
+        private void atom() {
+            char c = s.charAt(i++);
+            switch (c) {
+                case '(':
+                    int group = -1;
+                    if (s.startsWith("?:", i)) {
+                        i += 2;
+                    } else if (i < s.length() && s.charAt(i) == '?') {
+                        throw new UnsupportedOperationException("lookaround, named groups and inline flags");
+                    } else {
+                        group = ++p.groups;
+                        p.emit(SAVE, group * 2, 0);
+                    }
+                    alternation();
+                    i++;        // ')'
+                    if (group >= 0) {
+                        p.emit(SAVE, group * 2 + 1, 0);
+                    }
+                    break;
+                case '[':
+                    p.classes.add(characterClass());
+                    p.emit(CLASS, p.classes.size() - 1, 0);
+                    break;
+                case '.':
+                    p.emit(ANY, 0, 0);
+                    break;
+                case '^':
+                    p.emit(BOL, 0, 0);
+                    break;
+                case '$':
+                    p.emit(EOL, 0, 0);
+                    break;
+                case '\\':
+                    int[] cl = escapeClass();
+                    if (cl != null) {
+                        p.classes.add(cl);
+                        p.emit(CLASS, p.classes.size() - 1, 0);
+                    } else {
+                        p.emit(CHAR, escape(), 0);
+                    }
+                    break;
+                default:
+                    i--;
+                    int cp = s.codePointAt(i);
+                    i += Character.charCount(cp);
+                    p.emit(CHAR, cp, 0);
+            }
+        }
+
+        /**
+         * If the escape at i is a predefined class, consume and return it
+         */
+        private int[] escapeClass() {
+            char c = s.charAt(i);
+            int[] cl;
+            switch (c) {
+                case 'd': cl = DIGIT; break;
+                case 'w': cl = WORD; break;
+                case 's': cl = SPACE; break;
+                case 'D': cl = negate(DIGIT); break;
+                case 'W': cl = negate(WORD); break;
+                case 'S': cl = negate(SPACE); break;
+                default: return null;
+            }
+            i++;
+            return cl;
+        }
+
+        /**
+         * Consume the escape at i and return the character it represents
+         */
+        private int escape() {
+            char c = s.charAt(i++);
+            switch (c) {
+                case 't': return '\t';
+                case 'n': return '\n';
+                case 'r': return '\r';
+                case 'f': return '\f';
+                case 'a': return '\u0007';
+                case 'e': return '\u001B';
+                case '0':
+                    int v = 0, n = 0;
+                    while (n < 3 && i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '7' && v * 8 + (s.charAt(i) - '0') <= 0377) {
+                        v = v * 8 + (s.charAt(i++) - '0');
+                        n++;
+                    }
+                    return v;
+                case 'x':
+                    if (s.charAt(i) == '{') {
+                        int close = s.indexOf('}', i);
+                        v = Integer.parseInt(s.substring(i + 1, close), 16);
+                        i = close + 1;
+                        return v;
+                    }
+                    i += 2;
+                    return Integer.parseInt(s.substring(i - 2, i), 16);
+                case 'u':
+                    i += 4;
+                    return Integer.parseInt(s.substring(i - 4, i), 16);
+                default:
+                    if (c < 0x80 && Character.isLetterOrDigit(c)) {
+                        throw new UnsupportedOperationException("\\" + c);
+                    }
+                    return c;
+            }
+        }
+
+        private int[] characterClass() {
+            List<Integer> ranges = new ArrayList<Integer>();
+            boolean negate = false;
+            if (s.charAt(i) == '^') {
+                negate = true;
+                i++;
+            }
+            boolean first = true;
+            while (first || s.charAt(i) != ']') {
+                first = false;
+                char c = s.charAt(i);
+                if (c == '[' || (c == '&' && s.startsWith("&&", i))) {
+                    throw new UnsupportedOperationException("nested character classes");
+                }
+                int lo;
+                if (c == '\\') {
+                    i++;
+                    int[] cl = escapeClass();
+                    if (cl != null) {
+                        if (cl.length > 0 && cl[0] == -1) {
+                            throw new UnsupportedOperationException("negated class inside a class");
+                        }
+                        for (int r : cl) {
+                            ranges.add(r);
+                        }
+                        continue;
+                    }
+                    lo = escape();
+                } else {
+                    lo = s.codePointAt(i);
+                    i += Character.charCount(lo);
+                }
+                int hi = lo;
+                if (s.charAt(i) == '-' && s.charAt(i + 1) != ']') {
+                    i++;
+                    if (s.charAt(i) == '\\') {
+                        i++;
+                        hi = escape();
+                    } else {
+                        hi = s.codePointAt(i);
+                        i += Character.charCount(hi);
+                    }
+                }
+                ranges.add(lo);
+                ranges.add(hi);
+            }
+            i++;        // ']'
+            int[] out = new int[ranges.size() + (negate ? 1 : 0)];
+            int j = 0;
+            if (negate) {
+                out[j++] = -1;
+            }
+            for (int r : ranges) {
+                out[j++] = r;
+            }
+            return out;
+        }
+
+        private static int[] negate(int[] cl) {
+            int[] out = new int[cl.length + 1];
+            out[0] = -1;
+            System.arraycopy(cl, 0, out, 1, cl.length);
+            return out;
+        }
+    }
+
+}
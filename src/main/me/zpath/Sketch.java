@@ -0,0 +1,362 @@
+package me.zpath;
+
+import java.util.*;
+
+/**
+ * <p>
+ * Streaming sketches used to implement the approximate aggregate functions
+ * <code>approx-distinct()</code>, <code>percentile()</code>, <code>median()</code> and
+ * <code>approx-top-k()</code>. Each is an {@link Aggregate}, so nodes are fed to it
+ * as they're found and never collected, and each uses a fixed amount of memory however many
+ * nodes it sees. For small inputs the results are exact.
+ * </p><p>
+ * Values are compared by their normalized value, see {@link Expr#hashKey}, so <code>1</code>
+ * and <code>1.0</code> are the same value, as they are for <code>==</code>.
+ * </p>
+ */
+final class Sketch {
+
+    private Sketch() {
+    }
+
+    /**
+     * A 64-bit hash of a normalized value
+     */
+    private static long hash(Object key) {
+        long h;
+        if (key instanceof Long) {
+            h = ((Long)key).longValue();
+        } else if (key instanceof Double) {
+            h = Double.doubleToLongBits(((Double)key).doubleValue()) ^ 0x5bd1e9955bd1e995L;
+        } else if (key instanceof String) {
+            String s = (String)key;
+            h = 0xcbf29ce484222325L;                    // FNV-1a
+            for (int i=0;i<s.length();i++) {
+                h = (h ^ s.charAt(i)) * 0x100000001b3L;
+            }
+        } else {
+            h = key.hashCode() * 0x9e3779b97f4a7c15L;
+        }
+        // MurmurHash3 finalizer, to spread the bits
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * A HyperLogLog sketch counting the number of distinct values. It uses 2<sup>14</sup>
+     * one-byte registers, for a standard error of 1.04/&radic;16384, about 0.8%. Small
+     * cardinalities use linear counting and are exact, or very nearly so.
+     */
+    static final class Distinct extends Aggregate {
+        private static final int P = 14, M = 1 << P;
+        private final byte[] registers = new byte[M];
+
+        Distinct(EvalContext context) {
+            super(context);
+        }
+
+        @Override public boolean add(Object node) {
+            long h = hash(Expr.hashKey(context, node));
+            int j = (int)(h >>> (64 - P));
+            int rank = Long.numberOfLeadingZeros((h << P) | (1L << (P - 1))) + 1;
+            if (rank > registers[j]) {
+                registers[j] = (byte)rank;
+            }
+            return true;
+        }
+
+        @Override public void clear() {
+            Arrays.fill(registers, (byte)0);
+        }
+
+        @Override Object result() {
+            double sum = 0;
+            int zeros = 0;
+            for (int i=0;i<M;i++) {
+                sum += Double.longBitsToDouble((1023L - registers[i]) << 52);    // 2^-register
+                if (registers[i] == 0) {
+                    zeros++;
+                }
+            }
+            double e = (0.7213 / (1 + 1.079 / M)) * M * M / sum;
+            if (e <= 2.5 * M && zeros > 0) {
+                e = M * Math.log((double)M / zeros);
+            }
+            long v = Math.round(e);
+            return v == (int)v ? (Number)Integer.valueOf((int)v) : Long.valueOf(v);
+        }
+    }
+
+    /**
+     * A KLL quantile sketch, which retains about 3&times;{@link #K} numbers.
+     * The rank of the value returned for a quantile is within about 1.65% of the
+     * number of values of the exact rank, with 99% confidence. Below {@link #K}
+     * values nothing is discarded and the result is exact. Values are held as doubles.
+     */
+    static final class Quantiles extends Aggregate {
+        static final int K = 200;
+        private static final double C = 2.0 / 3;
+        private double[][] levels = new double[1][K];
+        private int[] sizes = new int[1];
+        private int total, limit;
+        private long count, seed;
+
+        Quantiles(EvalContext context) {
+            super(context);
+            clear();
+        }
+
+        @Override public boolean add(Object node) {
+            Number n = Expr.numberValue(context, node);
+            if (n != null) {
+                double d = n.doubleValue();
+                if (d == d) {           // NaN has no rank
+                    append(0, d);
+                    count++;
+                    if (total > limit) {
+                        compress();
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override public void clear() {
+            levels = new double[1][K];
+            sizes = new int[1];
+            total = 0;
+            limit = K;
+            count = 0;
+            seed = 0x2545f4914f6cdd1dL;         // fixed, so results are repeatable
+        }
+
+        private void append(int level, double d) {
+            double[] a = levels[level];
+            if (sizes[level] == a.length) {
+                levels[level] = a = Arrays.copyOf(a, a.length * 2);
+            }
+            a[sizes[level]++] = d;
+            total++;
+        }
+
+        private int capacity(int level) {
+            return Math.max(2, (int)Math.ceil(K * Math.pow(C, levels.length - level - 1)));
+        }
+
+        private int capacity() {
+            int c = 0;
+            for (int i=0;i<levels.length;i++) {
+                c += capacity(i);
+            }
+            return c;
+        }
+
+        /**
+         * Find the lowest level that's full, sort it and promote every other
+         * item, starting at a random offset, to the next level with twice the weight.
+         */
+        private void compress() {
+            for (int h=0;h<levels.length;h++) {
+                if (sizes[h] >= capacity(h)) {
+                    if (h + 1 == levels.length) {
+                        levels = Arrays.copyOf(levels, h + 2);
+                        levels[h + 1] = new double[K];
+                        sizes = Arrays.copyOf(sizes, h + 2);
+                        limit = capacity();
+                    }
+                    double[] a = levels[h];
+                    int size = sizes[h];
+                    Arrays.sort(a, 0, size);
+                    int keep = size & 1;        // an odd one out stays where it is
+                    seed ^= seed << 13;
+                    seed ^= seed >>> 7;
+                    seed ^= seed << 17;
+                    int offset = (int)(seed & 1);
+                    sizes[h] = 0;
+                    total -= size;
+                    for (int i=keep+offset;i<size;i+=2) {
+                        append(h + 1, a[i]);
+                    }
+                    if (keep != 0) {
+                        sizes[h] = 1;           // a[0], the smallest, stays
+                        total++;
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Return the value at the specified rank, using the nearest-rank method:
+         * the smallest value for which at least p% of the values are less than or equal to it.
+         * @param p the percentile, from 0 to 100
+         * @return the value, or null if there were no numeric values
+         */
+        Number quantile(double p) {
+            if (count == 0) {
+                return null;
+            }
+            int n = 0;
+            for (int i=0;i<levels.length;i++) {
+                n += sizes[i];
+            }
+            double[] values = new double[n];
+            long[] weights = new long[n];
+            Integer[] order = new Integer[n];
+            n = 0;
+            for (int i=0;i<levels.length;i++) {
+                for (int j=0;j<sizes[i];j++) {
+                    values[n] = levels[i][j];
+                    weights[n] = 1L << i;
+                    order[n] = n;
+                    n++;
+                }
+            }
+            final double[] fv = values;
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(fv[a], fv[b]);
+                }
+            });
+            long rank = Math.max(1, (long)Math.ceil(p / 100 * count));
+            long cumulative = 0;
+            double d = values[order[n - 1]];
+            for (int i=0;i<n;i++) {
+                cumulative += weights[order[i]];
+                if (cumulative >= rank) {
+                    d = values[order[i]];
+                    break;
+                }
+            }
+            return d == (int)d ? (Number)Integer.valueOf((int)d) : Double.valueOf(d);
+        }
+
+        @Override Object result() {
+            return quantile(50);
+        }
+    }
+
+    /**
+     * A Space-Saving sketch finding the most frequent values. It tracks
+     * <code>max(100&times;k, 1024)</code> values; any value occurring more than
+     * <code>n/capacity</code> times among <code>n</code> nodes is guaranteed to be tracked,
+     * and no count is overestimated by more than that. Until more than that many distinct
+     * values are seen, the result is exact.
+     */
+    static final class HeavyHitters extends Aggregate {
+        private final int k, capacity;
+        private final Map<Object,Counter> counters = new HashMap<Object,Counter>();
+        private Counter[] heap;                 // min-heap on count
+        private int size, seq;
+
+        private static final class Counter {
+            Object key, node;
+            long count;
+            int pos, seq;
+        }
+
+        HeavyHitters(int k, EvalContext context) {
+            super(context);
+            this.k = k;
+            this.capacity = (int)Math.min(1 << 20, Math.max(1024, 100L * k));
+            this.heap = new Counter[Math.min(capacity, 64)];
+        }
+
+        @Override public boolean add(Object node) {
+            Object key = Expr.hashKey(context, node);
+            Counter c = counters.get(key);
+            if (c != null) {
+                c.count++;
+                down(c.pos);
+            } else if (size < capacity) {
+                c = new Counter();
+                c.key = key;
+                c.node = node;
+                c.count = 1;
+                c.seq = seq++;
+                if (size == heap.length) {
+                    heap = Arrays.copyOf(heap, Math.min(capacity, size * 2));
+                }
+                c.pos = size;
+                heap[size++] = c;
+                counters.put(key, c);
+                up(c.pos);
+            } else {
+                // Replace the least frequent value, inheriting its count
+                c = heap[0];
+                counters.remove(c.key);
+                c.key = key;
+                c.node = node;
+                c.count++;
+                c.seq = seq++;
+                counters.put(key, c);
+                down(0);
+            }
+            return true;
+        }
+
+        private void up(int i) {
+            Counter c = heap[i];
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (heap[parent].count <= c.count) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                heap[i].pos = i;
+                i = parent;
+            }
+            heap[i] = c;
+            c.pos = i;
+        }
+
+        private void down(int i) {
+            Counter c = heap[i];
+            int half = size >> 1;
+            while (i < half) {
+                int child = (i << 1) + 1;
+                if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+                    child++;
+                }
+                if (c.count <= heap[child].count) {
+                    break;
+                }
+                heap[i] = heap[child];
+                heap[i].pos = i;
+                i = child;
+            }
+            heap[i] = c;
+            c.pos = i;
+        }
+
+        @Override public void clear() {
+            counters.clear();
+            Arrays.fill(heap, null);
+            size = seq = 0;
+        }
+
+        /**
+         * Return the nodes with the k most frequent values, most frequent first. Where
+         * counts are equal the value seen first comes first. Each value is represented by
+         * the first node it was seen in.
+         */
+        @Override Object result() {
+            Counter[] all = Arrays.copyOf(heap, size);
+            Arrays.sort(all, new Comparator<Counter>() {
+                public int compare(Counter a, Counter b) {
+                    return a.count != b.count ? Long.compare(b.count, a.count) : Integer.compare(a.seq, b.seq);
+                }
+            });
+            List<Object> out = new ArrayList<Object>(Math.min(k, all.length));
+            for (int i=0;i<all.length && i<k;i++) {
+                out.add(all[i].node);
+            }
+            return out;
+        }
+    }
+
+}
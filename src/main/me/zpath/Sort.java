@@ -0,0 +1,234 @@
+package me.zpath;
+
+import java.util.*;
+import java.math.*;
+
+/**
+ * <p>
+ * Sorting for the <code>sort()</code>, <code>sort-desc()</code> and <code>top()</code> functions.
+ * Each node is sorted by a <i>key</i>, the value of the first node the key expression
+ * evaluates to against that node. Keys are ordered as {@link Expr#compare} orders them:
+ * numbers by value, then strings, then booleans. Nodes with no key sort after all
+ * others, in either direction. The sort is stable, so nodes with equal keys stay in
+ * the order they were found.
+ * </p><p>
+ * Numbers which are equal only within {@link Configuration#getMinDouble} are not considered
+ * equal here, as that isn't a total order.
+ * </p>
+ */
+final class Sort {
+
+    /** Inputs larger than this are sorted with {@link Arrays#parallelSort} */
+    static final int PARALLEL_THRESHOLD = 1 << 13;
+
+    private Sort() {
+    }
+
+    /**
+     * A node and its key
+     */
+    private static final class Entry {
+        final Object node;
+        final Object key;
+        final int seq;
+        Entry(Object node, Object key, int seq) {
+            this.node = node;
+            this.key = key;
+            this.seq = seq;
+        }
+    }
+
+    private static final Comparator<Entry> ASCENDING = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            int c = compareKeys(a.key, b.key, false);
+            return c != 0 ? c : Integer.compare(a.seq, b.seq);
+        }
+    };
+
+    private static final Comparator<Entry> DESCENDING = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            int c = compareKeys(a.key, b.key, true);
+            return c != 0 ? c : Integer.compare(a.seq, b.seq);
+        }
+    };
+
+    /**
+     * Return the key for the node: a Number, String or Boolean, or null if it has none
+     * @param node the node
+     * @param key the key expression, or null to use the node itself
+     * @param tmp a scratch list
+     * @param context the context
+     */
+    private static Object key(Object node, Term key, List<Object> tmp, EvalContext context) {
+        Object o = node;
+        if (key != null) {
+            tmp.clear();
+            key.eval(Collections.<Object>singletonList(node), tmp, context);
+            if (tmp.isEmpty()) {
+                return null;
+            }
+            o = tmp.get(0);
+            tmp.clear();
+        }
+        Number n = Expr.numberValue(context, o);
+        if (n != null) {
+            return n;
+        }
+        String s = Expr.stringValue(context, o);
+        if (s != null) {
+            return s;
+        }
+        return Expr.booleanValue(context, o);
+    }
+
+    private static int rank(Object key) {
+        return key instanceof Number ? 0 : key instanceof String ? 1 : key instanceof Boolean ? 2 : 3;
+    }
+
+    /**
+     * Compare two keys. Missing keys always compare last, so are not reversed
+     */
+    private static int compareKeys(Object a, Object b, boolean descending) {
+        int ra = rank(a), rb = rank(b);
+        int c;
+        if (ra != rb) {
+            if (ra == 3 || rb == 3) {
+                return ra - rb;
+            }
+            c = ra - rb;
+        } else if (ra == 0) {
+            c = compareNumbers((Number)a, (Number)b);
+        } else if (ra == 1) {
+            c = ((String)a).compareTo((String)b);
+        } else if (ra == 2) {
+            c = ((Boolean)a).compareTo((Boolean)b);
+        } else {
+            return 0;
+        }
+        return descending ? -c : c;
+    }
+
+    private static boolean isIntegral(Number n) {
+        return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+    }
+
+    /**
+     * As Expr.compare, without the tolerance for doubles
+     */
+    private static int compareNumbers(Number a, Number b) {
+        boolean bigA = a instanceof BigInteger || a instanceof BigDecimal;
+        boolean bigB = b instanceof BigInteger || b instanceof BigDecimal;
+        if (isIntegral(a) && isIntegral(b)) {
+            return Long.compare(a.longValue(), b.longValue());
+        } else if (!bigA && !bigB) {
+            return Double.compare(a.doubleValue(), b.doubleValue());
+        } else if ((a instanceof BigInteger || isIntegral(a)) && (b instanceof BigInteger || isIntegral(b))) {
+            return toBigInteger(a).compareTo(toBigInteger(b));
+        }
+        return toBigDecimal(a).compareTo(toBigDecimal(b));
+    }
+
+    private static BigInteger toBigInteger(Number n) {
+        return n instanceof BigInteger ? (BigInteger)n : BigInteger.valueOf(n.longValue());
+    }
+
+    private static BigDecimal toBigDecimal(Number n) {
+        if (n instanceof BigDecimal) {
+            return (BigDecimal)n;
+        } else if (n instanceof BigInteger) {
+            return new BigDecimal((BigInteger)n);
+        } else if (isIntegral(n)) {
+            return BigDecimal.valueOf(n.longValue());
+        }
+        double d = n.doubleValue();
+        return Double.isNaN(d) || Double.isInfinite(d) ? BigDecimal.ZERO : new BigDecimal(Double.toString(d));
+    }
+
+    /**
+     * Sort the nodes by key
+     * @param nodes the nodes to sort
+     * @param key the key expression, or null to sort by the value of the nodes themselves
+     * @param descending whether to sort in descending order
+     * @param out the list to add the sorted nodes to
+     * @param context the context
+     */
+    static void sort(List<Object> nodes, Term key, boolean descending, List<Object> out, EvalContext context) {
+        Entry[] entries = new Entry[nodes.size()];
+        List<Object> tmp = new ArrayList<Object>();
+        int i = 0;
+        for (Object node : nodes) {
+            entries[i] = new Entry(node, key(node, key, tmp, context), i);
+            i++;
+        }
+        // Keys are all evaluated above, so comparing them doesn't touch the context
+        // and can safely be done in parallel
+        Comparator<Entry> comparator = descending ? DESCENDING : ASCENDING;
+        if (entries.length > PARALLEL_THRESHOLD) {
+            Arrays.parallelSort(entries, comparator);
+        } else {
+            Arrays.sort(entries, comparator);
+        }
+        for (Entry e : entries) {
+            out.add(e.node);
+        }
+    }
+
+    /**
+     * An Aggregate which retains the <code>n</code> nodes with the largest keys in a
+     * bounded heap, so selecting from <code>m</code> nodes takes O(m log n) time and O(n) memory.
+     */
+    static final class Top extends Aggregate {
+        private final int n;
+        private final Term key;
+        private final PriorityQueue<Entry> heap;
+        private final List<Object> tmp = new ArrayList<Object>();
+        private int seq;
+
+        /**
+         * @param n the number of nodes to retain
+         * @param key the key expression, or null to use the value of the nodes themselves
+         * @param context the context
+         */
+        Top(int n, Term key, EvalContext context) {
+            super(context);
+            this.n = n;
+            this.key = key;
+            // The head is the entry to discard first: the smallest key, and the latest of equal keys
+            this.heap = new PriorityQueue<Entry>(Math.min(n, 1024) + 1, new Comparator<Entry>() {
+                public int compare(Entry a, Entry b) {
+                    return DESCENDING.compare(b, a);
+                }
+            });
+        }
+
+        @Override public boolean add(Object node) {
+            Entry e = new Entry(node, key(node, key, tmp, context), seq++);
+            if (heap.size() < n) {
+                heap.add(e);
+            } else if (DESCENDING.compare(e, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(e);
+            }
+            return true;
+        }
+
+        @Override public void clear() {
+            heap.clear();
+            seq = 0;
+        }
+
+        /**
+         * Return the retained nodes, largest key first
+         */
+        @Override Object result() {
+            Entry[] entries = heap.toArray(new Entry[heap.size()]);
+            Arrays.sort(entries, DESCENDING);
+            List<Object> out = new ArrayList<Object>(entries.length);
+            for (Entry e : entries) {
+                out.add(e.node);
+            }
+            return out;
+        }
+    }
+
+}
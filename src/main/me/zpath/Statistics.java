@@ -0,0 +1,163 @@
+package me.zpath;
+
+import java.util.*;
+
+/**
+ * Statistics about the shape of a document, gathered by walking it through
+ * its {@link EvalContext}. These are used to estimate the number of nodes
+ * produced by each step of a {@link Plan}.
+ */
+class Statistics {
+
+    // Maximum number of nodes to visit when sampling the document
+    private static final int MAXNODES = 10000;
+
+    // Fraction of nodes a predicate is assumed to match, as we can't know in advance
+    private static final double SELECTIVITY = 0.5;
+
+    private final EvalContext context;
+    private final List<Object> sample;
+    private final Map<Object,long[]> fanouts;
+    private final boolean complete;
+    private final int maxdepth;
+    private final double avgdepth;
+
+    /**
+     * Gather statistics on the document containing node, starting from its root
+     * and visiting at most MAXNODES nodes, breadth first.
+     * @param node the node
+     * @param context the context
+     */
+    Statistics(Object node, EvalContext context) {
+        this.context = context;
+        this.sample = new ArrayList<Object>();
+        this.fanouts = new HashMap<Object,long[]>();
+        Object o;
+        while ((o=context.parent(node)) != null) {
+            node = o;
+        }
+        Set<Object> seen = Collections.<Object>newSetFromMap(new IdentityHashMap<Object,Boolean>());
+        List<Object> level = new ArrayList<Object>(), next = new ArrayList<Object>();
+        level.add(node);
+        int depth = 0;
+        long sumdepth = 0;
+        boolean complete = true;
+        while (!level.isEmpty() && complete) {
+            for (Object n : level) {
+                if (sample.size() == MAXNODES) {
+                    complete = false;
+                    break;
+                }
+                if (!context.isUnique(n) || seen.add(n)) {
+                    sample.add(n);
+                    sumdepth += depth;
+                    for (Object c : context.get(n, EvalContext.WILDCARD)) {
+                        next.add(c == null ? EvalContext.NULL : c);
+                    }
+                }
+            }
+            if (!next.isEmpty() && complete) {
+                depth++;
+            }
+            List<Object> t = level;
+            level = next;
+            next = t;
+            next.clear();
+        }
+        this.complete = complete;
+        this.maxdepth = depth;
+        this.avgdepth = (double)sumdepth / sample.size();
+    }
+
+    /**
+     * Return the number of nodes in the document, or in the sample if the document was too large to visit completely
+     */
+    int nodes() {
+        return sample.size();
+    }
+
+    /**
+     * Return true if every node in the document was visited
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Return the maximum depth of the document, where the root is at depth zero
+     */
+    int maxDepth() {
+        return maxdepth;
+    }
+
+    /**
+     * Return a two-element array of the number of nodes in the sample with at least one child
+     * matching the key, and the total number of children matching that key
+     * @param key the key as passed to {@link EvalContext#get}
+     */
+    private long[] fanout(Object key) {
+        long[] v = fanouts.get(key);
+        if (v == null) {
+            v = new long[2];
+            for (Object n : sample) {
+                long count = 0;
+                for (Object c : context.get(n, key)) {
+                    count++;
+                }
+                if (count > 0) {
+                    v[0]++;
+                    v[1] += count;
+                }
+            }
+            fanouts.put(key, v);
+        }
+        return v;
+    }
+
+    /**
+     * Estimate the number of nodes produced by the axis when given the specified number of input nodes
+     * @param axis the axis
+     * @param in the (estimated) number of input nodes
+     */
+    double estimate(Axis axis, double in) {
+        final int nodes = nodes();
+        double out;
+        if (axis == Axis.ROOT) {
+            out = 1;
+        } else if (axis == Axis.SELF || axis == Axis.PARENT) {
+            out = in;
+        } else if (axis == Axis.ANCESTORS) {
+            out = in * avgdepth;
+        } else if (axis == Axis.SELFORANYDESCENDENT) {
+            out = descendants(in);
+        } else if (axis instanceof Axis.KeyAxis) {
+            out = lookup((Axis.KeyAxis)axis, in);
+        } else if (axis instanceof Axis.DescendantKeyAxis) {
+            out = lookup(((Axis.DescendantKeyAxis)axis).key, descendants(in));
+        } else if (axis instanceof FunctionAxis) {
+            out = in;
+        } else {
+            out = in * SELECTIVITY;
+        }
+        return Math.min(out, nodes);
+    }
+
+    private double lookup(Axis.KeyAxis axis, double in) {
+        // Assume the input nodes are those which have the key, if there are enough of them
+        long[] v = fanout(axis.key());
+        if (v[0] == 0) {
+            return 0;
+        }
+        double d = (double)v[1] / v[0];
+        if (axis.name != null && axis.index != Axis.ANYINDEX) {
+            d = Math.min(d, 1);
+        }
+        return Math.min(in, v[0]) * d;
+    }
+
+    private double descendants(double in) {
+        // Each node is in the subtree of its ancestors and itself, so the mean subtree size is avgdepth + 1
+        return in <= 1 ? nodes() : in * (avgdepth + 1);
+    }
+
+}
@@ -0,0 +1,332 @@
+package me.zpath;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>
+ * The state of one application of a {@link ZTemplate} to a model: the loops that are being
+ * repeated, the item each is on, and the limits set in the {@link Configuration}.
+ * A ZTemplate runs its instructions against a TemplateContext, and the classes generated by
+ * {@link CompiledTemplate} call its methods directly, so both give the same result.
+ * </p><p>
+ * Sections are run with {@link #begin} and {@link #next}, eg for
+ * <code>{{#items/*}}{{name}}{{/items/*}}</code>
+ * </p>
+ * <pre>
+ * if (context.begin(items)) {
+ *   do {
+ *     context.value(name, true);
+ *   } while (context.next());
+ * }
+ * </pre>
+ * <p>
+ * Each loop uses one frame on a stack which is reused, so repeating a section for each item
+ * allocates nothing beyond evaluating the expressions in it.
+ * </p>
+ */
+public final class TemplateContext {
+
+    private final Configuration config;
+    private EvalContext evalcontext;
+    private Object modelroot;
+    private final Appendable out;
+    private Frame[] stack;
+    private int sp;                             // The index of the current frame in stack, or -1 for none
+    private int round;
+    private long bytecount;
+    private StringBuilder scratch;              // for escaping values that may exceed the maximum output size
+    private long flushcount;                    // the value of bytecount when the output was last flushed
+
+    /**
+     * The state of one loop: the items being looped over, and which one we're on
+     */
+    private static final class Frame {
+        List<Object> items;
+        int index;
+        Object model;                           // the model for the current item
+        Object parentModel;                     // the model the loop is evaluated against
+    }
+
+    /**
+     * @param model the model
+     * @param evalcontext the EvalContext for the model
+     * @param config the configuration
+     * @param depth the expected maximum depth of nested loops
+     * @param out the Appendable to write to, or null if output is retrieved with {@link #valueOf}
+     */
+    TemplateContext(Object model, EvalContext evalcontext, Configuration config, int depth, Appendable out) {
+        this.modelroot = model;
+        this.evalcontext = evalcontext;
+        this.config = config;
+        this.out = out;
+        this.stack = new Frame[Math.max(depth, 1)];
+        for (int i=0;i<stack.length;i++) {
+            stack[i] = new Frame();
+        }
+        this.sp = -1;
+    }
+
+    /**
+     * Reset this context to apply the template again, to a new model. The output is unchanged
+     * @param model the model
+     * @param evalcontext the EvalContext for the model
+     */
+    void reset(Object model, EvalContext evalcontext) {
+        this.modelroot = model;
+        this.evalcontext = evalcontext;
+        for (int i=0;i<=sp;i++) {
+            stack[i].items = null;
+            stack[i].model = stack[i].parentModel = null;
+        }
+        sp = -1;
+        round = 0;
+        bytecount = flushcount = 0;
+    }
+
+    /**
+     * Return a new context for the same model and configuration, which writes to its own buffer,
+     * to render a top-level section on another thread. It is added to this context with {@link #join}
+     */
+    TemplateContext fork() {
+        return new TemplateContext(modelroot, ZTemplate.createContext(modelroot, config), config, stack.length, new StringBuilder());
+    }
+
+    /**
+     * Write the output of a context returned from {@link #fork}, and count it and the
+     * iterations it ran towards the limits for this context
+     * @throws IllegalStateException if the maximum output size or number of iterations is exceeded
+     */
+    void join(TemplateContext fork) throws IOException {
+        round += fork.round;
+        if (round > config.getTemplateMaxIterations()) {
+            throw new IllegalStateException("Maximum iterations exceeded: " + round);
+        }
+        StringBuilder sb = (StringBuilder)fork.out;
+        count(sb.length());
+        out.append(sb);
+        written();
+        if (config.isTemplateFlushAtSections()) {
+            flush();
+        }
+    }
+
+    /**
+     * Return the Executor to render top-level sections with, or null to render them in order
+     */
+    Executor getExecutor() {
+        return config.getTemplateExecutor();
+    }
+
+    /**
+     * Return the EvalContext that expressions are evaluated in
+     * @return the EvalContext
+     */
+    public EvalContext getEvalContext() {
+        return evalcontext;
+    }
+
+    /**
+     * Write literal text
+     * @param s the text
+     * @throws IOException if the output throws IOException
+     * @throws IllegalStateException if the maximum output size is exceeded
+     */
+    public void text(String s) throws IOException {
+        out.append(counted(s));
+        written();
+    }
+
+    /**
+     * Write literal text, which has also been encoded as UTF-8. If the output is in bytes,
+     * the encoded form is written
+     * @param s the text
+     * @param utf8 the text encoded as UTF-8
+     */
+    void text(String s, byte[] utf8) throws IOException {
+        counted(s);
+        if (out instanceof ByteOutput) {
+            ((ByteOutput)out).write(utf8);
+        } else {
+            out.append(s);
+        }
+        written();
+    }
+
+    /**
+     * Evaluate the expression and write its value, as <code>{{expr}}</code> does
+     * @param expr the expression
+     * @param escapable true unless the expression is a call to <code>escape()</code> or <code>unescape()</code>:
+     * if true, the value will be escaped if {@link Configuration#isTemplateHTMLEscape} is set
+     * @throws IOException if the output throws IOException
+     * @throws IllegalStateException if the maximum output size is exceeded
+     */
+    public void value(ZPath expr, boolean escapable) throws IOException {
+        String s = stringValue(expr);
+        if (s != null) {
+            if (escapable && config.isTemplateHTMLEscape()) {
+                if ((long)s.length() * Expr.MAXXMLESCAPE <= config.getTemplateMaxOutputSize() - bytecount) {
+                    // Can't exceed the maximum size however it's escaped, so escape straight to the output
+                    count(Expr.escapeXML(s, true, config.getEscapeEncodable(), out));
+                } else {
+                    // Might, so escape it to a buffer and count it before it's written
+                    if (scratch == null) {
+                        scratch = new StringBuilder();
+                    }
+                    scratch.setLength(0);
+                    Expr.escapeXML(s, true, config.getEscapeEncodable(), scratch);
+                    count(scratch.length());
+                    out.append(scratch);
+                }
+            } else {
+                out.append(counted(s));
+            }
+            written();
+        }
+    }
+
+    /**
+     * Evaluate the expression and return its value, escaped if required, or null if it has none.
+     * The value is not counted towards the output size: that's done when it's passed to {@link #counted}
+     */
+    String valueOf(ZPath expr, boolean escapable) {
+        String s = stringValue(expr);
+        if (s != null && escapable && config.isTemplateHTMLEscape() && Expr.indexOfXMLEscape(s, 0, true, config.getEscapeEncodable()) >= 0) {
+            s = Expr.escapeXML(s, true, config.getEscapeEncodable(), null).toString();
+        }
+        return s;
+    }
+
+    /**
+     * Evaluate the expression and return its unescaped value, or null if it has none
+     */
+    private String stringValue(ZPath expr) {
+        Result result = eval(expr);
+        if (result.all().size() > 0) {
+            Object n = evalcontext.value(result.first());
+            if (n != null) {
+                String s = n.toString();
+                return s == null ? "" : s;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Count the text towards the maximum output size, and return it
+     * @throws IllegalStateException if the maximum output size is exceeded
+     */
+    String counted(String s) throws IOException {
+        count(s.length());
+        return s;
+    }
+
+    private void count(int len) {
+        bytecount += len;
+        if (bytecount > config.getTemplateMaxOutputSize()) {
+            throw new IllegalStateException("Maximum output size exceeded: " + bytecount);
+        }
+    }
+
+    /**
+     * Called after counted output has been written: flush it if enough has been written since the last flush
+     */
+    private void written() throws IOException {
+        int flushsize = config.getTemplateFlushSize();
+        if (flushsize > 0 && bytecount - flushcount >= flushsize) {
+            flush();
+        }
+    }
+
+    /**
+     * Flush the output, if it can be flushed
+     */
+    private void flush() throws IOException {
+        if (out instanceof Flushable && bytecount != flushcount) {
+            ((Flushable)out).flush();
+        }
+        flushcount = bytecount;
+    }
+
+    /**
+     * Evaluate the expression against the model for the current loop item, with that item's
+     * position in the loop as the context for functions like <code>index()</code>
+     */
+    private Result eval(ZPath expr) {
+        if (sp < 0) {
+            evalcontext.setContext(-1, null);
+            return expr.eval(modelroot, evalcontext);
+        }
+        Frame frame = stack[sp];
+        evalcontext.setContext(frame.index, frame.items);
+        return expr.eval(frame.model, evalcontext);
+    }
+
+    /**
+     * Begin a section, as <code>{{#expr}}</code> does: evaluate the expression, and if it has
+     * any items that aren't null or false, start a loop over them.
+     * @param expr the expression
+     * @return true if the loop was started and is on its first item, false if there is nothing to loop over
+     * @throws IllegalStateException if the maximum number of iterations is exceeded
+     */
+    public boolean begin(ZPath expr) {
+        if (sp + 1 == stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+            for (int i=sp+1;i<stack.length;i++) {
+                stack[i] = new Frame();
+            }
+        }
+        Frame frame = stack[sp + 1];
+        frame.parentModel = sp < 0 ? modelroot : stack[sp].model;
+        frame.items = eval(expr).all();
+        frame.index = -1;
+        if (advance(frame)) {
+            sp++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Move the current loop to its next item, or end it if there are none left
+     * @return true if the loop is on its next item, false if it has ended
+     * @throws IOException if the output throws IOException
+     * @throws IllegalStateException if the maximum number of iterations is exceeded
+     */
+    public boolean next() throws IOException {
+        if (advance(stack[sp])) {
+            return true;
+        }
+        if (--sp < 0 && config.isTemplateFlushAtSections()) {
+            flush();
+        }
+        return false;
+    }
+
+    /**
+     * Move the frame to the next item that isn't null or false
+     * @return false if there are no more items
+     */
+    private boolean advance(Frame frame) {
+        List<Object> items = frame.items;
+        for (int i=frame.index+1;i<items.size();i++) {
+            Object o = items.get(i);
+            if (o != null && !Boolean.FALSE.equals(o)) {
+                if (++round > config.getTemplateMaxIterations()) {
+                    throw new IllegalStateException("Maximum iterations exceeded: " + round);
+                }
+                // The model for each item is the item, if it's in the model tree or is a group of
+                // nodes in it, or the model the loop was evaluated against otherwise
+                boolean intree = o == modelroot || o instanceof Group || evalcontext.parent(o) != null;
+                frame.index = i;
+                frame.model = intree ? o : frame.parentModel;
+                return true;
+            }
+        }
+        frame.items = null;
+        frame.model = frame.parentModel = null;
+        return false;
+    }
+
+}
@@ -1,6 +1,7 @@
 package me.zpath;
 
 import java.util.*;
+import java.lang.ref.WeakReference;
 
 /**
  * <p>
@@ -85,16 +86,29 @@ public class Term implements Axis {
     private static final int OTHER = 0, DELIM = 1, STRING = 2, INTEGER = 3, REAL = 4, NAME = 5, INDEX = 6, FUNCTION = 7;
     private static final int NOSCORE = -1;
 
+    // Compiled Terms are hash-consed: structurally equal Terms share one instance.
+    // The table is split into stripes on the hashCode, each with its own lock, so
+    // compiling on many threads at once doesn't mean waiting on one lock.
+    private static final int INTERNSTRIPES = 32;
+    private static final List<Map<Object,WeakReference<Object>>> INTERN = new ArrayList<Map<Object,WeakReference<Object>>>(INTERNSTRIPES);
+    static {
+        for (int i=0;i<INTERNSTRIPES;i++) {
+            INTERN.add(new WeakHashMap<Object,WeakReference<Object>>());
+        }
+    }
+
     private final int type;
     final String value;
     private final Number nvalue;
     private final int score;
+    private final int hash;
 
     private Term(int type, String value, Number nvalue, int score) {
         this.type = type;
         this.value = value;
         this.nvalue = nvalue;
         this.score = score;
+        this.hash = type == OTHER ? 0 : type * 31 + value.hashCode();
     }
 
     protected Term() {
@@ -126,27 +140,72 @@ public class Term implements Axis {
     }
 
     static Term newString(String value) {
-        return new Term(STRING, value, null, NOSCORE);
+        return intern(new Term(STRING, value, null, NOSCORE));
     }
 
     static Term newFunction(String value) {
-        return new Term(FUNCTION, value, null, NOSCORE);
+        return intern(new Term(FUNCTION, value, null, NOSCORE));
     }
 
     static Term newName(String value) {
-        return new Term(NAME, value, null, NOSCORE);
+        return intern(new Term(NAME, value, null, NOSCORE));
     }
 
     static Term newInteger(int value) {
-        return new Term(INTEGER, Integer.toString(value), value, NOSCORE);
+        return intern(new Term(INTEGER, Integer.toString(value), value, NOSCORE));
     }
 
     static Term newReal(double value) {
-        return new Term(REAL, Double.toString(value), value, NOSCORE);
+        return intern(new Term(REAL, Double.toString(value), value, NOSCORE));
     }
 
     static Term newIndex(int value) {
-        return new Term(INDEX, Integer.toString(value), value, NOSCORE);
+        return intern(new Term(INDEX, Integer.toString(value), value, NOSCORE));
+    }
+
+    /**
+     * Return the canonical instance of the specified Term or Axis: if a structurally
+     * equal object has already been compiled, return that, otherwise return the supplied object.
+     * This means identical sub-trees are shared between compiled expressions, and
+     * comparing them for equality is usually just an identity test.
+     * @param o the object
+     * @return the canonical object
+     */
+    @SuppressWarnings("unchecked") static <T> T intern(T o) {
+        final int h = o.hashCode();
+        final Map<Object,WeakReference<Object>> intern = INTERN.get((h ^ (h >>> 16)) & (INTERNSTRIPES - 1));
+        synchronized(intern) {
+            WeakReference<Object> ref = intern.get(o);
+            Object t = ref == null ? null : ref.get();
+            if (t != null) {
+                return (T)t;
+            }
+            intern.put(o, new WeakReference<Object>(o));
+            return o;
+        }
+    }
+
+    /**
+     * Return the structural hashCode of this Term, which is precomputed when it's created
+     * @return the hashCode
+     */
+    @Override public int hashCode() {
+        return type == OTHER ? super.hashCode() : hash;
+    }
+
+    /**
+     * Return true if the supplied object is a Term that is structurally equal to this one
+     * @param o the object to compare
+     * @return whether the objects are equal
+     */
+    @Override public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        } else if (type == OTHER || o == null || o.getClass() != getClass()) {
+            return false;
+        }
+        Term t = (Term)o;
+        return t.hash == hash && t.type == type && t.value.equals(value);
     }
 
     public String toString() {
@@ -324,10 +383,8 @@ public class Term implements Axis {
         Object n = null;
         if (isString()) {
             n = value;
-        } else if (isInteger()) {
-            n = Integer.parseInt(value);
-        } else if (isReal()) {
-            n = Double.parseDouble(value);
+        } else if (isNumber()) {
+            n = nvalue;
         }
         // Index types have been converted to paths already. They could get here if we allowed eg **[#1 == "x"], but we don't
         if (n != null) {
@@ -0,0 +1,386 @@
+package me.zpath;
+
+import java.util.*;
+
+/**
+ * <p>
+ * A base class for {@link Function} implementations which declare their signature up front:
+ * the names they implement, how many arguments they take, which of those arguments must be
+ * constants, and whether the function is <i>pure</i>. A TypedFunction is given its arguments
+ * as an {@link Arguments} object, which evaluates each argument only when it's first asked for
+ * and never evaluates constants at all.
+ * </p><p>
+ * A pure function is one whose result depends only on the values of its arguments, not on the
+ * nodes it is evaluated against, the configuration or anything else. When a pure function is
+ * called with constant arguments it is evaluated once, when the expression is compiled,
+ * and replaced with its result.
+ * </p>
+ * @see Configuration#getFunctions
+ */
+public abstract class TypedFunction implements Function {
+
+    /** A flag indicating the function is pure, and may be evaluated at compile time if its arguments are constants */
+    public static final int PURE = 1;
+    /** A flag indicating the first argument must be a constant string, like a format or pattern */
+    public static final int CONSTANT_FIRST = 2;
+
+    private final List<String> names;
+    private final int minargs, maxargs, flags;
+
+    /**
+     * Create a new TypedFunction
+     * @param minargs the minimum number of arguments
+     * @param maxargs the maximum number of arguments, or -1 for no limit
+     * @param flags a combination of {@link #PURE} and {@link #CONSTANT_FIRST}, or 0
+     * @param names the names this function implements
+     */
+    protected TypedFunction(int minargs, int maxargs, int flags, String... names) {
+        this.minargs = minargs;
+        this.maxargs = maxargs < 0 ? Integer.MAX_VALUE : maxargs;
+        this.flags = flags;
+        this.names = Collections.unmodifiableList(Arrays.asList(names));
+    }
+
+    /**
+     * Return the minimum number of arguments this function accepts
+     * @return the minimum number of arguments
+     */
+    public int getMinArguments() {
+        return minargs;
+    }
+
+    /**
+     * Return the maximum number of arguments this function accepts
+     * @return the maximum number of arguments, or {@link Integer#MAX_VALUE} if there's no limit
+     */
+    public int getMaxArguments() {
+        return maxargs;
+    }
+
+    /**
+     * Return true if this function is pure
+     * @return whether the function is pure
+     * @see #PURE
+     */
+    public boolean isPure() {
+        return (flags & PURE) != 0;
+    }
+
+    @Override public Collection<String> names() {
+        return names;
+    }
+
+    @Override public boolean matches(String name) {
+        return names.contains(name);
+    }
+
+    /**
+     * Verify the arguments against the declared signature. Subclasses with
+     * further requirements can override this method, but should call it first.
+     * @param name the name of the function
+     * @param args the arguments
+     * @return true if the function is valid with these arguments
+     */
+    @Override public boolean verify(String name, List<Term> args) {
+        return args.size() >= minargs && args.size() <= maxargs && ((flags & CONSTANT_FIRST) == 0 || (!args.isEmpty() && args.get(0).isString()));
+    }
+
+    /**
+     * Called once when the expression is compiled, after {@link #verify}, to do any work that depends
+     * only on the arguments, like compiling a pattern. The value returned is available
+     * from {@link Arguments#prepared} each time the function is evaluated at this point in the
+     * expression. The default implementation returns null.
+     * @param name the name of the function
+     * @param args the arguments
+     * @param config the Configuration the expression is being compiled with
+     * @return the prepared object, which should implement equals() by value, or null
+     */
+    public Object prepare(String name, List<Term> args, Configuration config) {
+        return null;
+    }
+
+    @Override public final void eval(String name, List<Term> args, List<Object> in, List<Object> out, EvalContext context) {
+        eval(name, new Arguments(args, in, context, null), out);
+    }
+
+    /**
+     * Evaluate the function with the value returned from {@link #prepare}
+     */
+    final void eval(String name, List<Term> args, Object prepared, List<Object> in, List<Object> out, EvalContext context) {
+        eval(name, new Arguments(args, in, context, prepared), out);
+    }
+
+    /**
+     * Evaluate the function.
+     * @param name the name of the function
+     * @param args the arguments, which have already been checked against the signature
+     * @param out the Nodes which can be written to as the <i>output</i> context
+     */
+    public abstract void eval(String name, Arguments args, List<Object> out);
+
+    /**
+     * If this function is pure and its arguments are all constants, evaluate it and
+     * return the result as a constant term. Otherwise, or if it fails to evaluate
+     * or the result can't be represented as a constant, return null.
+     */
+    Term fold(String name, List<Term> args, Object prepared, Configuration config) {
+        if (!isPure()) {
+            return null;
+        }
+        for (Term t : args) {
+            if (!isConstant(t)) {
+                return null;
+            }
+        }
+        Arguments a = new Arguments(args, Collections.<Object>emptyList(), new ConstantContext(config), prepared);
+        List<Object> out = new ArrayList<Object>(1);
+        try {
+            eval(name, a, out);
+        } catch (RuntimeException e) {
+            return null;        // report it when evaluated
+        }
+        if (a.contextUsed || out.size() != 1) {
+            return null;
+        }
+        Object o = out.get(0);
+        if (o instanceof String) {
+            return Term.newString((String)o);
+        } else if (o instanceof Integer) {
+            return Term.newInteger((Integer)o);
+        } else if (o instanceof Double && !((Double)o).isInfinite() && !((Double)o).isNaN()) {
+            return Term.newReal((Double)o);
+        }
+        return null;
+    }
+
+    /**
+     * Return true if the term is a constant string or number. Subclasses of Term,
+     * like an arithmetic expression, may claim to be numbers but aren't constants.
+     */
+    static boolean isConstant(Term t) {
+        return t.getClass() == Term.class && (t.isString() || t.isNumber());
+    }
+
+    /**
+     * <p>
+     * The arguments passed to a {@link TypedFunction}. Each argument is evaluated against the
+     * input nodes when it's first requested, and the result retained for the rest of the call,
+     * so an argument that isn't used is never evaluated. Constant arguments are not evaluated.
+     * </p><p>
+     * Many functions operate on the input nodes when an argument is not specified, eg
+     * <code>string-length()</code> is <code>string-length(.)</code>;
+     * the <code>...OrContext</code> methods implement that pattern.
+     * </p>
+     */
+    public static final class Arguments {
+        private final List<Term> args;
+        private final List<Object> in;
+        private final EvalContext context;
+        private final Object prepared;
+        private Object[] values;
+        private boolean contextUsed;
+
+        Arguments(List<Term> args, List<Object> in, EvalContext context, Object prepared) {
+            this.args = args;
+            this.in = in;
+            this.context = context;
+            this.prepared = prepared;
+        }
+
+        /**
+         * Return the number of arguments
+         * @return the number of arguments
+         */
+        public int size() {
+            return args.size();
+        }
+
+        /**
+         * Return the specified argument as an unevaluated Term. Use this when the
+         * argument is to be evaluated against something other than the input nodes.
+         * @param i the index of the argument
+         * @return the term
+         */
+        public Term term(int i) {
+            return args.get(i);
+        }
+
+        /**
+         * Return the EvalContext
+         * @return the context
+         */
+        public EvalContext context() {
+            return context;
+        }
+
+        /**
+         * Return the value returned from {@link TypedFunction#prepare} when this expression was compiled
+         * @return the prepared object, or null
+         */
+        public Object prepared() {
+            return prepared;
+        }
+
+        /**
+         * Return the <i>input</i> nodes the function is evaluated against
+         * @return the nodes, of which there will be at least one
+         */
+        public List<Object> in() {
+            contextUsed = true;
+            return in;
+        }
+
+        /**
+         * Return the nodes the specified argument evaluates to
+         * @param i the index of the argument
+         * @return the list of nodes, which should not be modified
+         */
+        @SuppressWarnings("unchecked") public List<Object> nodes(int i) {
+            if (values == null) {
+                values = new Object[args.size()];
+            }
+            List<Object> l = (List<Object>)values[i];
+            if (l == null) {
+                Term t = args.get(i);
+                if (!isConstant(t)) {
+                    l = t.eval(in, new ArrayList<Object>(), context);
+                } else if (t.isString()) {
+                    l = Collections.<Object>singletonList(t.stringValue());
+                } else {
+                    l = Collections.<Object>singletonList(t.numberValue());
+                }
+                values[i] = l;
+            }
+            return l;
+        }
+
+        /**
+         * Return the nodes the specified argument evaluates to, or the input nodes if there are not enough arguments
+         * @param i the index of the argument
+         * @return the list of nodes, which should not be modified
+         */
+        public List<Object> nodesOrContext(int i) {
+            return i < args.size() ? nodes(i) : in();
+        }
+
+        /**
+         * Return the nodes every argument evaluates to, in order, or the input nodes if there are no arguments
+         * @return the list of nodes, which should not be modified
+         */
+        public List<Object> allOrContext() {
+            if (args.isEmpty()) {
+                return in();
+            } else if (args.size() == 1) {
+                return nodes(0);
+            }
+            List<Object> l = new ArrayList<Object>();
+            for (int i=0;i<args.size();i++) {
+                l.addAll(nodes(i));
+            }
+            return l;
+        }
+
+        /**
+         * Add the nodes every argument from <code>first</code> onwards evaluates to, or the input
+         * nodes if there are no such arguments, to the Aggregate. Arguments already evaluated are
+         * reused, otherwise a Path argument streams its nodes into the Aggregate without collecting them
+         * @param agg the Aggregate
+         * @param first the index of the first argument to aggregate
+         * @return the Aggregate
+         */
+        <T extends Aggregate> T aggregateOrContext(T agg, int first) {
+            if (args.size() <= first) {
+                agg.addAll(in());
+            }
+            for (int i=first;i<args.size();i++) {
+                if (values != null && values[i] != null) {
+                    agg.addAll(nodes(i));
+                } else {
+                    agg.add(args.get(i), in);
+                }
+            }
+            return agg;
+        }
+
+        /**
+         * If the specified argument evaluates to a single node with a string value, return it, otherwise return null
+         * @param i the index of the argument
+         * @return the string value or null
+         */
+        public String string(int i) {
+            Term t = args.get(i);
+            return isConstant(t) && t.isString() ? t.stringValue() : Expr.stringValue0(context, nodes(i));
+        }
+
+        /**
+         * If the specified argument evaluates to a single node with a number value, return it, otherwise return null
+         * @param i the index of the argument
+         * @return the number value or null
+         */
+        public Number number(int i) {
+            Term t = args.get(i);
+            return isConstant(t) && t.isNumber() ? t.numberValue() : Expr.numberValue0(context, nodes(i));
+        }
+    }
+
+    /**
+     * The EvalContext used when folding: it has no nodes, only primitive values
+     */
+    private static class ConstantContext implements EvalContext {
+        private final Configuration config;
+        ConstantContext(Configuration config) {
+            this.config = config;
+        }
+        @Override public Object parent(Object o) {
+            return null;
+        }
+        @Override public String stringValue(Object o) {
+            return null;
+        }
+        @Override public Number numberValue(Object o) {
+            return null;
+        }
+        @Override public Boolean booleanValue(Object o) {
+            return null;
+        }
+        @Override public Iterable<? extends Object> get(Object o, Object key) {
+            return Collections.<Object>emptyList();
+        }
+        @Override public String type(Object o) {
+            return null;
+        }
+        @Override public Object key(Object o) {
+            return null;
+        }
+        @Override public int index(Object o) {
+            return -1;
+        }
+        @Override public Object value(Object o) {
+            return o;
+        }
+        @Override public Integer compare(Object a, Object b, String test) {
+            return null;
+        }
+        @Override public boolean isUnique(Object o) {
+            return false;
+        }
+        @Override public Function getFunction(String name) {
+            return null;
+        }
+        @Override public Configuration getConfiguration() {
+            return config;
+        }
+        @Override public Configuration.Logger getLogger() {
+            return null;
+        }
+        @Override public void setContext(int index, List<Object> nodeset) {
+        }
+        @Override public int getContextIndex() {
+            return -1;
+        }
+        @Override public List<Object> getContext() {
+            return null;
+        }
+    }
+
+}
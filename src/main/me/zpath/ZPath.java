@@ -24,12 +24,35 @@ public class ZPath {
     static final String PATH_DELIMITERS = " \t\r\n()[]/,=&|!<>#";
     static final String NUMBER_DELIMITERS = PATH_DELIMITERS + "*/+-&|!=<>";
 
+    // Lookup tables for the tokenizer, covering the ASCII range
+    private static final int CHAR_WHITESPACE = 1, CHAR_PATHDELIMITER = 2, CHAR_NUMBERDELIMITER = 4;
+    private static final byte[] CHARCLASS = new byte[0x80];
+    private static final Term[] SINGLECHAR = new Term[0x80];
+    static {
+        for (char c : " \t\r\n".toCharArray()) {
+            CHARCLASS[c] |= CHAR_WHITESPACE;
+        }
+        for (char c : PATH_DELIMITERS.toCharArray()) {
+            CHARCLASS[c] |= CHAR_PATHDELIMITER;
+        }
+        for (char c : NUMBER_DELIMITERS.toCharArray()) {
+            CHARCLASS[c] |= CHAR_NUMBERDELIMITER;
+        }
+        for (Term t : new Term[] { Term.SLASH, Term.LBRACE, Term.RBRACE, Term.LPAREN, Term.RPAREN, Term.QUESTION, Term.PERCENT, Term.COMMA, Term.COLON, Term.PLUS, Term.TILDE, Term.CARET }) {
+            SINGLECHAR[t.value.charAt(0)] = t;
+        }
+    }
+
     private final List<Term> terms;
     private final Configuration config;
+    private final Map<String,?> params;
+    private final int hash;
 
-    private ZPath(List<Term> terms, Configuration config) {
+    ZPath(List<Term> terms, Configuration config, Map<String,?> params) {
         this.terms = terms;
         this.config = config;
+        this.params = params;
+        this.hash = terms.hashCode();
     }
 
     /**
@@ -59,26 +82,54 @@ public class ZPath {
     }
 
     ZPath withConfiguration(Configuration config) {
-        return new ZPath(terms, config);
+        return new ZPath(terms, config, params);
+    }
+
+    /**
+     * Return the compiled expressions, one for each comma-separated expression in the source
+     */
+    List<Term> terms() {
+        return terms;
     }
 
     /**
      * Return the hashCode for this ZPath.
-     * The hashCode is derived from the value of {@link #toString}
+     * The hashCode is derived from the structure of the compiled expression, and is precomputed
      * @return the hashCode
      */
     public int hashCode() {
-        return toString().hashCode();
+        return hash;
     }
 
     /**
      * Return true if the supplied object is equal to this one.
-     * Two ZPaths are equal if their string representations (from {@link #toString}) are equal
+     * Two ZPaths are equal if their compiled expressions are structurally identical.
+     * As compiled expressions share identical sub-trees, this is a cheap test
      * @param o the object to compare
      * @return whether the object are equal
      */
     public boolean equals(Object o) {
-        return o instanceof ZPath && toString().equals(o.toString());
+        return o == this || (o instanceof ZPath && ((ZPath)o).hash == hash && ((ZPath)o).terms.equals(terms) && Objects.equals(((ZPath)o).params, params));
+    }
+
+    /**
+     * <p>
+     * Return a ZPath which evaluates this expression with the specified values for its named parameters.
+     * A parameter is written as <code>$name</code> in the expression, and may be used anywhere a
+     * constant can be, eg <code>users/*[id == $id]</code>. This means the expression can be compiled
+     * (and cached) once, then bound and evaluated with many different values. Binding is cheap:
+     * the compiled expression is shared, not copied.
+     * </p><p>
+     * The value of a parameter is usually a String, Number or Boolean, but may also be a node,
+     * or a Collection of values which are all added to the result. Evaluating an expression with
+     * a parameter that has no value throws an IllegalStateException.
+     * </p>
+     * @param params the values of the parameters, keyed on their name without the leading "$".
+     * The map is not copied, so should not be modified while the returned ZPath is in use
+     * @return the bound ZPath
+     */
+    public ZPath bind(Map<String,?> params) {
+        return new ZPath(terms, config, params);
     }
 
     /**
@@ -114,13 +165,6 @@ public class ZPath {
             logger.exit();
             logger.exit();
         }
-        // Trim whitespace from start and end
-        if (in.size() > 0 && in.get(0) == Term.WS) {
-            in.remove(0);
-        }
-        if (in.size() > 0 && in.get(in.size() - 1) == Term.WS) {
-            in.remove(in.size() - 1);
-        }
         if (logger != null) {
             logger.enter();
             logger.log("ast:");
@@ -144,7 +188,7 @@ public class ZPath {
                     term.log(logger);
                 }
             }
-            return new ZPath(terms, config);
+            return new ZPath(terms, config, null);
         } finally {
             if (logger != null) {
                 logger.exit();
@@ -178,20 +222,7 @@ public class ZPath {
      * @return the Result
      */
     public Result eval(final Object node, EvalContext context) {
-        if (node == null) {
-            throw new IllegalArgumentException("Node is null");
-        }
-        if (context == null) {
-            for (EvalFactory factory : config.getFactories()) {
-                context = factory.create(node, config);
-                if (context != null) {
-                    break;
-                }
-            }
-        }
-        if (context == null) {
-            throw new IllegalArgumentException("No EvalFactory for " + node.getClass().getName());
-        }
+        context = createContext(node, context);
         List<Object> out = new ArrayList<Object>();
         try {
             if (context.getLogger() != null) {
@@ -223,7 +254,199 @@ public class ZPath {
                 out.set(i, null);
             }
         }
-        return new Result(this, out, context);
+        return new Result(this, out, Parameter.unwrap(context));
+    }
+
+    /**
+     * Evaluate this ZPath against the supplied object and return the number value of the first
+     * match, as <code>((Number)eval(node).unwrap().first()).doubleValue()</code> would, but
+     * without creating a {@link Result} or boxing the value where it can be avoided.
+     * @param node the object
+     * @param defaultValue the value to return if there are no matches or the first match is not a number
+     * @return the value
+     */
+    public double evalDouble(final Object node, final double defaultValue) {
+        EvalContext context = createContext(node, null);
+        Term term = arithmetic(context);
+        if (term != null) {
+            Expr.Lane lane = ((Expr)term).evalLane(node, context);
+            return lane == null ? defaultValue : lane.doubleValue();
+        }
+        Number n = Expr.numberValue(context, first(node, context));
+        return n == null ? defaultValue : n.doubleValue();
+    }
+
+    /**
+     * Evaluate this ZPath against the supplied object and return the number value of the first
+     * match as a long, as {@link Number#longValue} would, but without creating a {@link Result}
+     * or boxing the value where it can be avoided.
+     * @param node the object
+     * @param defaultValue the value to return if there are no matches or the first match is not a number
+     * @return the value
+     */
+    public long evalLong(final Object node, final long defaultValue) {
+        EvalContext context = createContext(node, null);
+        Term term = arithmetic(context);
+        if (term != null) {
+            Expr.Lane lane = ((Expr)term).evalLane(node, context);
+            return lane == null ? defaultValue : lane.longValue();
+        }
+        Number n = Expr.numberValue(context, first(node, context));
+        return n == null ? defaultValue : n.longValue();
+    }
+
+    /**
+     * Evaluate this ZPath against the supplied object and return the boolean value of the first
+     * match, without creating a {@link Result}.
+     * @param node the object
+     * @param defaultValue the value to return if there are no matches or the first match is not a boolean
+     * @return the value
+     */
+    public boolean evalBoolean(final Object node, final boolean defaultValue) {
+        EvalContext context = createContext(node, null);
+        Boolean b = Expr.booleanValue(context, first(node, context));
+        return b == null ? defaultValue : b.booleanValue();
+    }
+
+    /**
+     * Evaluate this ZPath against the supplied object and return the string value of the first
+     * match, as <code>eval(node).unwrap().first()</code> would, but without creating a {@link Result}.
+     * If the first match is a number or boolean rather than a string, its value is converted to a String.
+     * @param node the object
+     * @param defaultValue the value to return if there are no matches or the first match has no primitive value
+     * @return the value
+     */
+    public String evalString(final Object node, final String defaultValue) {
+        EvalContext context = createContext(node, null);
+        Object o = first(node, context);
+        if (o != null) {
+            o = context.value(o);
+        }
+        return o instanceof CharSequence || o instanceof Number || o instanceof Boolean ? o.toString() : defaultValue;
+    }
+
+    /**
+     * Evaluate this ZPath against the supplied object and return the number values of every match,
+     * as <code>eval(node).unwrap().all()</code> would. The matches from a path are unwrapped
+     * into the array as they're found, rather than being collected first.
+     * @param node the object
+     * @return the values, with {@link Double#NaN} for any match that is not a number
+     */
+    public double[] evalDoubleArray(final Object node) {
+        EvalContext context = createContext(node, null);
+        DoubleArray out = new DoubleArray(context);
+        List<Object> in = Collections.<Object>singletonList(node);
+        for (Term term : terms) {
+            out.add(term, in);
+        }
+        return Arrays.copyOf(out.values, out.length);
+    }
+
+    /**
+     * If this ZPath is a single arithmetic expression, which can be evaluated without boxing, return it
+     */
+    private Term arithmetic(EvalContext context) {
+        if (terms.size() == 1 && terms.get(0) instanceof Expr && ((Expr)terms.get(0)).isArithmetic() && context.getLogger() == null) {
+            return terms.get(0);
+        }
+        return null;
+    }
+
+    /**
+     * Return the first match, as <code>eval(node, context).first()</code>
+     * Terms after the first one to match are not evaluated.
+     */
+    private Object first(final Object node, final EvalContext context) {
+        if (context.getLogger() != null) {
+            return eval(node, context).first();
+        }
+        List<Object> in = Collections.<Object>singletonList(node);
+        List<Object> out = new ArrayList<Object>();
+        for (Term term : terms) {
+            term.eval(in, out, context);
+            if (!out.isEmpty()) {
+                Object o = out.get(0);
+                return o == EvalContext.NULL ? null : o;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * An Aggregate that stores the number value of each node in an array
+     */
+    private static final class DoubleArray extends Aggregate {
+        double[] values = new double[16];
+        int length;
+        DoubleArray(EvalContext context) {
+            super(context);
+        }
+        @Override public boolean add(Object node) {
+            if (length == values.length) {
+                values = Arrays.copyOf(values, length * 2);
+            }
+            Number n = Expr.numberValue(context, node);
+            values[length++] = n == null ? Double.NaN : n.doubleValue();
+            return true;
+        }
+        @Override public void clear() {
+            length = 0;
+        }
+    }
+
+    /**
+     * Evaluate this ZPath against the supplied object, as for {@link #eval(Object)},
+     * and return the {@link Plan} describing how it was evaluated. Calls <code>explain(object, null)</code>
+     * @param node the object
+     * @return the Plan
+     */
+    public Plan explain(final Object node) {
+        return explain(node, null);
+    }
+
+    /**
+     * Evaluate this ZPath against the supplied object, as for {@link #eval(Object,EvalContext)},
+     * and return the {@link Plan} describing how it was evaluated. Statistics are first gathered
+     * on the document containing the node, and each step in the Plan reports the number of nodes
+     * it was estimated to produce from those statistics and the number of nodes it actually produced.
+     * This method is intended for diagnosing slow expressions, not for general evaluation.
+     * @param node the object
+     * @param context the context to evaluate that object in, or null to find one that matches
+     * @return the Plan
+     */
+    public Plan explain(final Object node, EvalContext context) {
+        context = createContext(node, context);
+        Plan plan = new Plan(this, new Statistics(node, context));
+        List<Object> out = new ArrayList<Object>();
+        for (Term term : terms) {
+            plan.begin();
+            out.clear();
+            if (term instanceof Path) {
+                ((Path)term).eval(Collections.<Object>singletonList(node), out, context, plan);
+            } else {
+                term.eval(Collections.<Object>singletonList(node), out, context);
+                plan.add(term, out.size());
+            }
+        }
+        return plan;
+    }
+
+    private EvalContext createContext(final Object node, EvalContext context) {
+        if (node == null) {
+            throw new IllegalArgumentException("Node is null");
+        }
+        if (context == null) {
+            for (EvalFactory factory : config.getFactories()) {
+                context = factory.create(node, config);
+                if (context != null) {
+                    break;
+                }
+            }
+        }
+        if (context == null) {
+            throw new IllegalArgumentException("No EvalFactory for " + node.getClass().getName());
+        }
+        return params == null ? context : new Parameter.Bound(context, params);
     }
 
     private static IllegalStateException error(CursorList<Term> in, String err) {
@@ -235,33 +458,13 @@ public class ZPath {
         List<Axis> out = new ArrayList<Axis>();
         Term t;
         boolean first = true, slash = false, root = false;
-        StringBuilder sb = new StringBuilder();
         while ((t=in.next()) != null) {
 //            System.out.println("* t="+t);
             if (t.isName()) {
                 if (!first && !slash) {
                     throw error(in, "bad path");
                 } else {
-                    String name = t.value;
-                    for (int j=0;j<name.length();j++) {
-                        char c = name.charAt(j);
-                        if (c == '\n') {
-                            sb.append("\\n");
-                        } else if (c == '\r') {
-                            sb.append("\\r");
-                        } else if (c == '\t') {
-                            sb.append("\\t");
-                        } else if (c == '\\' || PATH_DELIMITERS.indexOf(c) >= 0) {
-                            sb.append("\\");
-                            sb.append(c);
-                        } else {
-                            sb.append(c);
-                        }
-                    }
                     int index = in.peek() != null && in.peek().isIndex() ? in.next().indexValue() : Axis.ANYINDEX;
-                    if (index >= 0) {
-                        sb.append("#" + index);
-                    }
                     out.add(Axis.axisKey(t.value, index));
                 }
                 root = slash = false;
@@ -270,12 +473,9 @@ public class ZPath {
                     throw error(in, "bad path");
                 } else if (in.peek() != null && in.peek().isIndex()) {         // Matches #1#2, required for bags of items keyed on integer (eg CBOR)
                     int index = in.next().indexValue();
-                    sb.append("#" + t.indexValue());
-                    sb.append("#" + index);
                     out.add(Axis.axisKey(t.indexValue(), index));
                 } else {
                     out.add(Axis.axisKey(null, t.indexValue()));
-                    sb.append("#" + t.indexValue());
                 }
                 root = slash = false;
             } else if (t == Term.STAR) {
@@ -284,7 +484,6 @@ public class ZPath {
                 } else {
                     int index = in.peek() != null && in.peek().isIndex() ? in.next().indexValue() : Axis.ANYINDEX;
                     out.add(Axis.axisKey(EvalContext.WILDCARD, index));
-                    sb.append(t.toString());
                 }
                 root = slash = false;
             } else if (t == Term.STARSTAR) {
@@ -292,7 +491,6 @@ public class ZPath {
                     throw error(in, "bad path");
                 } else {
                     out.add(Axis.SELFORANYDESCENDENT);
-                    sb.append(t.toString());
                 }
                 root = slash = false;
             } else if (t == Term.DOTDOT) {
@@ -300,7 +498,6 @@ public class ZPath {
                     throw error(in, "bad path");
                 } else {
                     out.add(Axis.PARENT);
-                    sb.append(t.toString());
                 }
                 root = slash = false;
             } else if (t == Term.DOTDOTSTAR) {
@@ -308,7 +505,6 @@ public class ZPath {
                     throw error(in, "bad path");
                 } else {
                     out.add(Axis.ANCESTORS);
-                    sb.append(t.toString());
                 }
                 root = slash = false;
             } else if (t == Term.DOT) {
@@ -316,7 +512,6 @@ public class ZPath {
                     throw error(in, "bad path");
                 } else {
                     out.add(Axis.SELF);
-                    sb.append(t.toString());
                 }
                 root = slash = false;
             } else if (t.isFunction()) {
@@ -326,14 +521,12 @@ public class ZPath {
                     in.seek(in.tell() - 1);
                     Term function = parseFunction(in, config, true);
                     out.add(function);
-                    sb.append(function.toString());
                 }
                 root = slash = false;
             } else if (t == Term.LBRACE) {
                 if (!first && slash && !root) {
                     // Convert /[test] to /*[test]
                     out.add(Axis.axisKey(EvalContext.WILDCARD, Axis.ANYINDEX));
-                    sb.append("*");
                 }
                 int start = in.tell(), d = 1;
                 while ((t=in.next()) != null) {
@@ -352,9 +545,6 @@ public class ZPath {
                         throw error(in, "expression failed");
                     }
                     out.add(Axis.axisMatch(ex));
-                    sb.append('[');
-                    sb.append(ex);
-                    sb.append(']');
                 } else {
                     in.seek(start - 1);
                     throw error(in, "mismatched brace");
@@ -367,7 +557,6 @@ public class ZPath {
                     out.add(Axis.ROOT);
                     root = true;
                 }
-                sb.append('/');
                 slash = true;
             } else {
                 in.seek(in.tell() - 1);
@@ -380,7 +569,7 @@ public class ZPath {
         } else if (out.isEmpty()) {
             return null;
         } else {
-            return new Path(out, sb.toString());
+            return Term.intern(new Path(out));
         }
     }
 
@@ -409,22 +598,27 @@ public class ZPath {
         // Try and find the function at compile time if we can,
         // but some are specific to the EvaluationContext so
         // accept null
-        Function function = null;
-        for (Function f : config.getFunctions()) {
-            if (f.matches(name)) {
-                function = f;
-                break;
-            }
-        }
+        Function function = config.getFunction(name);
         if (function != null && !function.verify(name, args)) {
             throw error(in.seek(in.tell() - 1), "invalid function arguments for \"" + name + "\"");
         }
-        return new FunctionAxis(function, name, args, path);
+        Object prepared = null;
+        if (function instanceof TypedFunction) {
+            prepared = ((TypedFunction)function).prepare(name, args, config);
+            if (!path) {
+                // Pure function with constant arguments: evaluate now
+                Term folded = ((TypedFunction)function).fold(name, args, prepared, config);
+                if (folded != null) {
+                    return folded;
+                }
+            }
+        }
+        return Term.intern(new FunctionAxis(function, name, args, path, prepared));
     }
 
     private static Term parseOperand(CursorList<Term> in, Configuration config) {
         Term t = in.peek();
-        if (t.isInteger() || t.isReal() || t.isString()) {
+        if (t.isInteger() || t.isReal() || t.isString() || t instanceof Parameter) {
             return in.next();
         } else if (t.isFunction()) {
             return parseFunction(in, config, false);
@@ -438,7 +632,7 @@ public class ZPath {
      */
     private static Term parseExpression(CursorList<Term> in, Configuration config) {
         final int tell = in.tell();
-        Stack<Term> stack = new Stack<Term>();
+        ArrayDeque<Term> stack = new ArrayDeque<Term>();
         List<Term> out = new ArrayList<Term>();
         // First convert infix->postfix with stack.
         // Shunting yard algo with special handling for middle term of ternary a?b:c (wrap b in paren), unary,
@@ -456,7 +650,7 @@ public class ZPath {
                 // noop
             } else if (t == Term.LPAREN) {
                 operand = operator = null;
-                stack.add(t);
+                stack.push(t);
                 expectingOperand = true;
             } else if (t == Term.RPAREN || t == Term.COLON) {
                 operand = operator = null;
@@ -477,7 +671,7 @@ public class ZPath {
                 expectingOperand = false;
             } 
             if (t.isUnaryOperator()) {
-                stack.add(t);
+                stack.push(t);
                 expectingOperand = true;
             } else if (t.isBinaryOperator() && !expectingOperand) {
                 operator = t;
@@ -487,9 +681,9 @@ public class ZPath {
                 while (!stack.isEmpty() && (t=stack.peek()).isOperator() && t.compareTo(operator) <= 0) {
                     out.add(stack.pop());
                 }
-                stack.add(operator);
+                stack.push(operator);
                 if (operator == Term.QUESTION) {
-                    stack.add(Term.LPAREN);
+                    stack.push(Term.LPAREN);
                 }
                 expectingOperand = true;
             } else if (t != Term.WS && t != Term.LPAREN && t != Term.RPAREN) { 
@@ -517,7 +711,7 @@ public class ZPath {
             t = out.get(i);
             if (t == Term.QUESTION) {
                 // do nothing
-                stack.add(t);
+                stack.push(t);
             } else if (t == Term.COLON && stack.size() >= 4) {
                 Term c = stack.pop();
                 Term q = stack.pop();
@@ -526,21 +720,21 @@ public class ZPath {
                 if (q != Term.QUESTION) {
                     throw error(in.seek(tell), "invalid ternary expression: (" + a + " " + q + " " + b + " : " + c + ")");
                 }
-                t = new Expr(q, a, b, c);
-                stack.add(t);
+                t = Term.intern(new Expr(q, a, b, c));
+                stack.push(t);
             } else if (t.isUnaryOperator() && stack.size() >= 1) {
                 Term a = stack.pop();
-                t = new Expr(t, a, null);
-                stack.add(t);
+                t = Term.intern(new Expr(t, a, null));
+                stack.push(t);
             } else if (t.isBinaryOperator() && stack.size() >= 2) {
                 Term b = stack.pop();
                 Term a = stack.pop();
-                t = new Expr(t, a, b);
-                stack.add(t);
+                t = Term.intern(new Expr(t, a, b));
+                stack.push(t);
             } else if (t.isOperator()) {
                 throw error(in.seek(tell), "invalid expression");
             } else {
-                stack.add(t);
+                stack.push(t);
             }
         }
         if (stack.size() != 1) {
@@ -550,196 +744,209 @@ public class ZPath {
         return t;
     }
 
-    private static CursorList<Term> tokenize(String in) {
-        CursorList<Term> tokens = new CursorList<Term>();
-        final int len = in.length();
-        for (int i=0;i<len;i++) {
-            int c = in.codePointAt(i);
-            if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
-                while (i + 1 < len && ((c=in.codePointAt(i + 1)) == ' ' || c == '\t' || c == '\r' || c == '\n')) {
+    private static CursorList<Term> tokenize(final String s) {
+        final char[] in = s.toCharArray();
+        final int len = in.length;
+        final CursorList<Term> tokens = new CursorList<Term>();
+        final StringBuilder sb = new StringBuilder();      // scratch buffer for strings and names
+        int i = 0;
+        while (i < len && isWhitespace(in[i])) {           // Trim whitespace from start
+            i++;
+        }
+        while (i < len) {
+            final char c = in[i];
+            final Term single = c < 0x80 ? SINGLECHAR[c] : null;
+            if (single != null) {
+                tokens.add(single);
+                i++;
+            } else if (isWhitespace(c)) {
+                do {
                     i++;
+                } while (i < len && isWhitespace(in[i]));
+                if (i < len) {                              // Trim whitespace from end
+                    tokens.add(Term.WS);
                 }
-                tokens.add(Term.WS);
             } else if (c == '.') {
-                if (i + 1 < len && in.codePointAt(i + 1) == '.') {
-                    i++;
-                    if (i + 1 < len && in.codePointAt(i + 1) == '*') {
-                        i++;
+                if (i + 1 < len && in[i + 1] == '.') {
+                    if (i + 2 < len && in[i + 2] == '*') {
                         tokens.add(Term.DOTDOTSTAR);
+                        i += 3;
                     } else {
                         tokens.add(Term.DOTDOT);
+                        i += 2;
                     }
                 } else {
                     tokens.add(Term.DOT);
+                    i++;
                 }
-            } else if (c == '/') {
-                tokens.add(Term.SLASH);
-            } else if (c == '[') {
-                tokens.add(Term.LBRACE);
-            } else if (c == ']') {
-                tokens.add(Term.RBRACE);
-            } else if (c == '(') {
-                tokens.add(Term.LPAREN);
-            } else if (c == ')') {
-                tokens.add(Term.RPAREN);
-            } else if (c == '?') {
-                tokens.add(Term.QUESTION);
-            } else if (c == '%') {
-                tokens.add(Term.PERCENT);
-            } else if (c == ',') {
-                tokens.add(Term.COMMA);
-            } else if (c == ':') {
-                tokens.add(Term.COLON);
-            } else if (c == ',') {
-                tokens.add(Term.COMMA);
-            } else if (c == '#' && i + 1 < len && in.codePointAt(i + 1) <= '9' && in.codePointAt(i + 1) >= '0') {
-                int start = ++i;
-                for (;i<len;i++) {
-                    c = in.codePointAt(i);
-                    if (PATH_DELIMITERS.indexOf(c) >= 0) {
-                        break;
-                    } else if (c < '0' || c > '9') {
-                        throw error(in, i, "bad index");
+            } else if (c == '#' && i + 1 < len && isDigit(in[i + 1])) {
+                long v = 0;
+                while (++i < len && !isPathDelimiter(in[i])) {
+                    if (!isDigit(in[i])) {
+                        throw error(s, i, "bad index");
+                    }
+                    v = v * 10 + in[i] - '0';
+                    if (v > Integer.MAX_VALUE) {
+                        throw error(s, i, "bad index");
                     }
                 }
-                tokens.add(Term.newIndex(Integer.parseInt(in.substring(start, i))));
-                i--;
-            } else if (c == '+') {
-                tokens.add(Term.PLUS);
-            } else if (c == '-' && (i + 1 == len || in.codePointAt(i + 1) > '9' || in.codePointAt(i + 1) < '0')) {
+                tokens.add(Term.newIndex((int)v));
+            } else if (c == '-' && (i + 1 == len || !isDigit(in[i + 1]))) {
                 tokens.add(Term.MINUS);
+                i++;
             } else if (c == '*') {
-                if (i + 1 < len && in.codePointAt(i + 1) == '*') {
+                if (i + 1 < len && in[i + 1] == '*') {
                     tokens.add(Term.STARSTAR);
-                    i++;
+                    i += 2;
                 } else {
                     tokens.add(Term.STAR);
+                    i++;
                 }
-            } else if (c == '/') {
-                tokens.add(Term.SLASH);
-            } else if (c == '~') {
-                tokens.add(Term.TILDE);
             } else if (c == '!') {
-                if (i + 1 < len && in.codePointAt(i + 1) == '=') {
-                    if (i + 2 < len && in.codePointAt(i + 2) == '=') {
+                if (i + 1 < len && in[i + 1] == '=') {
+                    if (i + 2 < len && in[i + 2] == '=') {
                         tokens.add(Term.NEE);
-                        i += 2;
+                        i += 3;
                     } else {
                         tokens.add(Term.NE);
-                        i++;
+                        i += 2;
                     }
                 } else {
                     tokens.add(Term.BANG);
+                    i++;
                 }
             } else if (c == '&') {
-                if (i + 1 < len && in.codePointAt(i + 1) == '&') {
+                if (i + 1 < len && in[i + 1] == '&') {
                     tokens.add(Term.AND);
-                    i++;
+                    i += 2;
                 } else {
                     tokens.add(Term.BITAND);
+                    i++;
                 }
             } else if (c == '|') {
-                if (i + 1 < len && in.codePointAt(i + 1) == '|') {
+                if (i + 1 < len && in[i + 1] == '|') {
                     tokens.add(Term.OR);
-                    i++;
+                    i += 2;
                 } else {
                     tokens.add(Term.BITOR);
+                    i++;
                 }
-            } else if (c == '^') {
-                tokens.add(Term.CARET);
-            } else if (c == '=' && i + 1 < len && in.codePointAt(i + 1) == '=') {
-                if (i + 2 < len && in.codePointAt(i + 2) == '=') {
+            } else if (c == '=' && i + 1 < len && in[i + 1] == '=') {
+                if (i + 2 < len && in[i + 2] == '=') {
                     tokens.add(Term.EEQ);
-                    i += 2;
+                    i += 3;
                 } else {
                     tokens.add(Term.EQ);
-                    i++;
+                    i += 2;
                 }
-            } else if (c == '>') {
-                if (i + 1 < len && in.codePointAt(i + 1) == '=') {
-                    tokens.add(Term.GE);
-                    i++;
+            } else if (c == '>' || c == '<') {
+                if (i + 1 < len && in[i + 1] == '=') {
+                    tokens.add(c == '>' ? Term.GE : Term.LE);
+                    i += 2;
                 } else {
-                    tokens.add(Term.GT);
-                }
-            } else if (c == '<') {
-                if (i + 1 < len && in.codePointAt(i + 1) == '=') {
-                    tokens.add(Term.LE);
+                    tokens.add(c == '>' ? Term.GT : Term.LT);
                     i++;
-                } else {
-                    tokens.add(Term.LT);
                 }
             } else if (c == '"' || c == '\'') {
-                StringBuilder sb = new StringBuilder();
-                int quote = c;
-                for (++i;i<len;i++) {
-                    c = in.codePointAt(i);
-                    if (c == '\\' && i + 1 < len) {
-                        c = in.codePointAt(++i);
-                        switch (c) {
-                            case 'n': c = '\n'; break;
-                            case 'r': c = '\r'; break;
-                            case 't': c = '\t'; break;
+                sb.setLength(0);
+                for (++i;i<len && in[i] != c;i++) {
+                    char d = in[i];
+                    if (d == '\\' && i + 1 < len) {
+                        d = in[++i];
+                        switch (d) {
+                            case 'n': d = '\n'; break;
+                            case 'r': d = '\r'; break;
+                            case 't': d = '\t'; break;
                         }
-                        sb.appendCodePoint(c);
-                    } else if (c == quote) {
-                        break;
-                    } else {
-                        sb.appendCodePoint(c);
                     }
+                    sb.append(d);
                 }
                 if (i == len) {
-                    throw error(in, i, "EOF");
-                } else {
-                    tokens.add(Term.newString(sb.toString()));
-                }
-            } else if (c == '-' || (c >= '0' && c <= '9')) {
-                int start = i;
-                if (c == '-') {
-                    i++;
+                    throw error(s, i, "EOF");
                 }
+                tokens.add(Term.newString(sb.toString()));
+                i++;
+            } else if (c == '-' || isDigit(c)) {
+                final int start = i;
                 boolean integer = true;
-                for (++i;i<len;i++) {
-                    c = in.codePointAt(i);
-                    if (c == '.' && integer) {
+                long v = 0;
+                for (i += c == '-' ? 1 : 0;i<len;i++) {
+                    final char d = in[i];
+                    if (d == '.' && integer) {
                         integer = false;
-                    } else if (NUMBER_DELIMITERS.indexOf(c) >= 0) {
+                    } else if (isNumberDelimiter(d)) {
                         break;
-                    } else if (c < '0' || c > '9') {
-                        throw error(in, i, "bad number");
+                    } else if (!isDigit(d)) {
+                        throw error(s, i, "bad number");
+                    } else if (integer && v <= Integer.MAX_VALUE + 1L) {
+                        v = v * 10 + d - '0';       // stops once it can't be an int, but stays too large
                     }
                 }
                 if (integer) {
-                    tokens.add(Term.newInteger(Integer.parseInt(in.substring(start, i))));
+                    if (v > Integer.MAX_VALUE + 1L) {
+                        throw error(s, i, "bad number");
+                    }
+                    if (c == '-') {
+                        v = -v;
+                    }
+                    if (v != (int)v) {
+                        throw error(s, i, "bad number");
+                    }
+                    tokens.add(Term.newInteger((int)v));
                 } else {
-                    tokens.add(Term.newReal(Double.parseDouble(in.substring(start, i))));
+                    tokens.add(Term.newReal(Double.parseDouble(new String(in, start, i - start))));
                 }
-                i--;
-            } else if (c == '\\' || Character.isAlphabetic(c) || c == '@' || c == '_') {
-                StringBuilder sb = new StringBuilder();
+            } else if (c == '$' && i + 1 < len && (in[i + 1] == '_' || Character.isLetter(in[i + 1]))) {
+                final int start = ++i;
+                while (i < len && (in[i] == '_' || in[i] == '-' || Character.isLetterOrDigit(in[i]))) {
+                    i++;
+                }
+                tokens.add(Term.intern(new Parameter(new String(in, start, i - start))));
+            } else if (c == '\\' || c == '@' || c == '_' || Character.isAlphabetic(c < 0x80 ? c : Character.codePointAt(in, i))) {
+                sb.setLength(0);
                 for (;i<len;i++) {
-                    c = in.codePointAt(i);
-                    if (c == '\\' && i + 1 < len) {
-                        c = in.codePointAt(++i);
-                    } else if (c != '*' && PATH_DELIMITERS.indexOf(c) >= 0) {
+                    char d = in[i];
+                    if (d == '\\' && i + 1 < len) {
+                        sb.append(in[++i]);
+                    } else if (isPathDelimiter(d)) {
                         break;
                     } else {
-                        sb.appendCodePoint(c);
+                        sb.append(d);
                     }
                 }
-                if (c == '(') {
+                if (i < len && in[i] == '(') {
                     tokens.add(Term.newFunction(sb.toString()));
+                    i++;
                 } else {
                     tokens.add(Term.newName(sb.toString()));
-                    i--;
                 }
             } else {
-                throw error(in, i, "invalid character " + (c > 0x20 && c < 0x7f ? "\"" + ((char)c) + "\"" : "U+" + Integer.toHexString(c)));
+                int cp = Character.codePointAt(in, i);
+                throw error(s, i, "invalid character " + (cp > 0x20 && cp < 0x7f ? "\"" + ((char)cp) + "\"" : "U+" + Integer.toHexString(cp)));
             }
         }
         return tokens;
     }
 
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c < 0x80 && (CHARCLASS[c] & CHAR_WHITESPACE) != 0;
+    }
+
+    /**
+     * Return true if the character ends a name component in a path
+     */
+    static boolean isPathDelimiter(int c) {
+        return c < 0x80 && (CHARCLASS[c] & CHAR_PATHDELIMITER) != 0;
+    }
+
+    private static boolean isNumberDelimiter(int c) {
+        return c < 0x80 && (CHARCLASS[c] & CHAR_NUMBERDELIMITER) != 0;
+    }
+
     private static IllegalArgumentException error(String s, int index, String msg) {
         StringBuilder sb = new StringBuilder();
         sb.append("Tokenization error at " + index + "/" + s.length() + ": " + msg + " in \"");
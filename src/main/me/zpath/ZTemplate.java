@@ -2,10 +2,16 @@ package me.zpath;
 
 import java.io.*;
 import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /**
  * <p>
@@ -22,10 +28,24 @@ public class ZTemplate {
 
     private final TemplateNode root;
     private final Configuration config;
+    private final Program program;
 
-    private ZTemplate(TemplateNode root, Configuration config) {
+    ZTemplate(TemplateNode root, Configuration config) {
         this.root = root;
         this.config = config;
+        this.program = new Program(root);
+    }
+
+    TemplateNode root() {
+        return root;
+    }
+
+    Configuration config() {
+        return config;
+    }
+
+    Program program() {
+        return program;
     }
 
     /**
@@ -234,6 +254,27 @@ public class ZTemplate {
      * @return the Reader to read the combined model from
      */
     public Reader apply(Object model) {
+        return new TemplateMergingReader(new Cursor(this, model, createContext(model, config)));
+    }
+
+    /**
+     * Apply the model to the ZTemplate, returning a channel to read the merged template from,
+     * encoded as UTF-8. The template is only run when the channel is read from, and each read
+     * runs it for just long enough to fill the buffer, so the output can be produced as a
+     * consumer asks for it, for example to publish it to a non-blocking HTTP response
+     * without a thread waiting on each one. The channel never blocks.
+     * @param model the Model, which will be passed to any top-level embedded {@link ZPath} expressions
+     * @return the channel to read the combined model from
+     */
+    public ReadableByteChannel applyChannel(Object model) {
+        return new TemplateChannel(new Cursor(this, model, createContext(model, config)));
+    }
+
+    /**
+     * Return the EvalContext for the model from the first of the configured factories that accepts it
+     * @throws IllegalArgumentException if the model is null or no factory accepts it
+     */
+    static EvalContext createContext(Object model, Configuration config) {
         if (model == null) {
              throw new IllegalArgumentException("Model is null");
         }
@@ -247,23 +288,265 @@ public class ZTemplate {
         if (context == null) {
             throw new IllegalArgumentException("No EvalContext found for " + model.getClass().getName());
         }
-        return new TemplateMergingReader(this, model, context);
+        return context;
     }
 
     /**
-     * Apply the model to the ZTemplate, writing the result to the supplied output
+     * Apply the model to the ZTemplate, writing the result to the supplied output.
+     * Text and the values of expressions are written directly to the output as they're
+     * produced, so this is faster than reading from {@link #apply(Object)}
      * @param model the Model, which will be passed to any top-level embedded {@link ZPath} expressions
      * @param out the StringBuilder to write the output to
      */
     public void apply(Object model, Appendable out) {
-        TemplateMergingReader reader = (TemplateMergingReader)apply(model);
+        if (out == null) {
+            throw new IllegalArgumentException("Output is null");
+        }
         try {
-            reader.transferTo(out);
+            render(new TemplateContext(model, createContext(model, config), config, program.depth(), out));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Apply the model to the ZTemplate, writing the result to the supplied PrintStream as
+     * {@link #apply(Object,Appendable)} does, so it's encoded with the PrintStream's own charset.
+     * A PrintStream such as <code>System.out</code> is both an OutputStream and an Appendable;
+     * this method means passing one isn't ambiguous, and gives the same result as it always has.
+     * @param model the Model, which will be passed to any top-level embedded {@link ZPath} expressions
+     * @param out the PrintStream to write the output to
+     */
+    public void apply(Object model, PrintStream out) {
+        apply(model, (Appendable)out);
+    }
+
+    /**
+     * Apply the model to the ZTemplate, writing the result to the supplied OutputStream encoded as UTF-8.
+     * The static text in the template is encoded when it's compiled, so only the values of expressions
+     * are encoded as the template is applied.
+     * The output is buffered, but all of it has been written to the stream when this method returns.
+     * The stream is not closed, and is only flushed as set by {@link Configuration#setTemplateFlushSize}
+     * and {@link Configuration#setTemplateFlushAtSections}.
+     * @param model the Model, which will be passed to any top-level embedded {@link ZPath} expressions
+     * @param out the OutputStream to write the output to
+     * @throws IOException if the OutputStream throws an IOException
+     */
+    public void apply(Object model, OutputStream out) throws IOException {
+        if (out == null) {
+            throw new IllegalArgumentException("Output is null");
+        }
+        apply(model, new ByteOutput(out));
+    }
+
+    /**
+     * Apply the model to the ZTemplate, writing the result to the supplied channel encoded as UTF-8.
+     * As {@link #apply(Object,OutputStream)}, but large pieces of static text are written
+     * to a {@link GatheringByteChannel} without being copied into the buffer.
+     * The channel must be in blocking mode, and is not closed.
+     * @param model the Model, which will be passed to any top-level embedded {@link ZPath} expressions
+     * @param out the channel to write the output to
+     * @throws IOException if the channel throws an IOException
+     */
+    public void apply(Object model, WritableByteChannel out) throws IOException {
+        if (out == null) {
+            throw new IllegalArgumentException("Output is null");
+        }
+        apply(model, new ByteOutput(out));
+    }
+
+    /**
+     * Apply the model to the ZTemplate, writing the result to the supplied buffer encoded as UTF-8,
+     * as {@link #apply(Object,OutputStream)}. On return the buffer's position is after the output
+     * @param model the Model, which will be passed to any top-level embedded {@link ZPath} expressions
+     * @param out the buffer to write the output to
+     * @throws BufferOverflowException if the output doesn't fit in the buffer
+     */
+    public void apply(Object model, ByteBuffer out) {
+        if (out == null) {
+            throw new IllegalArgumentException("Output is null");
+        }
+        try {
+            apply(model, new ByteOutput(out));
+        } catch (IOException e) {
+            throw new RuntimeException(e);      // can't happen
+        }
+    }
+
+    private void apply(Object model, ByteOutput out) throws IOException {
+        render(new TemplateContext(model, createContext(model, config), config, program.depth(), out));
+        out.finish();
+    }
+
+    /**
+     * <p>
+     * Apply the template to each of a sequence of models, writing each one to its own OutputStream
+     * encoded as UTF-8, as {@link #apply(Object,OutputStream)} does. The models are shared between
+     * <code>parallelism</code> threads, including the calling thread, and each thread reuses its
+     * output buffer, its loop stack and, while the models are of the same class, the factory that
+     * creates their EvalContext. If applying the template to a model fails, the failure is recorded
+     * and the next model is applied, so one bad model doesn't stop the batch.
+     * </p><p>
+     * Each OutputStream is closed when its model has been written, or has failed. The models must
+     * be safe to read from another thread, and the function must be safe to call from several at once.
+     * This method returns when every model has been applied.
+     * </p>
+     * @param models the models
+     * @param sinks a function that returns the OutputStream to write each model to
+     * @param parallelism the number of threads to use, or 1 to use only the calling thread
+     * @return the exceptions thrown for each model that failed, keyed on the model's position in the sequence, which is empty if none failed
+     */
+    public SortedMap<Integer,Exception> applyAll(Iterable<?> models, java.util.function.Function<Object,? extends OutputStream> sinks, int parallelism) {
+        if (models == null) {
+            throw new IllegalArgumentException("Models is null");
+        }
+        return applyAll(models.iterator(), sinks, parallelism);
+    }
+
+    /**
+     * Apply the template to each of a Stream of models, as {@link #applyAll(Iterable,java.util.function.Function,int)} does.
+     * The Stream is read in order, from the threads applying the template.
+     * @param models the models
+     * @param sinks a function that returns the OutputStream to write each model to
+     * @param parallelism the number of threads to use, or 1 to use only the calling thread
+     * @return the exceptions thrown for each model that failed, keyed on the model's position in the sequence, which is empty if none failed
+     */
+    public SortedMap<Integer,Exception> applyAll(Stream<?> models, java.util.function.Function<Object,? extends OutputStream> sinks, int parallelism) {
+        if (models == null) {
+            throw new IllegalArgumentException("Models is null");
+        }
+        return applyAll(models.iterator(), sinks, parallelism);
+    }
+
+    private SortedMap<Integer,Exception> applyAll(Iterator<?> models, java.util.function.Function<Object,? extends OutputStream> sinks, int parallelism) {
+        if (sinks == null) {
+            throw new IllegalArgumentException("Sinks is null");
+        }
+        SortedMap<Integer,Exception> failures = new ConcurrentSkipListMap<Integer,Exception>();
+        AtomicInteger count = new AtomicInteger();
+        BatchWorker worker = new BatchWorker(models, count, sinks, failures);
+        if (parallelism <= 1) {
+            worker.run();
+            return failures;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism - 1);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i=1;i<parallelism;i++) {
+                futures.add(pool.submit(new BatchWorker(models, count, sinks, failures)));
+            }
+            worker.run();
+            for (Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    // Failures for a model are recorded, so this is from the Iterator or an Error
+                    Throwable t = e.getCause();
+                    if (t instanceof RuntimeException) {
+                        throw (RuntimeException)t;
+                    } else if (t instanceof Error) {
+                        throw (Error)t;
+                    }
+                    throw new RuntimeException(t);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return failures;
+    }
+
+    /**
+     * Applies the template to models taken from a shared Iterator, reusing its output,
+     * TemplateContext and EvalFactory from one model to the next
+     */
+    private class BatchWorker implements Runnable {
+        private final Iterator<?> models;
+        private final AtomicInteger count;
+        private final java.util.function.Function<Object,? extends OutputStream> sinks;
+        private final Map<Integer,Exception> failures;
+        private ByteOutput out;
+        private TemplateContext context;
+        private EvalFactory factory;            // the factory that created the last EvalContext
+        private Class<?> factoryClass;          // the class of the model it was created for
+
+        BatchWorker(Iterator<?> models, AtomicInteger count, java.util.function.Function<Object,? extends OutputStream> sinks, Map<Integer,Exception> failures) {
+            this.models = models;
+            this.count = count;
+            this.sinks = sinks;
+            this.failures = failures;
+        }
+
+        @Override public void run() {
+            while (true) {
+                Object model;
+                int index;
+                synchronized(models) {
+                    if (!models.hasNext()) {
+                        return;
+                    }
+                    model = models.next();
+                    index = count.getAndIncrement();
+                }
+                try {
+                    apply(model);
+                } catch (Exception e) {
+                    failures.put(index, e);
+                }
+            }
+        }
+
+        private void apply(Object model) throws IOException {
+            if (model == null) {
+                throw new IllegalArgumentException("Model is null");
+            }
+            // Reuse the factory only for a model of the same class; otherwise an earlier
+            // factory in the list might accept it, as it would with createContext
+            EvalContext evalcontext = model.getClass() == factoryClass ? factory.create(model, config) : null;
+            if (evalcontext == null) {
+                for (EvalFactory f : config.getFactories()) {
+                    evalcontext = f.create(model, config);
+                    if (evalcontext != null) {
+                        factory = f;
+                        factoryClass = model.getClass();
+                        break;
+                    }
+                }
+                if (evalcontext == null) {
+                    throw new IllegalArgumentException("No EvalContext found for " + model.getClass().getName());
+                }
+            }
+            OutputStream stream = sinks.apply(model);
+            if (stream == null) {
+                throw new IllegalArgumentException("Output is null");
+            }
+            try {
+                if (out == null) {
+                    out = new ByteOutput(stream);
+                    context = new TemplateContext(model, evalcontext, config, program.depth(), out);
+                } else {
+                    out.reset(stream);
+                    context.reset(model, evalcontext);
+                }
+                render(context);
+                out.finish();
+            } finally {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * Render the template to the output of the context
+     * @param context the context
+     */
+    void render(TemplateContext context) throws IOException {
+        program.run(context);
+    }
+
 
     /**
      * A FilterReader that counts lines and columns
@@ -289,7 +572,7 @@ public class ZTemplate {
     /**
      * A node in a tree of ZPath expressions and text literals
      */
-    private static class TemplateNode {
+    static class TemplateNode {
         final String text;
         final ZPath expr;
         final int line, column, escape; // escape: 0=none, 1=escape, 2=unescape
@@ -374,279 +657,402 @@ public class ZTemplate {
     }
 
     /**
-     * A Reader that will evaluate expressions and merge them with the TreeNode
+     * <p>
+     * A template compiled to a flat array of instructions, which is how it's rendered.
+     * A text node becomes TEXT, an expression without children becomes EVAL, and an expression
+     * with children becomes LOOP_BEGIN, the instructions for its children, then LOOP_END.
+     * Each LOOP_BEGIN jumps past its LOOP_END if there is nothing to loop over, and
+     * each LOOP_END jumps back to the first instruction after its LOOP_BEGIN while there are items left.
+     * </p><p>
+     * Includes are already inlined into the tree, so adjacent text is merged into one instruction.
+     * </p>
      */
-    private static class TemplateMergingReader extends Reader {
-        private final EvalContext evalcontext;
-        private final ZTemplate template;
-        private final Object modelroot;
-        private TemplateContext ctx;        // The read context (the top of the stack)
-        private String buf;                     // The text buffer being read from
-        private int off;                        // How far into that text buffer we are
-        private int round;
-        private long bytecount;
+    static final class Program {
+        static final byte TEXT = 0, EVAL = 1, LOOP_BEGIN = 2, LOOP_END = 3;
+        private byte[] ops = new byte[16];
+        private int[] jumps = new int[16];
+        private Object[] args = new Object[16];         // String for TEXT, TemplateNode for EVAL and LOOP_BEGIN
+        private final byte[][] encoded;                 // the TEXT encoded as UTF-8
+        private final int[] sections;                   // the LOOP_BEGIN of each top-level section
+        private int size, depth;
 
-        /**
-         * @param template the source template
-         * @param model the model being merged
-         * @param evalcontext the EvalContext
-         */
-        TemplateMergingReader(ZTemplate template, Object model, EvalContext evalcontext) {
-            this.modelroot = model;
-            this.template = template;
-            this.evalcontext = evalcontext;
-            this.buf = "";
-            this.ctx = new TemplateContext(model, template.root, evalcontext, -1, null);
-        }
-
-        @Override public void close() throws IOException {
-        }
-
-        @Override public int read() throws IOException {
-            if (off == buf.length()) {
-                fill();
-                if (off == buf.length()) {
-                    return -1;
+        Program(TemplateNode root) {
+            add(root, 0);
+            ops = Arrays.copyOf(ops, size);
+            jumps = Arrays.copyOf(jumps, size);
+            args = Arrays.copyOf(args, size);
+            encoded = new byte[size][];
+            for (int i=0;i<size;i++) {
+                if (ops[i] == TEXT) {
+                    encoded[i] = ((String)args[i]).getBytes(StandardCharsets.UTF_8);
                 }
             }
-            return buf.charAt(off++);
+            int count = 0;
+            int[] sections = new int[size];
+            for (int pc=0;pc<size;pc++) {
+                if (ops[pc] == LOOP_BEGIN) {
+                    sections[count++] = pc;
+                    pc = jumps[pc] - 1;
+                }
+            }
+            this.sections = Arrays.copyOf(sections, count);
         }
 
-        @Override public int read(char[] buf, int off, int len) throws IOException {
-            if (len == 0) {
-                return 0;
-            }
-            if (this.off == this.buf.length()) {
-                fill();
-                if (this.off == this.buf.length()) {
-                    return -1;
+        private void add(TemplateNode parent, int level) {
+            depth = Math.max(depth, level);
+            for (TemplateNode node=parent.first;node!=null;node=node.next) {
+                if (node.expr == null) {
+                    if (node.text != null && !node.text.isEmpty()) {
+                        if (size > 0 && ops[size - 1] == TEXT) {
+                            args[size - 1] = (String)args[size - 1] + node.text;
+                        } else {
+                            emit(TEXT, 0, node.text);
+                        }
+                    }
+                } else if (node.first == null) {
+                    emit(EVAL, 0, node);
+                } else {
+                    int begin = emit(LOOP_BEGIN, 0, node);
+                    add(node, level + 1);
+                    int end = emit(LOOP_END, begin + 1, null);
+                    jumps[begin] = end + 1;
                 }
             }
-            len = Math.min(len, this.buf.length() - this.off);
-            this.buf.getChars(this.off, this.off + len, buf, off);
-            this.off += len;
-            return len;
         }
 
-        public long transferTo(Writer out) throws IOException {         // This is defined in Java 10
-            return transferTo((Appendable)out);
+        private int emit(byte op, int jump, Object arg) {
+            if (size == ops.length) {
+                ops = Arrays.copyOf(ops, size * 2);
+                jumps = Arrays.copyOf(jumps, size * 2);
+                args = Arrays.copyOf(args, size * 2);
+            }
+            ops[size] = op;
+            jumps[size] = jump;
+            args[size] = arg;
+            return size++;
         }
 
-        private long transferTo(Appendable out) throws IOException {    // This is not
-            long biglen = 0;
-            while (true) {
-                if (off == buf.length()) {
-                    fill();
-                    if (off == buf.length()) {
-                        break;
-                    }
-                }
-                int len = buf.length() - off;
-                out.append(buf, off, len);
-                off += len;
-                biglen += len;
-            }
-            return biglen;
+        /**
+         * Return the number of instructions
+         */
+        int size() {
+            return ops.length;
         }
 
         /**
-         * Fill out internal buffer. Traverses the tree and/or the iterator on the current node
+         * Run the whole program, writing to the context's output. If the configuration has an
+         * Executor and there is more than one top-level section, each section is rendered into
+         * its own buffer by the Executor, and they're written in order as they complete
+         * @param context the context
          */
-        private void fill() {
-            // Phases:
-            // * {current=root, end=root, ctx=modelroot, p=DESCEND}
-            //
-            // if (node is childless-eval and phase=descend) {
-            //    set phase=ascend
-            //    set buf to eval string
-            // } else if (node 
-            // If we hit a childless-eval we're {current=content, end=root, ctx=modelroot, p=DESCEND}
-            //   * eval node, get the string, copy it to buf
-            //   * ctx = ctx.next() - move to next sibling, going up if need be
-            // 
-            // 1. split the current node, so we have
-            // * iterate(root, root, DESCEND)
-
-            // This is where all the template logic is.
-            // We start with a TemplateContext, which has : urrent node, halt node, model, and some context data
-            // Every time we call "next" on that node it moves to the next evaluation context - the next node in the tree.
-            // At that point
-            //  * if it's a text node, use the text
-            //  * if it's a zpath expression which evaluates as a value - {{ value }} - then substitute the value
-            //  * if it's a zpath expression which evaluates as a subtree - {{# value }} - then:
-            //    * evaluate the expression against the current context. For each value in the result
-            //      * if it is a primitive value, evaluate all children of the current node against the current context
-            //      * otherwise, evaluate all children of the current node against that value
-            // 
-            while (off == buf.length() && round++ <= template.config.getTemplateMaxIterations() && (ctx = ctx.next()) != null) {
-                // System.out.println("** NEXT: ctx="+ctx);
-                if (ctx.isText()) {
-                    // Current context is a text-constant node
-                    buf = ctx.node.text;
-                    off = 0;
-                } else if (ctx.isExprValue()) {
-                    // Current context is an expr node with no children; evaluate as a text constant
-                    Result result = ctx.eval();
-                    if (result.all().size() > 0) {
-                        Object n = evalcontext.value(result.first());
-                        if (n != null) {
-                            buf = n.toString();
-                            if (buf == null) {
-                                buf = "";
-                            }
-                            if (template.config.isTemplateHTMLEscape() && ctx != null && ctx.node.escape == 0) {
-                                buf = Expr.escapeXML((String)buf, true, null).toString();
+        void run(final TemplateContext context) throws IOException {
+            final Executor executor = context.getExecutor();
+            if (executor == null || sections.length < 2) {
+                run(context, 0, ops.length);
+                return;
+            }
+            List<CompletableFuture<TemplateContext>> futures = new ArrayList<CompletableFuture<TemplateContext>>(sections.length);
+            try {
+                for (final int start : sections) {
+                    final TemplateContext fork = context.fork();
+                    futures.add(CompletableFuture.supplyAsync(new Supplier<TemplateContext>() {
+                        public TemplateContext get() {
+                            try {
+                                run(fork, start, jumps[start]);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
                             }
-                            off = 0;
+                            return fork;
                         }
-                    }
-                } else if (ctx.isExprTree()) {
-                    // Current context is an expr node with children; get the result from evaluating the expression
-                    // against this context's model, then then repeat all our children once for each non-null,
-                    // non-false item in that result.
-                    //
-                    // The model for each child will either be the item in the result (if it is a tree node)
-                    // or the current context's model otherwise.
-                    Result result = ctx.eval();
-                    TemplateContext prevctx = null, nextctx = ctx;
-                    ctx.setAscending();
-                    List<Object> all = result.all();
-                    // Build a list of TemplateContext models which evaluate our subtree, once for each item in the result. 
-                    for (int i=0;i<all.size();i++) {
-                        Object o = all.get(i);
-                        if (o == null || Boolean.FALSE.equals(o)) {
-                            // object is null or false - skip
-                        } else {
-                            boolean intree = o == modelroot || evalcontext.parent(o) != null;      // true if "o" is in the model tree
-                            TemplateContext newctx = new TemplateContext(intree ? o : nextctx.model, ctx.node(), evalcontext, i, all);
-                            if (i == 0) {
-                                ctx = newctx;
-                            }
-                            if (i + 1 == all.size()) {
-                                newctx.setNext(nextctx);
-                            }
-                            if (prevctx != null) {
-                                prevctx.setNext(newctx);
-                            }
-                            prevctx = newctx;
+                    }, executor));
+                }
+                int pc = 0;
+                for (int i=0;i<sections.length;i++) {
+                    run(context, pc, sections[i]);
+                    try {
+                        context.join(futures.get(i).join());
+                    } catch (CompletionException e) {
+                        Throwable t = e.getCause();
+                        if (t instanceof UncheckedIOException) {
+                            throw ((UncheckedIOException)t).getCause();
+                        } else if (t instanceof RuntimeException) {
+                            throw (RuntimeException)t;
+                        } else if (t instanceof Error) {
+                            throw (Error)t;
                         }
+                        throw e;
                     }
+                    pc = jumps[sections[i]];
+                }
+                run(context, pc, ops.length);
+            } finally {
+                for (CompletableFuture<TemplateContext> f : futures) {
+                    f.cancel(false);        // if we failed, don't start any that are waiting
                 }
-            }
-            bytecount += buf.length();
-            if (bytecount > template.config.getTemplateMaxOutputSize()) {
-                throw new IllegalStateException("Maximum output size exceeded: " + bytecount);
-            }
-            if (round > template.config.getTemplateMaxIterations()) {
-                throw new IllegalStateException("Maximum iterations exceeded: " + round);
             }
         }
-    }
-
-    private static class TemplateContext {
-        private final EvalContext evalcontext;          // for evaluating any expression
-        private final int contextIndex;                 // for evaluating any expression
-        private final List<Object> contextObjects;      // for evaluating any expression
-        private final Object model;                     // for evaluating any expression
-        private TemplateNode node;                      // the current position in the tree
-        private boolean ascending;                      // will next() ascend or descend from node?
-        private final TemplateNode halt;                // if ascending and next() gets to this node, we halt
-        private TemplateContext next;                   // when this model halts, which context to continue with
 
         /**
-         * @param model the model against which any expressions within subroot should be evaluated against
-         * @param subroot the root of this subsection of the tree
-         * @param evalcontext for evaluation of expressions
-         * @param contxtIndex for evaluation of expressions
-         * @param contextObjects for evaluation of expressions
+         * Run the instructions from start until end, writing to the context's output
+         * @param context the context
+         * @param start the first instruction
+         * @param end the instruction after the last one, which must be outside any section
          */
-        TemplateContext(Object model, TemplateNode subroot, EvalContext evalcontext, int contextIndex, List<Object> contextObjects) {
-            this.model = model;
-            this.node = this.halt = subroot;
-            this.evalcontext = evalcontext;
-            this.contextIndex = contextIndex;
-            this.contextObjects = contextObjects;
+        private void run(TemplateContext context, int start, int end) throws IOException {
+            final byte[] ops = this.ops;
+            int pc = start;
+            while (pc < end) {
+                switch (ops[pc]) {
+                    case TEXT:
+                        context.text(text(pc), encoded(pc));
+                        pc++;
+                        break;
+                    case EVAL:
+                        context.value(expr(pc), isEscapable(pc));
+                        pc++;
+                        break;
+                    case LOOP_BEGIN:
+                        pc = context.begin(expr(pc)) ? pc + 1 : jumps[pc];
+                        break;
+                    case LOOP_END:
+                        pc = context.next() ? jumps[pc] : pc + 1;
+                        break;
+                    default:
+                        throw new IllegalStateException();
+                }
+            }
         }
 
         /**
-         * Iterate to the next point in the tree, either in this TemplateContext or the next
-         * @return the next template context (may be this one) or null if traversal is complete
+         * Return the maximum number of loops nested inside each other
          */
-        TemplateContext next() {
-            if (!ascending && node.first != null) {
-                node = node.first;
-            } else if (node.next != null) {   
-                node = node.next;
-                ascending = false;
-            } else if (node.parent != null) {   
-                ascending = true;
-                node = node.parent;
-            } else {
-                throw new Error();
-            }
-            if (node != halt) {
-                return this;
-            } else if (next == null) {
-                return null;
-            } else {
-                return next.next();
-            }
+        int depth() {
+            return depth;
+        }
+
+        byte op(int pc) {
+            return ops[pc];
         }
 
         /**
-         * Return the current point in the tree
+         * Return the jump target for LOOP_BEGIN or LOOP_END
          */
-        TemplateNode node() {
-            return node;
+        int jump(int pc) {
+            return jumps[pc];
+        }
+
+        String text(int pc) {
+            return (String)args[pc];
+        }
+
+        byte[] encoded(int pc) {
+            return encoded[pc];
         }
 
         /**
-         * Make sure in the call to next() we don't descend into node
+         * Return the expression for EVAL or LOOP_BEGIN
          */
-        void setAscending() {
-            ascending = true;
+        ZPath expr(int pc) {
+            return ((TemplateNode)args[pc]).expr;
         }
 
         /**
-         * Set the next TemplateContext to iterate through after this one
+         * Return the source of the expression for EVAL or LOOP_BEGIN, as it was compiled
          */
-        void setNext(TemplateContext next) {
-            this.next = next;
+        String source(int pc) {
+            String s = ((TemplateNode)args[pc]).text;
+            return (ops[pc] == LOOP_BEGIN ? s.substring(1) : s).trim();
         }
 
         /**
-         * Return true if the TemplateContext is at a text location
+         * Return true if the value of the EVAL expression should be escaped, if the configuration
+         * requires it. An expression marked as escaped or unescaped is not escaped again
          */
-        boolean isText() {
-            return node.expr == null;
+        boolean isEscapable(int pc) {
+            return ((TemplateNode)args[pc]).escape == 0;
         }
+    }
+
+    /**
+     * Runs the {@link Program} against a model one piece of output at a time, for the Reader
+     * and channel returned from {@link #apply(Object)} and {@link #applyChannel}
+     */
+    private static final class Cursor {
+        private final Program program;
+        private final TemplateContext context;
+        private int pc;                         // The next instruction
+        String text;                            // The last piece of output
+        byte[] utf8;                            // The last piece of output encoded as UTF-8, if it's from a TEXT
 
         /**
-         * Return true if the TemplateContext is at a point to evaluate an expression as a value
+         * @param template the source template
+         * @param model the model being merged
+         * @param evalcontext the EvalContext
          */
-        boolean isExprValue() {
-            return !ascending && node.expr != null && node.first == null;
+        Cursor(ZTemplate template, Object model, EvalContext evalcontext) {
+            this.program = template.program;
+            this.context = new TemplateContext(model, evalcontext, template.config, program.depth(), null);
         }
 
         /**
-         * Return true if the TemplateContext is at a point to evaluate an expression as a subtree
+         * Run the program until it produces some output or completes
+         * @return true if there is more output, false if the program has completed
          */
-        boolean isExprTree() {
-            return !ascending && node.expr != null && node.first != null;
+        boolean next() throws IOException {
+            final int size = program.size();
+            while (pc < size) {
+                switch (program.op(pc)) {
+                    case Program.TEXT:
+                        text = context.counted(program.text(pc));
+                        utf8 = program.encoded(pc);
+                        pc++;
+                        return true;
+                    case Program.EVAL: {
+                        String s = context.valueOf(program.expr(pc), program.isEscapable(pc));
+                        pc++;
+                        if (s != null) {
+                            text = context.counted(s);
+                            utf8 = null;
+                            return true;
+                        }
+                        break;
+                    }
+                    case Program.LOOP_BEGIN:
+                        pc = context.begin(program.expr(pc)) ? pc + 1 : program.jump(pc);
+                        break;
+                    case Program.LOOP_END:
+                        pc = context.next() ? program.jump(pc) : pc + 1;
+                        break;
+                    default:
+                        throw new IllegalStateException();
+                }
+            }
+            text = null;
+            utf8 = null;
+            return false;
         }
+    }
 
+    /**
+     * A Reader that runs the {@link Program} against a model, producing one piece of output at a time
+     */
+    private static class TemplateMergingReader extends Reader {
+        private final Cursor cursor;
+        private String buf;                     // The text buffer being read from
+        private int off;                        // How far into that text buffer we are
+
+        TemplateMergingReader(Cursor cursor) {
+            this.cursor = cursor;
+            this.buf = "";
+        }
+
+        @Override public void close() throws IOException {
+        }
+
+        @Override public int read() throws IOException {
+            if (off == buf.length()) {
+                fill();
+                if (off == buf.length()) {
+                    return -1;
+                }
+            }
+            return buf.charAt(off++);
+        }
 
         /**
-         * Evaluate the express, return the result
+         * Read as many characters as will fit, running the template for as long as it takes
+         * to fill the buffer, so the caller isn't returned one piece of output at a time
          */
-        Result eval() {
-            evalcontext.setContext(contextIndex, contextObjects);
-            return node.expr.eval(model, evalcontext);
+        @Override public int read(char[] buf, int off, int len) throws IOException {
+            int count = 0;
+            while (count < len) {
+                if (this.off == this.buf.length()) {
+                    fill();
+                    if (this.off == this.buf.length()) {
+                        break;
+                    }
+                }
+                int n = Math.min(len - count, this.buf.length() - this.off);
+                this.buf.getChars(this.off, this.off + n, buf, off + count);
+                this.off += n;
+                count += n;
+            }
+            return count == 0 && len > 0 ? -1 : count;
         }
 
-        public String toString() {
-            return "{node="+node+" halt="+halt+" ascending="+ascending+" model="+model+"}";
+        public long transferTo(Writer out) throws IOException {         // This is defined in Java 10
+            return transferTo((Appendable)out);
+        }
+
+        private long transferTo(Appendable out) throws IOException {    // This is not
+            long biglen = 0;
+            while (true) {
+                if (off == buf.length()) {
+                    fill();
+                    if (off == buf.length()) {
+                        break;
+                    }
+                }
+                int len = buf.length() - off;
+                out.append(buf, off, len);
+                off += len;
+                biglen += len;
+            }
+            return biglen;
+        }
+
+        private void fill() throws IOException {
+            while (off == buf.length() && cursor.next()) {
+                buf = cursor.text;
+                off = 0;
+            }
+        }
+    }
+
+    /**
+     * A channel that runs the {@link Program} against a model, producing as much output as
+     * the buffer passed to each read can hold
+     */
+    private static class TemplateChannel implements ReadableByteChannel {
+        private final Cursor cursor;
+        private byte[] buf;                     // The bytes being read from
+        private int off;                        // How far into those bytes we are
+        private boolean open;
+
+        TemplateChannel(Cursor cursor) {
+            this.cursor = cursor;
+            this.buf = new byte[0];
+            this.open = true;
+        }
+
+        @Override public boolean isOpen() {
+            return open;
+        }
+
+        @Override public void close() {
+            open = false;
+        }
+
+        @Override public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            int count = 0;
+            while (dst.hasRemaining()) {
+                if (off == buf.length) {
+                    if (!cursor.next()) {
+                        return count == 0 ? -1 : count;
+                    }
+                    buf = cursor.utf8 != null ? cursor.utf8 : cursor.text.getBytes(StandardCharsets.UTF_8);
+                    off = 0;
+                }
+                int n = Math.min(dst.remaining(), buf.length - off);
+                dst.put(buf, off, n);
+                off += n;
+                count += n;
+            }
+            return count;
         }
     }
-    
+
 }
@@ -9,7 +9,7 @@ import java.util.*;
  */
 public class BfoJsonFactory implements EvalFactory {
     
-    private static final List<Function> FUNCTIONS = new ArrayList<Function>();
+    private static final FunctionRegistry FUNCTIONS = new FunctionRegistry();
 
     /**
      * The default constructor
@@ -24,6 +24,9 @@ public class BfoJsonFactory implements EvalFactory {
             @Override public boolean matches(final String name) {
                 return "tag".equals(name);
             }
+            @Override public Collection<String> names() {
+                return Collections.singleton("tag");
+            }
             @Override public boolean verify(final String name, final List<Term> args) {
                 return args.size() <= 1;
             }
@@ -67,12 +70,7 @@ public class BfoJsonFactory implements EvalFactory {
         }
 
         @Override public Function getFunction(String name) {
-            for (Function f : FUNCTIONS) {
-                if (f.matches(name)) {
-                    return f;
-                }
-            }
-            return null;
+            return FUNCTIONS.get(name);
         }
 
         @Override public void setContext(int index, List<Object> nodes) {
@@ -9,16 +9,22 @@ import java.util.*;
  */
 public class DomFactory implements EvalFactory {
     
-    private static final List<Function> FUNCTIONS = new ArrayList<Function>();
+    private static final FunctionRegistry FUNCTIONS = new FunctionRegistry();
 
     /**
      * The default constructor
      */
     public DomFactory() {
+    }
+
+    static {
         FUNCTIONS.add(new Function() {
             @Override public boolean matches(final String name) {
                 return "url".equals(name) || "local-name".equals(name);
             }
+            @Override public Collection<String> names() {
+                return Arrays.asList("url", "local-name");
+            }
             @Override public boolean verify(final String name, final List<Term> args) {
                 return args.size() <= 1;
             }
@@ -62,12 +68,7 @@ public class DomFactory implements EvalFactory {
         }
 
         @Override public Function getFunction(String name) {
-            for (Function f : FUNCTIONS) {
-                if (f.matches(name)) {
-                    return f;
-                }
-            }
-            return null;
+            return FUNCTIONS.get(name);
         }
 
         @Override public void setContext(int index, List<Object> nodes) {
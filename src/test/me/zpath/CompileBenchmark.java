@@ -0,0 +1,50 @@
+package me.zpath;
+
+import java.lang.management.*;
+
+/**
+ * Measure the throughput of {@link ZPath#compile} for expressions that are all
+ * different, as when expressions are generated per-request and can't be cached.
+ * Run with "<code>ant benchmark</code>"
+ */
+public class CompileBenchmark {
+
+    private static final String[] EXPRESSIONS = {
+        "users/*[id == \"%d\"]",
+        "**/items/item[price * quantity - %d > 1000]/name",
+        "count(/orders/*[customer/@id == 'c%d' && status != \"closed\"])",
+        "format(\"%%02.2f\", sum(**/line[sku == %d]/value(number(price) * number(qty))))",
+        "replace(\"(.*) street\", \"$1 road\", address/street) == 'n%d road' ? first : last",
+    };
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        Configuration config = new Configuration();
+        String[] input = new String[count];
+        for (int i=0;i<count;i++) {
+            input[i] = String.format(EXPRESSIONS[i % EXPRESSIONS.length], i);
+        }
+        run(config, input);         // warmup
+        long bytes = allocated();
+        long start = System.nanoTime();
+        run(config, input);
+        long time = System.nanoTime() - start;
+        bytes = allocated() - bytes;
+        System.out.println(String.format("Compiled %d unique expressions in %dms: %.2fus and %s per compile", count, time / 1000000, time / 1000d / count, bytes < 0 ? "unknown bytes" : (bytes / count) + " bytes"));
+    }
+
+    private static void run(Configuration config, String[] input) {
+        for (String s : input) {
+            ZPath.compile(s, config);
+        }
+    }
+
+    private static long allocated() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,370 @@
+package me.zpath;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import javax.tools.ToolProvider;
+import com.bfo.json.Json;
+
+/**
+ * Apply each template to the same model through every way of rendering a ZTemplate,
+ * and every kind of ZTemplate, and check the output is what's expected every time.
+ */
+public class TemplateTest {
+
+    private static final String MODEL = "{\"title\":\"Q&A <Report>\",\"name\":\"Zoë 😀\",\"sections\":[{\"name\":\"a\",\"items\":[1,2,3]},{\"name\":\"b\",\"items\":[]},{\"name\":\"c\",\"items\":[4,null,false,5,null]}],\"flags\":[true,false,null,\"x\",false],\"empty\":[],\"nothing\":null}";
+    private static final String PART = "[{{title}}{{#sections/*}}{{name}}{{/sections/*}}]";
+    private static final String NESTED = "{{#sections/*}}{{name}}:{{index()}}[{{#items/*}}{{.}}@{{index()}} {{/items/*}}]{{/sections/*}}!";
+    private static final String NESTEDOUT = "a:0[1@0 2@1 3@2 ]b:1[]c:2[4@0 @1 false@2 5@3 @4 ]!";
+    private static final int NESTEDITERATIONS = 11;    // 3 sections and 8 items
+    static int index;
+
+    public static void main(String[] args) throws Exception {
+        Object model = Json.read(MODEL);
+        Configuration html = config();
+        Configuration plain = config().setTemplateHTMLEscape(false);
+        Configuration utf8 = config().setEscapeCharset(StandardCharsets.UTF_8);
+
+        test("Hello {{name}} - {{title}}", html, model, "Hello Zo&#xeb; &#x1f600; - Q&amp;A &lt;Report&gt;");
+        test("Hello {{name}} - {{title}}", plain, model, "Hello Zoë 😀 - Q&A <Report>");
+        test("Hello {{name}} - {{title}}", utf8, model, "Hello Zoë 😀 - Q&amp;A &lt;Report&gt;");
+        test("{{escape(title)}}|{{\"<c>\"}}", html, model, "Q&amp;A &lt;Report&gt;|&lt;c&gt;");
+        test(NESTED, html, model, NESTEDOUT);
+        // A loop whose last item is null or false still continues after the section
+        test("{{#flags/*}}<{{.}}>{{/flags/*}}end", plain, model, "<true><false><><x><false>end");
+        test("{{#nothing}}N{{/nothing}}{{#empty/*}}E{{/empty/*}}{{#flags/*}}{{#.}}T{{/.}}{{/flags/*}}", html, model, "NTTTTT");
+        test("before {{> part}} after", html, model, "before [Q&amp;A &lt;Report&gt;abc] after");
+        test("{{#name}}A{{.}}{{/name}}-{{#flags}}F{{/flags}}-{{#sections/*}}{{#items/*}}{{.}}{{/items/*}}{{/sections/*}}", plain, model, "AZoë 😀-F-1234false5");
+        test("{{#name}}A{{.}}{{/name}}-{{#flags}}F{{/flags}}", utf8, model, "AZoë 😀-F");
+
+        // Long text is split into several pieces when compiled, and written around the buffer
+        StringBuilder sb = new StringBuilder();
+        for (int i=0;i<5000;i++) {
+            sb.append("éx😀");
+        }
+        String text = sb.toString();
+        test("{{#sections/*}}" + text + "{{name}}{{/sections/*}}", html, model, text + "a" + text + "b" + text + "c");
+
+        test(NESTED, config().setTemplateMaxIterations(NESTEDITERATIONS), model, NESTEDOUT);
+        test(NESTED, config().setTemplateMaxIterations(NESTEDITERATIONS - 1), model, null);
+        test(NESTED, config().setTemplateMaxOutputSize(NESTEDOUT.length()), model, NESTEDOUT);
+        test(NESTED, config().setTemplateMaxOutputSize(NESTEDOUT.length() - 1), model, null);
+        test("{{title}}", config().setTemplateMaxOutputSize(22), model, "Q&amp;A &lt;Report&gt;");
+        test("{{title}}", config().setTemplateMaxOutputSize(21), model, null);
+        testOutputSize(model);
+        testFlush(model);
+        testApplyAllModels();
+        testBundle();
+    }
+
+    private static Configuration config() {
+        return new Configuration().setTemplateIncluder(new Includer() {
+            @Override public Reader include(String path, URI rootpath) throws IOException {
+                if (path.equals("part")) {
+                    return new StringReader(PART);
+                }
+                throw new FileNotFoundException(path);
+            }
+        });
+    }
+
+    /**
+     * Return each kind of ZTemplate compiled from the source
+     */
+    private static Map<String,ZTemplate> templates(String source, Configuration config) throws IOException {
+        Map<String,ZTemplate> templates = new LinkedHashMap<String,ZTemplate>();
+        ZTemplate template = ZTemplate.compile(new StringReader(source), config);
+        templates.put("ZTemplate", template);
+        templates.put("ZTemplate+Executor", ZTemplate.compile(new StringReader(source), new Configuration(config).setTemplateExecutor(ForkJoinPool.commonPool())));
+        templates.put("Bundle", bundle(Collections.singletonMap("template", template), config).getTemplate("template"));
+        if (ToolProvider.getSystemJavaCompiler() != null) {
+            templates.put("CompiledTemplate", CompiledTemplate.load(template));
+        }
+        return templates;
+    }
+
+    /**
+     * Apply the template through each output, and check the output is expected,
+     * or if expected is null that it fails as it goes over one of the template limits
+     */
+    private static void test(String source, Configuration config, Object model, String expected) throws Exception {
+        String label = source.length() > 60 ? source.substring(0, 57) + "..." : source;
+        for (Map.Entry<String,ZTemplate> e : templates(source, config).entrySet()) {
+            for (Output output : OUTPUTS) {
+                String name = String.format("%03d", ++index) + " %s \"" + label + "\" " + e.getKey() + " " + output;
+                String out;
+                try {
+                    out = output.apply(e.getValue(), model);
+                } catch (Exception ex) {
+                    out = null;
+                    if (expected != null || !isLimit(ex)) {
+                        System.out.println(String.format(name, "FAIL") + " threw " + ex);
+                        continue;
+                    }
+                }
+                if (out == null ? expected == null : out.equals(expected)) {
+                    System.out.println(String.format(name, "OK  "));
+                } else {
+                    System.out.println(String.format(name, "FAIL") + " expected " + dump(expected) + " got " + dump(out));
+                }
+            }
+        }
+    }
+
+    private static void check(String name, boolean ok, Object detail) {
+        if (ok) {
+            System.out.println(String.format("%03d", ++index) + " OK   " + name);
+        } else {
+            System.out.println(String.format("%03d", ++index) + " FAIL " + name + ": " + detail);
+        }
+    }
+
+    /**
+     * A value that would take the output over the maximum size isn't written before failing
+     */
+    private static void testOutputSize(Object model) throws Exception {
+        for (Map.Entry<String,ZTemplate> e : templates("ab{{title}}", config().setTemplateMaxOutputSize(10)).entrySet()) {
+            StringBuilder sb = new StringBuilder();
+            Exception error = null;
+            try {
+                e.getValue().apply(model, sb);
+            } catch (Exception ex) {
+                error = ex;
+            }
+            check("output size \"ab{{title}}\" " + e.getKey(), isLimit(error) && sb.toString().equals("ab"), error + " after writing \"" + sb + "\"");
+        }
+    }
+
+    /**
+     * Apply a template to an OutputStream and a Writer that record the length of the output each
+     * time they're flushed, and check they're flushed only as set by the Configuration
+     */
+    private static void testFlush(Object model) throws Exception {
+        final String source = "{{#sections/*}}{{name}}{{#items/*}}{{.}}{{/items/*}}{{/sections/*}}-{{#flags/*}}x{{/flags/*}}.";
+        final String expected = "a123bc4false5-xxxxx.";
+        Object[][] tests = {
+            { "none", config(), Collections.<Integer>emptyList() },
+            { "sections", config().setTemplateFlushAtSections(true), Arrays.asList(13, 19) },
+            { "size 4", config().setTemplateFlushSize(4), Arrays.asList(4, 12, 16, 20) },
+            { "size 4 and sections", config().setTemplateFlushSize(4).setTemplateFlushAtSections(true), Arrays.asList(4, 12, 13, 17, 19) },
+        };
+        for (Object[] test : tests) {
+            for (Map.Entry<String,ZTemplate> e : templates(source, (Configuration)test[1]).entrySet()) {
+                if (e.getKey().endsWith("Executor") && ((Configuration)test[1]).getTemplateFlushSize() > 0) {
+                    continue;   // each section is written in one piece, so it can't be flushed part way through
+                }
+                FlushOutputStream stream = new FlushOutputStream();
+                e.getValue().apply(model, stream);
+                String out = new String(stream.toByteArray(), "UTF-8");
+                check("flush " + test[0] + " " + e.getKey() + " OutputStream", out.equals(expected) && stream.flushes.equals(test[2]), dump(out) + " flushed at " + stream.flushes);
+                FlushWriter writer = new FlushWriter();
+                e.getValue().apply(model, writer);
+                out = writer.toString();
+                check("flush " + test[0] + " " + e.getKey() + " Writer", out.equals(expected) && writer.flushes.equals(test[2]), dump(out) + " flushed at " + writer.flushes);
+            }
+        }
+    }
+
+    private static final class FlushOutputStream extends ByteArrayOutputStream {
+        final List<Integer> flushes = new ArrayList<Integer>();
+        @Override public void flush() {
+            flushes.add(size());
+        }
+    }
+
+    private static final class FlushWriter extends StringWriter {
+        final List<Integer> flushes = new ArrayList<Integer>();
+        @Override public void flush() {
+            flushes.add(getBuffer().length());
+        }
+    }
+
+    /**
+     * Apply one template to models of different classes, which need an EvalContext from different factories
+     */
+    private static void testApplyAllModels() throws Exception {
+        Map<String,Object> map = new HashMap<String,Object>();
+        map.put("title", "Q&A");
+        Object json = Json.read("{\"title\":\"Q&A\"}");
+        Object jsr353 = javax.json.Json.createReader(new StringReader("{\"title\":\"Q&A\"}")).read();
+        List<Object> models = Arrays.asList(map, json, jsr353, map, jsr353, json);
+        for (Map.Entry<String,ZTemplate> e : templates("[{{title}}]", config()).entrySet()) {
+            final List<ByteArrayOutputStream> outs = new ArrayList<ByteArrayOutputStream>();
+            SortedMap<Integer,Exception> failed = e.getValue().applyAll(models, new java.util.function.Function<Object,OutputStream>() {
+                @Override public OutputStream apply(Object model) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    outs.add(out);
+                    return out;
+                }
+            }, 1);
+            boolean ok = failed.isEmpty() && outs.size() == models.size();
+            for (int i=0;ok && i<outs.size();i++) {
+                ok = outs.get(i).toString("UTF-8").equals("[Q&amp;A]");
+            }
+            check("applyAll mixed models " + e.getKey(), ok, failed + " " + outs);
+        }
+    }
+
+    /**
+     * Write the entries to a Bundle and load it again
+     */
+    private static Bundle bundle(Map<String,?> entries, Configuration config) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Bundle.write(entries, out);
+        return Bundle.load(ByteBuffer.wrap(out.toByteArray()), config);
+    }
+
+    /**
+     * Items in a Bundle are found by name and kind, and a CompiledTemplate can't be stored in one
+     */
+    private static void testBundle() throws Exception {
+        Map<String,Object> entries = new LinkedHashMap<String,Object>();
+        entries.put("template", ZTemplate.compile(new StringReader(NESTED), config()));
+        entries.put("path", ZPath.compile("sections/*/name"));
+        Bundle bundle = bundle(entries, config());
+        check("bundle names", bundle.names().equals(entries.keySet()), bundle.names());
+        check("bundle getPath", bundle.getPath("path").eval(Json.read(MODEL)).all().size() == 3, bundle.getPath("path"));
+        check("bundle getTemplate", bundle.getTemplate("template") != null, null);
+        check("bundle missing", bundle.getPath("missing") == null && bundle.getTemplate("missing") == null, null);
+        Exception error = null;
+        try {
+            bundle.getPath("template");
+        } catch (Exception e) {
+            error = e;
+        }
+        check("bundle getPath on a ZTemplate", error instanceof IllegalArgumentException, error);
+        error = null;
+        try {
+            bundle.getTemplate("path");
+        } catch (Exception e) {
+            error = e;
+        }
+        check("bundle getTemplate on a ZPath", error instanceof IllegalArgumentException, error);
+        if (ToolProvider.getSystemJavaCompiler() != null) {
+            error = null;
+            try {
+                bundle(Collections.singletonMap("compiled", CompiledTemplate.load((ZTemplate)entries.get("template"))), config());
+            } catch (Exception e) {
+                error = e;
+            }
+            check("bundle CompiledTemplate", error instanceof IllegalArgumentException, error);
+        }
+    }
+
+    private static boolean isLimit(Throwable e) {
+        while (e != null) {
+            if (e instanceof IllegalStateException && e.getMessage() != null && e.getMessage().startsWith("Maximum")) {
+                return true;
+            }
+            e = e.getCause();
+        }
+        return false;
+    }
+
+    private static String dump(String s) {
+        if (s == null) {
+            return "null";
+        }
+        return "\"" + (s.length() > 80 ? s.substring(0, 77) + "..." : s) + "\" (" + s.length() + " chars)";
+    }
+
+    private static abstract class Output {
+        private final String name;
+        Output(String name) {
+            this.name = name;
+        }
+        abstract String apply(ZTemplate template, Object model) throws Exception;
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static final Output[] OUTPUTS = {
+        new Output("Reader") {
+            @Override String apply(ZTemplate template, Object model) throws IOException {
+                Reader r = template.apply(model);
+                StringBuilder sb = new StringBuilder();
+                char[] buf = new char[3];
+                int l;
+                while ((l=r.read(buf, 0, buf.length)) >= 0) {
+                    sb.append(buf, 0, l);
+                }
+                r.close();
+                return sb.toString();
+            }
+        },
+        new Output("Reader.read()") {
+            @Override String apply(ZTemplate template, Object model) throws IOException {
+                Reader r = template.apply(model);
+                StringBuilder sb = new StringBuilder();
+                int c;
+                while ((c=r.read()) >= 0) {
+                    sb.append((char)c);
+                }
+                r.close();
+                return sb.toString();
+            }
+        },
+        new Output("Appendable") {
+            @Override String apply(ZTemplate template, Object model) {
+                StringBuilder sb = new StringBuilder();
+                template.apply(model, sb);
+                return sb.toString();
+            }
+        },
+        new Output("OutputStream") {
+            @Override String apply(ZTemplate template, Object model) throws IOException {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                template.apply(model, out);
+                return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            }
+        },
+        new Output("ByteBuffer") {
+            @Override String apply(ZTemplate template, Object model) {
+                ByteBuffer buf = ByteBuffer.allocate(1<<20);
+                template.apply(model, buf);
+                buf.flip();
+                return StandardCharsets.UTF_8.decode(buf).toString();
+            }
+        },
+        new Output("WritableByteChannel") {
+            @Override String apply(ZTemplate template, Object model) throws IOException {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                template.apply(model, Channels.newChannel(out));
+                return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            }
+        },
+        new Output("applyChannel") {
+            @Override String apply(ZTemplate template, Object model) throws IOException {
+                ReadableByteChannel channel = template.applyChannel(model);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteBuffer buf = ByteBuffer.allocate(5);
+                while (channel.read(buf) >= 0) {
+                    out.write(buf.array(), 0, buf.position());
+                    buf.clear();
+                }
+                channel.close();
+                return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            }
+        },
+        new Output("applyAll") {
+            @Override String apply(ZTemplate template, Object model) throws Exception {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                SortedMap<Integer,Exception> failed = template.applyAll(Collections.singletonList(model), new java.util.function.Function<Object,OutputStream>() {
+                    @Override public OutputStream apply(Object model) {
+                        return out;
+                    }
+                }, 1);
+                if (!failed.isEmpty()) {
+                    throw failed.get(failed.firstKey());
+                }
+                return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+    };
+
+}
@@ -1,6 +1,7 @@
 package me.zpath;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class TestHarness {
@@ -145,8 +146,13 @@ public class TestHarness {
                                 }
                             }
                         }
-                        test(test, line, model, expression, val, debug == DEBUGALL || debug.get(test));
+                        test(test, line, model, expression, val, false, debug == DEBUGALL || debug.get(test));
                         test++;
+                        if (expression.contains("matches(") || expression.contains("replace(")) {
+                            // Regular expressions must give the same result with the linear-time matcher
+                            test(test, line, model, expression, val, true, debug == DEBUGALL || debug.get(test));
+                            test++;
+                        }
                     }
                 }
             }
@@ -155,16 +161,27 @@ public class TestHarness {
         return index;
     }
 
-    private static boolean test(int index, int line, Object model, String path, List<Object> expected, boolean debug) {
+    private static boolean test(int index, int line, Object model, String path, List<Object> expected, boolean linear, boolean debug) {
         boolean ok = false;
         List<Object> out = null;
         try {
-            Configuration config = new Configuration();
+            Configuration config = new Configuration().setLinearTimeRegex(linear);
             if (debug) {
                 config.setLogger(Configuration.Logger.create(System.out));
             }
             ZPath p = ZPath.compile(path, config);
+            if (path.contains("$")) {
+                p = p.bind(params(model));
+            }
             out = p.eval(model).unwrap().all();
+            String accessors = accessors(p, model, out);
+            if (accessors != null) {
+                throw new IllegalStateException(accessors);
+            }
+            String bundled = bundled(path, p, config, model, out);
+            if (bundled != null) {
+                throw new IllegalStateException(bundled);
+            }
             if (expected == null) {
                 ok = false;
             } else {
@@ -193,14 +210,84 @@ public class TestHarness {
                 ok = false;
             }
         }
+        String label = "\"" + path + "\"" + (linear ? " (linear)" : "");
         if (ok) {
-            System.out.println(String.format("%03d", index) + " OK   \"" + path + "\"");
+            System.out.println(String.format("%03d", index) + " OK   " + label);
         } else {
-            System.out.println(String.format("%03d", index) + " FAIL \"" + path + "\" expected " + dump(expected) + " got " + dump(out) + " (line " + line + ")");
+            System.out.println(String.format("%03d", index) + " FAIL " + label + " expected " + dump(expected) + " got " + dump(out) + " (line " + line + ")");
         }
         return ok;
     }
 
+    /**
+     * Check the typed accessors like evalDouble() give the same value as eval(), which returned out.
+     * Return a description of the first that doesn't, or null if they all do
+     */
+    private static String accessors(ZPath p, Object model, List<Object> out) {
+        Object first = out.isEmpty() ? null : out.get(0);
+        double d = p.evalDouble(model, -1.5);
+        if (Double.compare(d, first instanceof Number ? ((Number)first).doubleValue() : -1.5) != 0) {
+            return "evalDouble() returned " + d;
+        }
+        long l = p.evalLong(model, -15);
+        if (l != (first instanceof Number ? ((Number)first).longValue() : -15)) {
+            return "evalLong() returned " + l;
+        }
+        for (boolean def : new boolean[] { true, false }) {
+            boolean b = p.evalBoolean(model, def);
+            if (b != (first instanceof Boolean ? ((Boolean)first).booleanValue() : def)) {
+                return "evalBoolean(" + def + ") returned " + b;
+            }
+        }
+        String str = p.evalString(model, "default");
+        if (!str.equals(first instanceof String || first instanceof Number || first instanceof Boolean ? first.toString() : "default")) {
+            return "evalString() returned \"" + str + "\"";
+        }
+        double[] a = p.evalDoubleArray(model);
+        double[] expected = new double[out.size()];
+        for (int i=0;i<expected.length;i++) {
+            Object o = out.get(i);
+            expected[i] = o instanceof Number ? ((Number)o).doubleValue() : Double.NaN;
+        }
+        if (!Arrays.equals(a, expected)) {
+            return "evalDoubleArray() returned " + Arrays.toString(a);
+        }
+        return null;
+    }
+
+    /**
+     * Check the ZPath compiled from path, written to a Bundle and loaded again, gives the same result
+     * as eval(), which returned out. Return a description of the result if it doesn't, or null if it does
+     */
+    private static String bundled(String path, ZPath p, Configuration config, Object model, List<Object> out) {
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            Bundle.write(Collections.singletonMap("path", p), bout);
+            ZPath p2 = Bundle.load(ByteBuffer.wrap(bout.toByteArray()), config).getPath("path");
+            if (path.contains("$")) {
+                p2 = p2.bind(params(model));
+            }
+            List<Object> out2 = p2.eval(model).unwrap().all();
+            return out.equals(out2) ? null : "Bundle returned " + dump(out2);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The values of the $parameters that any expression using them is bound with.
+     * Others aren't bound, so they're evaluated just as they would be normally
+     */
+    private static Map<String,Object> params(Object model) {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("type", "home");
+        params.put("n", 2);
+        params.put("list", Arrays.asList(1, 2, 3));
+        params.put("nothing", null);
+        params.put("node", ZPath.compile("address").eval(model).first());
+        return params;
+    }
+
     private static String dump(List<Object> l) {
         StringBuilder sb = new StringBuilder();
         sb.append("[");
@@ -0,0 +1,269 @@
+package me.zpath;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.xml.sax.InputSource;
+import com.bfo.json.Json;
+import com.bfo.json.JsonReader;
+
+/**
+ * Tests of the ZPath API that can't be written as an expression and
+ * its expected result in tests.txt
+ */
+public class ZPathTest {
+
+    static int index;
+
+    public static void main(String[] args) throws Exception {
+        testExplain();
+        testIntern();
+        testFunctions();
+        testLinearRegex();
+        testEvalAccessors();
+    }
+
+    /**
+     * Evaluate the ZPath and return the unwrapped result, or the exception it threw
+     */
+    private static Object eval(ZPath path, Object model) {
+        try {
+            return path.eval(model).unwrap().all();
+        } catch (RuntimeException e) {
+            return e;
+        }
+    }
+
+    private static void check(String name, boolean ok, Object detail) {
+        if (ok) {
+            System.out.println(String.format("%03d", index++) + " OK   " + name);
+        } else {
+            System.out.println(String.format("%03d", index++) + " FAIL " + name + ": " + detail);
+        }
+    }
+
+    /**
+     * Return true if every compiled Term of the two ZPaths is the same instance
+     */
+    private static boolean same(ZPath p1, ZPath p2) {
+        if (p1.terms().size() != p2.terms().size()) {
+            return false;
+        }
+        for (int i=0;i<p1.terms().size();i++) {
+            if (p1.terms().get(i) != p2.terms().get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A descendant scan followed by a key is fused into one step, which explain() reports with the
+     * same count as eval(), and it finds the same nodes in the same order as the unfused scan.
+     * "**" followed by "." and a key is the same query, but isn't fused.
+     */
+    private static void testExplain() throws Exception {
+        Object json = Json.read("{\"d\":{\"v\":1,\"d\":{\"v\":2,\"x\":{\"v\":3}}},\"a\":[{\"d\":{\"v\":4}},{\"v\":5}],\"v\":6}");
+        Object xml = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader("<r><d><v>1</v><d><v>2</v><x><v>3</v></x></d></d><a><d><v>4</v></d><v>5</v></a><v>6</v></r>")));
+        for (Object model : new Object[] { json, xml }) {
+            String type = model == json ? "JSON" : "XML";
+            ZPath fused = ZPath.compile("**/d/**/v");
+            ZPath unfused = ZPath.compile("**/./d/**/./v");
+            List<Object> out = fused.eval(model).all();
+            Plan plan = fused.explain(model);
+            List<Plan.Step> steps = plan.steps();
+            boolean ok = steps.size() == 2 && steps.get(1).actual() == out.size() && out.size() == 4;
+            for (Plan.Step step : steps) {
+                ok &= step.strategy().equals("fused-descendant-scan");
+            }
+            check("explain " + type + " \"" + fused + "\"", ok, plan);
+
+            plan = unfused.explain(model);
+            steps = plan.steps();
+            ok = steps.get(steps.size() - 1).actual() == out.size();
+            for (Plan.Step step : steps) {
+                ok &= !step.strategy().equals("fused-descendant-scan");
+            }
+            check("explain " + type + " \"" + unfused + "\"", ok, plan);
+
+            List<Object> out2 = unfused.eval(model).all();
+            ok = out.size() == out2.size();
+            for (int i=0;ok && i<out.size();i++) {
+                ok = out.get(i) == out2.get(i);
+            }
+            check("fused " + type + " \"" + fused + "\" == \"" + unfused + "\"", ok, out + " " + out2);
+        }
+    }
+
+    /**
+     * Equal expressions compiled separately share their Terms and are equal, and unequal ones aren't,
+     * including when they're compiled on many threads at once
+     */
+    private static void testIntern() throws Exception {
+        String[] equal = { "first", "numbers/*[type == \"home\"]/number", "age * 2 - 10 > 40", "count(**/things/*)", "$n + 1", "**/street/replace(\"(.*) street\", \"$1 road\")" };
+        for (String s : equal) {
+            ZPath p1 = ZPath.compile(s);
+            ZPath p2 = ZPath.compile(new String(s));
+            check("intern \"" + s + "\"", p1.equals(p2) && p1.hashCode() == p2.hashCode() && same(p1, p2), p1.terms() + " " + p2.terms());
+        }
+        String[][] unequal = { { "age + 1", "age + 2" }, { "first", "last" }, { "a/b", "b/a" }, { "1", "1.0" }, { "\"1\"", "1" }, { "count(a)", "sum(a)" }, { "$a", "a" } };
+        for (String[] s : unequal) {
+            ZPath p1 = ZPath.compile(s[0]);
+            ZPath p2 = ZPath.compile(s[1]);
+            check("intern \"" + s[0] + "\" != \"" + s[1] + "\"", !p1.equals(p2) && p1.hashCode() != p2.hashCode() && !same(p1, p2), p1.terms() + " " + p2.terms());
+        }
+
+        final int threads = 8;
+        final List<String> sources = new ArrayList<String>();
+        for (int i=0;i<500;i++) {
+            sources.add("numbers/*[index() == " + i + "]/type == \"t" + (i % 7) + "\" && age * " + i + " > " + (i * 3));
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<List<ZPath>>> futures = new ArrayList<Future<List<ZPath>>>();
+        for (int t=0;t<threads;t++) {
+            futures.add(executor.submit(new Callable<List<ZPath>>() {
+                @Override public List<ZPath> call() throws Exception {
+                    start.await();
+                    List<ZPath> out = new ArrayList<ZPath>();
+                    for (String s : sources) {
+                        out.add(ZPath.compile(s));
+                    }
+                    return out;
+                }
+            }));
+        }
+        start.countDown();
+        List<ZPath> first = futures.get(0).get();
+        boolean ok = true;
+        for (int t=1;t<threads && ok;t++) {
+            List<ZPath> other = futures.get(t).get();
+            for (int i=0;i<sources.size() && ok;i++) {
+                ok = first.get(i).equals(other.get(i)) && same(first.get(i), other.get(i));
+            }
+        }
+        executor.shutdown();
+        check("intern on " + threads + " threads", ok, "compiled Terms not shared");
+    }
+
+    /**
+     * A user function that doesn't list its names() is found in the order it was registered, before
+     * or after the built-ins. A function that isn't found at compile time is resolved from the
+     * EvalContext, once for each type of context, so a ZPath evaluated against a JSON model then a
+     * DOM model finds the function from each in turn.
+     */
+    private static void testFunctions() throws Exception {
+        final Function mine = new Function() {
+            @Override public boolean matches(String name) {
+                return name.equals("count") || name.equals("mine");
+            }
+            @Override public boolean verify(String name, List<Term> args) {
+                return true;
+            }
+            @Override public void eval(String name, List<Term> args, List<Object> in, List<Object> out, EvalContext context) {
+                out.add("mine");
+            }
+        };
+        Object json = Json.read("{\"a\":1}");
+
+        Configuration config = new Configuration();
+        List<Function> builtins = new ArrayList<Function>(config.getFunctions());
+        config.getFunctions().clear();
+        config.getFunctions().add(mine);
+        config.getFunctions().addAll(builtins);
+        check("function first", config.getFunction("count") == mine && config.getFunction("mine") == mine, config.getFunction("count"));
+        Object out = eval(ZPath.compile("count(a)", config), json);
+        check("function first \"count(a)\"", "[mine]".equals(String.valueOf(out)), out);
+        out = eval(ZPath.compile("sum(a, 2)", config), json);
+        check("function first \"sum(a, 2)\"", "[3]".equals(String.valueOf(out)), out);
+
+        config = new Configuration();
+        config.getFunctions().add(mine);
+        check("function last", config.getFunction("count") != mine && config.getFunction("mine") == mine, config.getFunction("count"));
+        out = eval(ZPath.compile("count(a)", config), json);
+        check("function last \"count(a)\"", "[1]".equals(String.valueOf(out)), out);
+        out = eval(ZPath.compile("mine()", config), json);
+        check("function last \"mine()\"", "[mine]".equals(String.valueOf(out)), out);
+
+        Object cbor = Json.read(new JsonReader().setCborDiag(true).setInput("{\"tagged\": 123(\"John\")}"));
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        Object xml = dbf.newDocumentBuilder().parse(new InputSource(new StringReader("<r><tagged>John</tagged></r>"))).getDocumentElement();
+        ZPath tag = ZPath.compile("tagged/tag()");
+        ZPath localname = ZPath.compile("tagged/local-name()");
+        Object[][] tests = {
+            { tag, cbor, "[123]" },
+            { localname, xml, "[tagged]" },
+            { tag, xml, null },
+            { localname, cbor, null },
+            { tag, cbor, "[123]" },
+            { localname, xml, "[tagged]" },
+        };
+        for (Object[] test : tests) {
+            out = eval((ZPath)test[0], test[1]);
+            boolean ok = test[2] == null ? out instanceof IllegalStateException : test[2].equals(String.valueOf(out));
+            check("function from context \"" + test[0] + "\" " + (test[1] == xml ? "XML" : "CBOR"), ok, out);
+        }
+    }
+
+    /**
+     * Patterns that need backtracking compile normally, but not with the linear-time matcher.
+     * The results of matching with each are compared by the tests in tests.txt
+     */
+    private static void testLinearRegex() {
+        String[] patterns = { "(a)\\\\1", "\\\\bfoo", "a(?=b)", "a(?!b)", "(?<=a)b", "(?i)a", "a(?:b(?i)c)" };
+        for (String pattern : patterns) {
+            String source = "matches(\"" + pattern + "\", first)";
+            Exception error = null;
+            try {
+                ZPath.compile(source);
+            } catch (Exception e) {
+                error = e;
+            }
+            check("regex \"" + source + "\"", error == null, error);
+            error = null;
+            try {
+                ZPath.compile(source, new Configuration().setLinearTimeRegex(true));
+            } catch (Exception e) {
+                error = e;
+            }
+            boolean ok = false;
+            for (Throwable e=error;e != null && !ok;e=e.getCause()) {
+                ok = e instanceof IllegalArgumentException && e.getMessage().contains("is not supported by the linear-time matcher");
+            }
+            check("regex \"" + source + "\" (linear)", ok, error);
+        }
+    }
+
+    /**
+     * The typed accessors return the default value when there's no match, the match is null or it's
+     * the wrong type. Every row in tests.txt also checks they agree with eval()
+     */
+    private static void testEvalAccessors() {
+        Object model = Json.read("{\"s\":\"text\",\"n\":5,\"f\":false,\"z\":null,\"o\":{},\"list\":[3,1,3,2,3]}");
+        Object[][] tests = {
+            { "missing", 7.5, 9L, true, "d", new double[0] },
+            { "z", 7.5, 9L, true, "d", new double[] { Double.NaN } },
+            { "s", 7.5, 9L, true, "text", new double[] { Double.NaN } },
+            { "o", 7.5, 9L, true, "d", new double[] { Double.NaN } },
+            { "n", 5.0, 5L, true, "5", new double[] { 5 } },
+            { "n / 2", 2.5, 2L, true, "2.5", new double[] { 2.5 } },
+            { "f", 7.5, 9L, false, "false", new double[] { Double.NaN } },
+            { "list/*", 3.0, 3L, true, "3", new double[] { 3, 1, 3, 2, 3 } },
+            { "list/*[. == 3]", 3.0, 3L, true, "3", new double[] { 3, 3, 3 } },
+            { "missing, list/*, s", 3.0, 3L, true, "3", new double[] { 3, 1, 3, 2, 3, Double.NaN } },
+        };
+        for (Object[] test : tests) {
+            ZPath p = ZPath.compile((String)test[0]);
+            double d = p.evalDouble(model, 7.5);
+            long l = p.evalLong(model, 9);
+            boolean b = p.evalBoolean(model, true);
+            String s = p.evalString(model, "d");
+            double[] a = p.evalDoubleArray(model);
+            boolean ok = d == (Double)test[1] && l == (Long)test[2] && b == (Boolean)test[3] && s.equals(test[4]) && Arrays.equals(a, (double[])test[5]);
+            check("accessors \"" + test[0] + "\"", ok, d + " " + l + " " + b + " \"" + s + "\" " + Arrays.toString(a));
+        }
+    }
+
+}